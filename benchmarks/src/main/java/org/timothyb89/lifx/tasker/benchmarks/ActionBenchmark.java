@@ -0,0 +1,54 @@
+package org.timothyb89.lifx.tasker.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.timothyb89.lifx.tasker.editor.Action;
+
+/**
+ * Looking up an {@link Action} from the ID stored in a Tasker bundle.
+ * @author tim
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ActionBenchmark {
+
+	private final String first = Action.values()[0].getId();
+	private final String last = Action.values()[Action.values().length - 1]
+			.getId();
+
+	@Benchmark
+	public Action first() {
+		return Action.getAction(first);
+	}
+
+	@Benchmark
+	public Action last() {
+		return Action.getAction(last);
+	}
+
+	@Benchmark
+	public Action unknown() {
+		return Action.getAction("No Such Action");
+	}
+
+	@Benchmark
+	public void all(Blackhole bh) {
+		for (Action a : Action.values()) {
+			bh.consume(Action.getAction(a.getId()));
+		}
+	}
+
+}
@@ -0,0 +1,71 @@
+package org.timothyb89.lifx.tasker.benchmarks;
+
+import com.larswerkman.holocolorpicker.ColorWheelMath;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.timothyb89.lifx.bulb.LIFXColor;
+import org.timothyb89.lifx.tasker.engine.Colors;
+
+/**
+ * Color conversions: packed RGB to {@link LIFXColor} for every color action,
+ * and the color wheel math the picker runs on every touch event.
+ * @author tim
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ColorBenchmark {
+
+	private static final int SAMPLES = 256;
+
+	private int[] wheel;
+	private int[] colors;
+	private float[] angles;
+	private int next;
+
+	@Setup
+	public void setup() {
+		wheel = ColorWheelMath.getWheelColors();
+
+		colors = new int[SAMPLES];
+		angles = new float[SAMPLES];
+
+		for (int i = 0; i < SAMPLES; i++) {
+			angles[i] = (float) (2 * Math.PI * i / SAMPLES - Math.PI);
+			colors[i] = ColorWheelMath.calculateColor(wheel, angles[i]);
+		}
+	}
+
+	private int next() {
+		next = (next + 1) % SAMPLES;
+		return next;
+	}
+
+	@Benchmark
+	public LIFXColor rgbToLIFX() {
+		return Colors.toLIFX(colors[next()]);
+	}
+
+	@Benchmark
+	public int calculateColor() {
+		return ColorWheelMath.calculateColor(wheel, angles[next()]);
+	}
+
+	@Benchmark
+	public float colorToAngle() {
+		return ColorWheelMath.colorToAngle(colors[next()]);
+	}
+
+}
@@ -0,0 +1,100 @@
+package org.timothyb89.lifx.tasker.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.timothyb89.lifx.tasker.benchmarks.Fleet.FakeBulb;
+import org.timothyb89.lifx.tasker.engine.CommandDispatcher;
+import org.timothyb89.lifx.tasker.engine.CommandQueue;
+import org.timothyb89.lifx.tasker.engine.DispatchResult;
+
+/**
+ * Per-action dispatch overhead: the cost of fanning a command out to a fleet
+ * and collecting the results, with commands that do no I/O. Anything measured
+ * here is time the bulbs themselves never see.
+ * @author tim
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+	@Param({"1", "10", "100", "1000"})
+	public int bulbs;
+
+	private static final CommandDispatcher.Command<FakeBulb> NOOP
+			= new CommandDispatcher.Command<FakeBulb>() {
+
+		@Override
+		public void execute(FakeBulb target) {
+			// nothing to send
+		}
+
+	};
+
+	private List<FakeBulb> fleet;
+
+	private CommandDispatcher dispatcher;
+	private CommandQueue<FakeBulb> queue;
+
+	@Setup
+	public void setup() {
+		fleet = Fleet.create(bulbs);
+
+		dispatcher = new CommandDispatcher();
+		queue = new CommandQueue<>(new CommandQueue.Sender<FakeBulb>() {
+
+			@Override
+			public DispatchResult<FakeBulb> send(
+					List<CommandQueue.Entry<FakeBulb>> batch) {
+				List<FakeBulb> targets = new ArrayList<>(batch.size());
+				for (CommandQueue.Entry<FakeBulb> e : batch) {
+					targets.add(e.getTarget());
+				}
+
+				return dispatcher.dispatch(targets, NOOP);
+			}
+
+		});
+	}
+
+	@TearDown
+	public void tearDown() {
+		queue.shutdown();
+		dispatcher.shutdown();
+	}
+
+	@Benchmark
+	public DispatchResult<FakeBulb> dispatch() {
+		return dispatcher.dispatch(fleet, NOOP);
+	}
+
+	@Benchmark
+	public DispatchResult<FakeBulb> queuedPower()
+			throws InterruptedException, ExecutionException {
+		return queue.submitPower(fleet, CommandQueue.Power.TOGGLE).get();
+	}
+
+	@Benchmark
+	public DispatchResult<FakeBulb> queuedColor()
+			throws InterruptedException, ExecutionException {
+		return queue.submitColor(fleet, NOOP).get();
+	}
+
+}
@@ -0,0 +1,107 @@
+package org.timothyb89.lifx.tasker.benchmarks;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.timothyb89.lifx.tasker.engine.BulbCache;
+import org.timothyb89.lifx.tasker.engine.BulbRegistry;
+
+/**
+ * A fleet of stand-in bulbs for benchmarks that don't need a network.
+ * @author tim
+ */
+public class Fleet {
+
+	/**
+	 * A bulb with a fixed label and address.
+	 */
+	public static class FakeBulb {
+
+		private final String address;
+		private final String label;
+
+		public FakeBulb(String address, String label) {
+			this.address = address;
+			this.label = label;
+		}
+
+		public String getAddress() {
+			return address;
+		}
+
+		public String getLabel() {
+			return label;
+		}
+
+		@Override
+		public String toString() {
+			return label + " (" + address + ")";
+		}
+
+	}
+
+	public static final BulbRegistry.Keys<FakeBulb> KEYS
+			= new BulbRegistry.Keys<FakeBulb>() {
+
+		@Override
+		public String getAddress(FakeBulb bulb) {
+			return bulb.getAddress();
+		}
+
+		@Override
+		public String getLabel(FakeBulb bulb) {
+			return bulb.getLabel();
+		}
+
+	};
+
+	private Fleet() {
+		// static only
+	}
+
+	/**
+	 * @param size the number of bulbs
+	 * @return a fleet of bulbs labeled "Bulb 0" to "Bulb {@code size - 1}"
+	 */
+	public static List<FakeBulb> create(int size) {
+		List<FakeBulb> ret = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			ret.add(new FakeBulb(
+					String.format("d073d5%06x", i),
+					"Bulb " + i));
+		}
+
+		return Collections.unmodifiableList(ret);
+	}
+
+	/**
+	 * Creates an in-memory cache holding every given bulb, as if each had
+	 * been seen on an earlier run through a single gateway. Nothing is
+	 * written to disk unless the cache is saved.
+	 * @param bulbs the bulbs to cache
+	 * @return the cache
+	 */
+	public static BulbCache cache(List<FakeBulb> bulbs) {
+		BulbCache ret = new BulbCache(new File("fleet.cache"));
+		for (FakeBulb b : bulbs) {
+			ret.update(b.getLabel(), b.getAddress(), "10.0.0.1");
+		}
+
+		return ret;
+	}
+
+	/**
+	 * @param bulbs the bulbs to register
+	 * @return a registry holding every given bulb
+	 */
+	public static BulbRegistry<FakeBulb> registry(List<FakeBulb> bulbs) {
+		BulbRegistry<FakeBulb> ret = new BulbRegistry<>(KEYS);
+		for (FakeBulb b : bulbs) {
+			ret.add(b);
+		}
+
+		return ret;
+	}
+
+}
@@ -0,0 +1,95 @@
+package org.timothyb89.lifx.tasker.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.timothyb89.lifx.tasker.benchmarks.Fleet.FakeBulb;
+import org.timothyb89.lifx.tasker.engine.BulbCache;
+import org.timothyb89.lifx.tasker.engine.BulbRegistry;
+import org.timothyb89.lifx.tasker.engine.BulbResolver;
+import org.timothyb89.lifx.tasker.engine.Metrics;
+
+/**
+ * Bulb name resolution through the engine's {@link BulbResolver}, as used by
+ * {@code LIFXEngine.findBulb()} and {@code findBulbs()}: look the name(s) up,
+ * falling back to cached addresses, and if anything is missing, re-index the
+ * registry and look again.
+ * @author tim
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResolutionBenchmark {
+
+	@Param({"1", "10", "100", "1000"})
+	public int bulbs;
+
+	private BulbResolver<FakeBulb> resolver;
+
+	private String label;
+	private String address;
+	private List<String> names;
+
+	@Setup
+	public void setup() {
+		List<FakeBulb> fleet = Fleet.create(bulbs);
+		BulbRegistry<FakeBulb> registry = Fleet.registry(fleet);
+
+		// seen on an earlier run, so misses also check the cache
+		BulbCache cache = Fleet.cache(fleet);
+		resolver = new BulbResolver<>(registry, cache, new Metrics());
+
+		FakeBulb last = fleet.get(fleet.size() - 1);
+		label = last.getLabel();
+		address = last.getAddress();
+
+		// a typical Tasker action names about a tenth of the fleet
+		names = new ArrayList<>();
+		for (int i = 0; i < fleet.size(); i += 10) {
+			names.add(fleet.get(i).getLabel());
+		}
+	}
+
+	@Benchmark
+	public FakeBulb singleByLabel() {
+		return resolver.search(label);
+	}
+
+	@Benchmark
+	public FakeBulb singleByAddress() {
+		return resolver.search(address);
+	}
+
+	@Benchmark
+	public FakeBulb singleMissing() {
+		return resolver.search("No Such Bulb");
+	}
+
+	@Benchmark
+	public List<FakeBulb> multi() {
+		return resolver.search(new ArrayList<>(names));
+	}
+
+	@Benchmark
+	public List<FakeBulb> multiOneMissing() {
+		List<String> remaining = new ArrayList<>(names);
+		remaining.add("No Such Bulb");
+
+		return resolver.search(remaining);
+	}
+
+}
@@ -0,0 +1,286 @@
+package org.timothyb89.lifx.tasker.daemon;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.timothyb89.lifx.bulb.Bulb;
+import org.timothyb89.lifx.tasker.engine.BulbKeys;
+import org.timothyb89.lifx.tasker.engine.DispatchResult;
+import org.timothyb89.lifx.tasker.engine.LIFXEngine;
+import org.timothyb89.lifx.tasker.engine.StateConfirmer;
+
+/**
+ * A single line of the control protocol, parsed. Commands mirror the plugin's
+ * actions:
+ * <pre>
+ *     on     [bulb, bulb, ...]
+ *     off    [bulb, bulb, ...]
+ *     toggle bulb, bulb, ...
+ *     color  rrggbb bulb, bulb, ...
+ *     pulse  rrggbb bulb, bulb, ...
+ *     bulbs
+ * </pre>
+ * Bulb names are separated by commas and may contain spaces. Without any
+ * bulbs, {@code on} and {@code off} apply to every bulb. Names that match no
+ * bulb are reported as {@code error unknown: ...}; the command is still sent
+ * to the bulbs that were found.
+ * @author tim
+ */
+public class ControlCommand {
+
+	public enum Type {
+
+		POWER_ON("on", false, false),
+		POWER_OFF("off", false, false),
+		POWER_TOGGLE("toggle", false, true),
+		COLOR_SET("color", true, true),
+		COLOR_PULSE("pulse", true, true),
+		LIST("bulbs", false, false);
+
+		private final String id;
+		private final boolean colored;
+		private final boolean needsBulbs;
+
+		private Type(String id, boolean colored, boolean needsBulbs) {
+			this.id = id;
+			this.colored = colored;
+			this.needsBulbs = needsBulbs;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public static Type forId(String id) {
+			for (Type t : values()) {
+				if (t.id.equalsIgnoreCase(id)) {
+					return t;
+				}
+			}
+
+			return null;
+		}
+
+	}
+
+	private final Type type;
+	private final int color;
+	private final String[] bulbs;
+
+	public ControlCommand(Type type, int color, String[] bulbs) {
+		this.type = type;
+		this.color = color;
+		this.bulbs = bulbs;
+	}
+
+	/**
+	 * Parses a single command line.
+	 * @param line the line to parse
+	 * @return the parsed command
+	 * @throws IllegalArgumentException if the line is not a valid command
+	 */
+	public static ControlCommand parse(String line) {
+		String rest = line.trim();
+
+		String id = next(rest);
+		rest = rest.substring(id.length()).trim();
+
+		Type type = Type.forId(id);
+		if (type == null) {
+			throw new IllegalArgumentException("unknown command: " + id);
+		}
+
+		int color = 0;
+		if (type.colored) {
+			String hex = next(rest);
+			rest = rest.substring(hex.length()).trim();
+
+			color = parseColor(hex);
+		}
+
+		String[] bulbs = splitBulbs(rest);
+		if (type.needsBulbs && bulbs.length == 0) {
+			throw new IllegalArgumentException(
+					type.getId() + " needs at least one bulb");
+		}
+
+		return new ControlCommand(type, color, bulbs);
+	}
+
+	private static String next(String s) {
+		int end = s.indexOf(' ');
+
+		return end < 0 ? s : s.substring(0, end);
+	}
+
+	private static int parseColor(String hex) {
+		if (hex.startsWith("#")) {
+			hex = hex.substring(1);
+		}
+
+		if (hex.length() != 6) {
+			throw new IllegalArgumentException("bad color: " + hex);
+		}
+
+		try {
+			return 0xFF000000 | Integer.parseInt(hex, 16);
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("bad color: " + hex);
+		}
+	}
+
+	private static String[] splitBulbs(String s) {
+		List<String> ret = new ArrayList<>();
+		for (String name : s.split(",")) {
+			name = name.trim();
+			if (!name.isEmpty()) {
+				ret.add(name);
+			}
+		}
+
+		return ret.toArray(new String[ret.size()]);
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public int getColor() {
+		return color;
+	}
+
+	public String[] getBulbs() {
+		return bulbs;
+	}
+
+	/**
+	 * Runs this command against the engine and waits for the bulbs it touched
+	 * to confirm their new state, as the plugin does for each action.
+	 * @param engine the engine to run against
+	 * @return the reply line
+	 */
+	public String execute(LIFXEngine engine) {
+		if (type == Type.LIST) {
+			return ("ok " + names(engine.getBulbs())).trim();
+		}
+
+		List<String> unknown = new ArrayList<>();
+		String[] names = resolve(engine, unknown);
+		if (bulbs.length > 0 && names.length == 0) {
+			return "error unknown:" + list(unknown);
+		}
+
+		DispatchResult<Bulb> result = null;
+		switch (type) {
+			case POWER_ON:
+				if (names.length == 0) {
+					engine.turnOn();
+				} else {
+					result = engine.turnOn(names);
+				}
+
+				break;
+			case POWER_OFF:
+				if (names.length == 0) {
+					engine.turnOff();
+				} else {
+					result = engine.turnOff(names);
+				}
+
+				break;
+			case POWER_TOGGLE: result = engine.toggle(  names);        break;
+			case COLOR_SET:    result = engine.setColor(names, color); break;
+			case COLOR_PULSE:  result = engine.pulse(   names, color); break;
+		}
+
+		// gateway-wide commands touch every bulb; otherwise confirm only our
+		// own targets so concurrent clients don't consume each other's
+		List<Bulb> targets = result == null
+				? engine.getBulbs()
+				: result.getTargets();
+
+		StateConfirmer.Confirmation<Bulb> confirmation;
+		confirmation = engine.confirm(targets);
+
+		StringBuilder sb = new StringBuilder();
+		if (unknown.isEmpty() && (result == null || result.isSuccess())) {
+			sb.append("ok");
+		} else {
+			sb.append("error");
+
+			if (result != null && !result.isSuccess()) {
+				sb.append(" failed:");
+				for (DispatchResult.Outcome<Bulb> o : result.getFailed()) {
+					sb.append(' ').append(o.getTarget().getLabel());
+				}
+			}
+
+			if (!unknown.isEmpty()) {
+				sb.append(" unknown:").append(list(unknown));
+			}
+		}
+
+		if (result != null) {
+			sb.append(" sent=").append(result.getSucceeded().size())
+					.append('/').append(result.getOutcomes().size())
+					.append(" elapsed=").append(result.getElapsed());
+		}
+
+		sb.append(" confirmed=").append(confirmation.isConfirmed());
+
+		return sb.toString();
+	}
+
+	/**
+	 * Looks up this command's bulbs, waiting for discovery as the engine
+	 * does, so only names that matched a bulb are sent on.
+	 * @param engine the engine to look bulbs up in
+	 * @param unknown filled with the names that matched no bulb
+	 * @return the names that matched a bulb
+	 */
+	private String[] resolve(LIFXEngine engine, List<String> unknown) {
+		if (bulbs.length == 0) {
+			return bulbs;
+		}
+
+		Set<String> found = new HashSet<>();
+		for (Bulb b : engine.findBulbs(bulbs)) {
+			found.add(BulbKeys.address(b));
+		}
+
+		List<String> ret = new ArrayList<>();
+		for (String name : bulbs) {
+			if (found.contains(engine.getKey(name))) {
+				ret.add(name);
+			} else {
+				unknown.add(name);
+			}
+		}
+
+		return ret.toArray(new String[ret.size()]);
+	}
+
+	private static String list(List<String> names) {
+		StringBuilder sb = new StringBuilder();
+		for (String name : names) {
+			sb.append(' ').append(name);
+		}
+
+		return sb.toString();
+	}
+
+	private static String names(List<Bulb> bulbs) {
+		StringBuilder sb = new StringBuilder();
+		for (Bulb b : bulbs) {
+			if (sb.length() > 0) {
+				sb.append(", ");
+			}
+
+			sb.append(b.getLabel());
+		}
+
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,220 @@
+package org.timothyb89.lifx.tasker.daemon;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.timothyb89.lifx.tasker.engine.LIFXEngine;
+
+/**
+ * Accepts {@link ControlCommand}s over TCP, one per line, and replies to each
+ * with a single line starting with {@code ok} or {@code error}. Clients may
+ * keep a connection open and send any number of commands on it; each
+ * connection is served on its own thread, so several clients (or phones) can
+ * share the engine at once.
+ * <p>
+ * Two extra commands are handled here: {@code metrics} replies with the
+ * engine's metrics dump, terminated by a line holding a single {@code .},
+ * and {@code quit} closes the connection.
+ * @author tim
+ */
+public class ControlServer {
+
+	private static final Logger log
+			= LoggerFactory.getLogger(ControlServer.class);
+
+	private final LIFXEngine engine;
+	private final InetSocketAddress address;
+
+	private final ExecutorService workers;
+	private final Set<Socket> connections;
+
+	private ServerSocket server;
+
+	/**
+	 * @param engine the engine commands are run against
+	 * @param address the address to listen on; use a loopback address unless
+	 *     the network is trusted, as there is no authentication
+	 */
+	public ControlServer(LIFXEngine engine, InetSocketAddress address) {
+		this.engine = engine;
+		this.address = address;
+
+		workers = Executors.newCachedThreadPool(new ThreadFactory() {
+
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "control-" + count.incrementAndGet());
+				t.setDaemon(true);
+
+				return t;
+			}
+
+		});
+
+		connections = Collections.synchronizedSet(new HashSet<Socket>());
+	}
+
+	/**
+	 * Binds the control socket and starts accepting connections.
+	 * @throws IOException if the socket can't be bound
+	 */
+	public synchronized void start() throws IOException {
+		server = new ServerSocket();
+		server.setReuseAddress(true);
+		server.bind(address);
+
+		log.info("Control server listening on {}", server.getLocalSocketAddress());
+
+		workers.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				accept();
+			}
+
+		});
+	}
+
+	/**
+	 * Closes the control socket and every open connection.
+	 */
+	public synchronized void stop() {
+		try {
+			if (server != null) {
+				server.close();
+			}
+		} catch (IOException ex) {} // ignore
+
+		// close() removes from the set, so iterate over a copy
+		List<Socket> open;
+		synchronized (connections) {
+			open = new ArrayList<>(connections);
+		}
+
+		for (Socket s : open) {
+			close(s);
+		}
+
+		workers.shutdownNow();
+	}
+
+	/**
+	 * @return the port the control socket is bound to
+	 */
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	private void accept() {
+		while (!server.isClosed()) {
+			final Socket s;
+			try {
+				s = server.accept();
+			} catch (SocketException ex) {
+				// closed by stop()
+				return;
+			} catch (IOException ex) {
+				log.error("Error accepting control connection", ex);
+				continue;
+			}
+
+			connections.add(s);
+
+			try {
+				workers.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						serve(s);
+					}
+
+				});
+			} catch (RejectedExecutionException ex) {
+				close(s);
+			}
+		}
+	}
+
+	private void serve(Socket s) {
+		log.debug("Control connection from {}", s.getRemoteSocketAddress());
+
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					s.getInputStream(), "UTF-8"));
+			Writer out = new OutputStreamWriter(s.getOutputStream(), "UTF-8");
+
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty()) {
+					continue;
+				}
+
+				if (line.equalsIgnoreCase("quit")) {
+					break;
+				}
+
+				if (line.equalsIgnoreCase("metrics")) {
+					engine.getMetrics().dump(out);
+					out.write(".\n");
+				} else {
+					out.write(handle(line) + "\n");
+				}
+
+				out.flush();
+			}
+		} catch (IOException ex) {
+			log.debug("Control connection closed: {}", ex.getMessage());
+		} finally {
+			close(s);
+		}
+	}
+
+	private String handle(String line) {
+		ControlCommand command;
+		try {
+			command = ControlCommand.parse(line);
+		} catch (IllegalArgumentException ex) {
+			return "error " + ex.getMessage();
+		}
+
+		log.info("Control command: {}", line);
+
+		try {
+			return command.execute(engine);
+		} catch (RuntimeException ex) {
+			log.error("Error running control command: " + line, ex);
+
+			return "error " + ex;
+		}
+	}
+
+	private void close(Socket s) {
+		connections.remove(s);
+
+		try {
+			s.close();
+		} catch (IOException ex) {} // ignore
+	}
+
+}
@@ -0,0 +1,218 @@
+package org.timothyb89.lifx.tasker.daemon;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.timothyb89.lifx.tasker.engine.BulbCache;
+import org.timothyb89.lifx.tasker.engine.LIFXEngine;
+
+/**
+ * Runs a {@link LIFXEngine} as a long-lived, shared controller.
+ * <p>
+ * Unlike the plugin, which binds the LIFX port per action and lets it go
+ * after an idle timeout, the daemon holds the socket for as long as it runs
+ * and periodically refreshes every gateway. Commands arriving through the
+ * {@link ControlServer} therefore always find a bound socket and a warm
+ * registry, and never wait on discovery. Discovery is rerun every
+ * {@link #REDISCOVER_INTERVAL} to pick up new gateways and reconnect to any
+ * that failed a refresh, e.g. after a reboot.
+ * <p>
+ * Embedding hosts create the engine with their transport and register the
+ * engine on that transport's event bus, as {@code LIFXService} does, before
+ * handing it to the daemon. {@link #main(String[])} runs it standalone on a
+ * plain JVM through a {@link UdpTransport}.
+ * @author tim
+ */
+public class Daemon {
+
+	private static final Logger log = LoggerFactory.getLogger(Daemon.class);
+
+	public static final int DEFAULT_PORT = 56780;
+
+	public static final long REFRESH_INTERVAL = 60000; // milliseconds
+	public static final long REDISCOVER_INTERVAL = 300000;
+
+	private final LIFXEngine engine;
+	private final ControlServer server;
+	private final ScheduledExecutorService refresher;
+
+	private boolean running;
+
+	/**
+	 * Creates a daemon listening for commands on the loopback interface at
+	 * {@link #DEFAULT_PORT}.
+	 * @param engine the engine to run
+	 */
+	public Daemon(LIFXEngine engine) {
+		this(engine, new InetSocketAddress(
+				InetAddress.getLoopbackAddress(), DEFAULT_PORT));
+	}
+
+	/**
+	 * @param engine the engine to run
+	 * @param address the address to accept control connections on
+	 */
+	public Daemon(LIFXEngine engine, InetSocketAddress address) {
+		this.engine = engine;
+
+		server = new ControlServer(engine, address);
+
+		refresher = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "daemon-refresh");
+				t.setDaemon(true);
+
+				return t;
+			}
+
+		});
+	}
+
+	/**
+	 * Starts discovery, pins the socket and opens the control socket.
+	 * @throws IOException if the control socket can't be bound
+	 */
+	public synchronized void start() throws IOException {
+		if (running) {
+			return;
+		}
+
+		engine.start();
+
+		// never released until stop(), so the port stays bound
+		engine.acquireSocket();
+
+		refresher.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					engine.refreshAll();
+				} catch (RuntimeException ex) {
+					log.error("Error refreshing gateways", ex);
+				}
+			}
+
+		}, REFRESH_INTERVAL, REFRESH_INTERVAL, TimeUnit.MILLISECONDS);
+
+		// the socket never goes idle, so discovery won't rerun on its own
+		refresher.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				engine.backgroundTimedListen();
+			}
+
+		}, REDISCOVER_INTERVAL, REDISCOVER_INTERVAL, TimeUnit.MILLISECONDS);
+
+		server.start();
+		running = true;
+
+		log.info("Daemon started");
+	}
+
+	/**
+	 * Closes the control socket, releases the LIFX port and shuts the engine
+	 * down.
+	 */
+	public synchronized void stop() {
+		if (!running) {
+			return;
+		}
+
+		running = false;
+
+		try {
+			server.stop();
+			refresher.shutdownNow();
+		} finally {
+			// always let the LIFX port go, even if the control server
+			// didn't stop cleanly
+			engine.releaseSocket();
+			engine.closeSocket();
+			engine.shutdown();
+		}
+
+		log.info("Daemon stopped");
+	}
+
+	/**
+	 * Stops the daemon when the JVM exits, e.g. on SIGTERM from the service
+	 * manager.
+	 */
+	public void stopOnExit() {
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				stop();
+			}
+
+		}, "daemon-shutdown"));
+	}
+
+	public LIFXEngine getEngine() {
+		return engine;
+	}
+
+	public ControlServer getServer() {
+		return server;
+	}
+
+	private static void usage() {
+		System.err.println("usage: Daemon [-host address] [-port n] "
+				+ "[-cache file] [-broadcast address]");
+		System.exit(1);
+	}
+
+	/**
+	 * Runs the daemon until the JVM is stopped.
+	 * @param args command line options, see {@link #usage()}
+	 * @throws Exception if the daemon can't be started
+	 */
+	public static void main(String[] args) throws Exception {
+		InetAddress host = InetAddress.getLoopbackAddress();
+		int port = DEFAULT_PORT;
+		File cache = new File("bulbs.cache");
+		InetAddress broadcast = InetAddress.getByName("255.255.255.255");
+
+		if (args.length % 2 != 0) {
+			usage();
+		}
+
+		for (int i = 0; i < args.length; i += 2) {
+			String value = args[i + 1];
+			switch (args[i]) {
+				case "-host":      host = InetAddress.getByName(value); break;
+				case "-port":      port = Integer.parseInt(value); break;
+				case "-cache":     cache = new File(value); break;
+				case "-broadcast": broadcast = InetAddress.getByName(value); break;
+				default:           usage();
+			}
+		}
+
+		UdpTransport transport = new UdpTransport(
+				broadcast, LIFXEngine.GATEWAY_PORT);
+		LIFXEngine engine = new LIFXEngine(transport, new BulbCache(cache));
+		transport.setEngine(engine);
+
+		Daemon daemon = new Daemon(engine, new InetSocketAddress(host, port));
+		daemon.stopOnExit();
+		daemon.start();
+
+		// everything else runs on daemon threads
+		new CountDownLatch(1).await();
+	}
+
+}
@@ -0,0 +1,233 @@
+package org.timothyb89.lifx.tasker.daemon;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.timothyb89.lifx.gateway.Gateway;
+import org.timothyb89.lifx.tasker.engine.Gateways;
+import org.timothyb89.lifx.tasker.engine.LIFXEngine;
+
+/**
+ * A plain-JVM {@link LIFXEngine.Transport}, for hosts without lifx-java's
+ * Android-only {@code BroadcastListener}.
+ * <p>
+ * While discovering, a gateway probe is broadcast on the LIFX port every
+ * {@link #PROBE_INTERVAL}. Each gateway that answers is connected to as a
+ * lifx-java {@link Gateway} and handed to the engine, which takes it from
+ * there exactly as it does on Android. Each discovery run starts afresh, so a
+ * gateway the engine no longer holds a live connection to (e.g. one that has
+ * rebooted) is connected to again when it next answers.
+ * @author tim
+ */
+public class UdpTransport implements LIFXEngine.Transport {
+
+	private static final Logger log
+			= LoggerFactory.getLogger(UdpTransport.class);
+
+	public static final long PROBE_INTERVAL = 500; // milliseconds
+
+	private static final int HEADER_SIZE = 36;
+	private static final int PROTOCOL_TAGGED = 0x3400;
+	private static final int GET_PAN_GATEWAY = 0x02;
+	private static final int PAN_GATEWAY = 0x03;
+
+	private final InetAddress broadcast;
+	private final int port;
+
+	private final Set<InetAddress> answered;
+
+	private volatile LIFXEngine engine;
+
+	private DatagramSocket socket;
+	private volatile boolean discovering;
+
+	/**
+	 * Creates a transport broadcasting to 255.255.255.255 on the LIFX port.
+	 * @throws IOException if the broadcast address can't be resolved
+	 */
+	public UdpTransport() throws IOException {
+		this(InetAddress.getByName("255.255.255.255"),
+				LIFXEngine.GATEWAY_PORT);
+	}
+
+	/**
+	 * @param broadcast the address to send gateway probes to
+	 * @param port the LIFX port
+	 */
+	public UdpTransport(InetAddress broadcast, int port) {
+		this.broadcast = broadcast;
+		this.port = port;
+
+		answered = Collections.newSetFromMap(
+				new ConcurrentHashMap<InetAddress, Boolean>());
+	}
+
+	/**
+	 * @param engine the engine to hand discovered gateways to
+	 */
+	public void setEngine(LIFXEngine engine) {
+		this.engine = engine;
+	}
+
+	@Override
+	public synchronized void startListen() throws IOException {
+		if (socket == null || socket.isClosed()) {
+			DatagramSocket s = new DatagramSocket(null);
+			s.setReuseAddress(true);
+			s.setBroadcast(true);
+			s.bind(new InetSocketAddress(port));
+
+			socket = s;
+
+			thread("transport-receive", new Runnable() {
+
+				@Override
+				public void run() {
+					receiveLoop();
+				}
+
+			});
+		}
+
+		if (discovering) {
+			return;
+		}
+
+		discovering = true;
+		answered.clear();
+
+		thread("transport-probe", new Runnable() {
+
+			@Override
+			public void run() {
+				probeLoop();
+			}
+
+		});
+	}
+
+	@Override
+	public void stopDiscovery() {
+		discovering = false;
+	}
+
+	@Override
+	public synchronized void stopListen() {
+		discovering = false;
+
+		if (socket != null) {
+			socket.close();
+			socket = null;
+		}
+	}
+
+	@Override
+	public synchronized boolean isListening() {
+		return socket != null && !socket.isClosed();
+	}
+
+	@Override
+	public Gateway connect(String address) throws IOException {
+		return Gateways.connect(InetAddress.getByName(address), port);
+	}
+
+	private synchronized DatagramSocket getSocket() {
+		return socket;
+	}
+
+	private void probeLoop() {
+		byte[] probe = ByteBuffer.allocate(HEADER_SIZE)
+				.order(ByteOrder.LITTLE_ENDIAN)
+				.putShort((short) HEADER_SIZE)
+				.putShort((short) PROTOCOL_TAGGED)
+				.putShort(32, (short) GET_PAN_GATEWAY)
+				.array();
+
+		while (discovering) {
+			DatagramSocket s = getSocket();
+			if (s == null) {
+				return;
+			}
+
+			try {
+				s.send(new DatagramPacket(
+						probe, probe.length, broadcast, port));
+
+				Thread.sleep(PROBE_INTERVAL);
+			} catch (InterruptedException ex) {
+				return;
+			} catch (IOException ex) {
+				log.warn("Unable to send gateway probe", ex);
+				return;
+			}
+		}
+	}
+
+	private void receiveLoop() {
+		DatagramSocket s = getSocket();
+		byte[] buffer = new byte[1024];
+
+		while (s != null && !s.isClosed()) {
+			DatagramPacket dp = new DatagramPacket(buffer, buffer.length);
+			try {
+				s.receive(dp);
+			} catch (SocketException ex) {
+				return; // closed
+			} catch (IOException ex) {
+				log.warn("Error receiving packet", ex);
+				continue;
+			}
+
+			ByteBuffer b = ByteBuffer.wrap(buffer, 0, dp.getLength())
+					.order(ByteOrder.LITTLE_ENDIAN);
+			if (dp.getLength() < HEADER_SIZE + 5
+					|| (b.getShort(32) & 0xFFFF) != PAN_GATEWAY) {
+				// our own probe echoed back, or bulb chatter
+				continue;
+			}
+
+			// payload: service (1 byte), then port (4 bytes)
+			gatewayAnswered(dp.getAddress(), b.getInt(HEADER_SIZE + 1));
+		}
+	}
+
+	private void gatewayAnswered(InetAddress from, int gatewayPort) {
+		if (!answered.add(from)) {
+			return;
+		}
+
+		LIFXEngine e = engine;
+		if (e != null && e.isConnected(from)) {
+			// still connected from an earlier run
+			return;
+		}
+
+		try {
+			Gateway gateway = Gateways.connect(from, gatewayPort);
+
+			if (e != null) {
+				e.gatewayDiscovered(gateway);
+			}
+		} catch (IOException ex) {
+			log.warn("Unable to connect to gateway " + from, ex);
+			answered.remove(from);
+		}
+	}
+
+	private static void thread(String name, Runnable r) {
+		Thread t = new Thread(r, name);
+		t.setDaemon(true);
+		t.start();
+	}
+
+}
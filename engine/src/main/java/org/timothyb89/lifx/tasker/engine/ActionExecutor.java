@@ -0,0 +1,241 @@
+package org.timothyb89.lifx.tasker.engine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs actions concurrently while keeping the actions on any one bulb in the
+ * order they were submitted.
+ * <p>
+ * Each action names the keys (normally bulb labels) it touches. An action
+ * waits for every earlier action sharing one of its keys, and for nothing
+ * else, so actions on disjoint bulbs run side by side. An action with no
+ * keys (e.g. one addressing every bulb) waits for everything submitted
+ * before it, and everything submitted after it waits for it.
+ * <p>
+ * Queue depth and the time actions spend waiting to start are recorded in
+ * the given {@link Metrics} as {@code actions.queued},
+ * {@code actions.running} and {@code actions.wait}.
+ * @author tim
+ */
+public class ActionExecutor {
+
+	private static final Logger log
+			= LoggerFactory.getLogger(ActionExecutor.class);
+
+	public static final int DEFAULT_THREADS = 4;
+
+	private class Task implements Runnable {
+
+		private final Runnable action;
+		private final Set<String> keys;
+		private final long submitted;
+
+		private final List<Task> dependents;
+		private int pending;
+
+		public Task(Runnable action, Set<String> keys) {
+			this.action = action;
+			this.keys = keys;
+
+			submitted = System.nanoTime();
+			dependents = new ArrayList<>();
+		}
+
+		@Override
+		public void run() {
+			queued.decrementAndGet();
+			running.incrementAndGet();
+
+			metrics.histogram("actions.wait").record(
+					(System.nanoTime() - submitted) / 1000000);
+
+			try {
+				action.run();
+			} catch (RuntimeException ex) {
+				log.error("Error running action", ex);
+			} finally {
+				running.decrementAndGet();
+
+				finished(this);
+			}
+		}
+
+	}
+
+	private final ExecutorService executor;
+	private final Metrics metrics;
+
+	private final Map<String, Task> tails;
+	private Task barrier;
+
+	private final AtomicInteger queued;
+	private final AtomicInteger running;
+
+	/**
+	 * @param metrics where queue depth and wait times are recorded
+	 */
+	public ActionExecutor(Metrics metrics) {
+		this(DEFAULT_THREADS, metrics);
+	}
+
+	/**
+	 * @param threads the maximum number of actions to run concurrently
+	 * @param metrics where queue depth and wait times are recorded
+	 */
+	public ActionExecutor(int threads, Metrics metrics) {
+		this.metrics = metrics;
+
+		executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "action-" + count.incrementAndGet());
+				t.setDaemon(true);
+
+				return t;
+			}
+
+		});
+
+		tails = new HashMap<>();
+
+		queued = new AtomicInteger();
+		running = new AtomicInteger();
+
+		metrics.gauge("actions.queued", new Metrics.Gauge() {
+
+			@Override
+			public long getValue() {
+				return queued.get();
+			}
+
+		});
+
+		metrics.gauge("actions.running", new Metrics.Gauge() {
+
+			@Override
+			public long getValue() {
+				return running.get();
+			}
+
+		});
+	}
+
+	/**
+	 * Queues an action. It runs once every earlier action sharing one of its
+	 * keys has finished.
+	 * @param keys the keys the action touches, or an empty collection to
+	 *     order it against every other action
+	 * @param action the action to run
+	 */
+	public void submit(Collection<String> keys, Runnable action) {
+		Task task = new Task(action, new HashSet<>(keys));
+		queued.incrementAndGet();
+
+		synchronized (this) {
+			Set<Task> waitFor = new HashSet<>();
+			if (barrier != null) {
+				waitFor.add(barrier);
+			}
+
+			if (task.keys.isEmpty()) {
+				waitFor.addAll(tails.values());
+
+				tails.clear();
+				barrier = task;
+			} else {
+				for (String key : task.keys) {
+					Task tail = tails.put(key, task);
+					if (tail != null) {
+						waitFor.add(tail);
+					}
+				}
+			}
+
+			for (Task t : waitFor) {
+				t.dependents.add(task);
+			}
+
+			task.pending = waitFor.size();
+			if (task.pending > 0) {
+				return;
+			}
+		}
+
+		start(task);
+	}
+
+	/**
+	 * @return the number of actions submitted but not yet started
+	 */
+	public int getQueueDepth() {
+		return queued.get();
+	}
+
+	/**
+	 * @return the number of actions currently running
+	 */
+	public int getRunning() {
+		return running.get();
+	}
+
+	/**
+	 * Stops the executor. Queued actions are abandoned.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private void finished(Task task) {
+		List<Task> ready = new ArrayList<>();
+
+		synchronized (this) {
+			for (String key : task.keys) {
+				if (tails.get(key) == task) {
+					tails.remove(key);
+				}
+			}
+
+			if (barrier == task) {
+				barrier = null;
+			}
+
+			for (Task t : task.dependents) {
+				t.pending--;
+				if (t.pending == 0) {
+					ready.add(t);
+				}
+			}
+
+			task.dependents.clear();
+		}
+
+		for (Task t : ready) {
+			start(t);
+		}
+	}
+
+	private void start(Task task) {
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException ex) {
+			log.debug("Executor shut down, dropping action");
+		}
+	}
+
+}
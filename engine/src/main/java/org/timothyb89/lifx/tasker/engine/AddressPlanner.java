@@ -0,0 +1,183 @@
+package org.timothyb89.lifx.tasker.engine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides how to address a command aimed at a set of bulbs. Where the targets
+ * include every bulb behind a gateway, a single gateway-wide command is used
+ * in place of one unicast command per bulb; everything else is sent unicast.
+ * @param <B> the bulb type
+ * @param <G> the gateway type
+ * @author tim
+ */
+public class AddressPlanner<B, G> {
+
+	/**
+	 * Describes which gateway each bulb sits behind.
+	 * @param <B> the bulb type
+	 * @param <G> the gateway type
+	 */
+	public interface Topology<B, G> {
+
+		/**
+		 * @param bulb the bulb
+		 * @return the bulb's gateway, or null if unknown
+		 */
+		G getGateway(B bulb);
+
+		/**
+		 * @param gateway the gateway
+		 * @return every bulb behind the gateway
+		 */
+		Collection<B> getBulbs(G gateway);
+
+	}
+
+	/**
+	 * A single send: either a gateway-wide command covering several bulbs, or
+	 * a unicast command to one bulb.
+	 * @param <B> the bulb type
+	 * @param <G> the gateway type
+	 */
+	public static class Group<B, G> {
+
+		private final G gateway;
+		private final List<B> bulbs;
+		private final boolean broadcast;
+
+		public Group(G gateway, List<B> bulbs, boolean broadcast) {
+			this.gateway = gateway;
+			this.bulbs = Collections.unmodifiableList(bulbs);
+			this.broadcast = broadcast;
+		}
+
+		/**
+		 * @return the gateway this group is sent through, may be null for
+		 *     unicast groups
+		 */
+		public G getGateway() {
+			return gateway;
+		}
+
+		/**
+		 * @return the bulbs this group covers; exactly one for unicast groups
+		 */
+		public List<B> getBulbs() {
+			return bulbs;
+		}
+
+		public boolean isBroadcast() {
+			return broadcast;
+		}
+
+		@Override
+		public String toString() {
+			if (broadcast) {
+				return "Group[" + gateway + ": all " + bulbs.size() + " bulbs]";
+			} else {
+				return "Group[" + bulbs.get(0) + "]";
+			}
+		}
+
+	}
+
+	private final Topology<B, G> topology;
+
+	public AddressPlanner(Topology<B, G> topology) {
+		this.topology = topology;
+	}
+
+	/**
+	 * Plans the sends needed to reach every target.
+	 * @param targets the bulbs to address
+	 * @return the groups to send, gateway-wide groups first
+	 */
+	public List<Group<B, G>> plan(Collection<B> targets) {
+		Map<G, List<B>> byGateway = new LinkedHashMap<>();
+		List<B> orphans = new ArrayList<>();
+
+		for (B bulb : targets) {
+			G gateway = topology.getGateway(bulb);
+			if (gateway == null) {
+				orphans.add(bulb);
+				continue;
+			}
+
+			List<B> list = byGateway.get(gateway);
+			if (list == null) {
+				list = new ArrayList<>();
+				byGateway.put(gateway, list);
+			}
+
+			list.add(bulb);
+		}
+
+		List<Group<B, G>> broadcast = new ArrayList<>();
+		List<Group<B, G>> unicast = new ArrayList<>();
+
+		for (Map.Entry<G, List<B>> e : byGateway.entrySet()) {
+			G gateway = e.getKey();
+			List<B> bulbs = e.getValue();
+
+			if (covers(bulbs, topology.getBulbs(gateway))) {
+				broadcast.add(new Group<>(gateway, bulbs, true));
+			} else {
+				for (B b : bulbs) {
+					unicast.add(new Group<>(gateway, single(b), false));
+				}
+			}
+		}
+
+		for (B b : orphans) {
+			unicast.add(new Group<B, G>(null, single(b), false));
+		}
+
+		List<Group<B, G>> ret = new ArrayList<>(broadcast);
+		ret.addAll(unicast);
+
+		return ret;
+	}
+
+	/**
+	 * Expands the result of dispatching planned groups into per-bulb results.
+	 * Each bulb in a gateway-wide group shares that group's outcome.
+	 * @param <B> the bulb type
+	 * @param <G> the gateway type
+	 * @param result the per-group result
+	 * @return the per-bulb result
+	 */
+	public static <B, G> DispatchResult<B> expand(
+			DispatchResult<Group<B, G>> result) {
+		List<DispatchResult.Outcome<B>> outcomes = new ArrayList<>();
+		for (DispatchResult.Outcome<Group<B, G>> o : result.getOutcomes()) {
+			for (B bulb : o.getTarget().getBulbs()) {
+				outcomes.add(new DispatchResult.Outcome<>(
+						bulb, o.getError(), o.getLatency()));
+			}
+		}
+
+		return new DispatchResult<>(outcomes, result.getElapsed());
+	}
+
+	private static <B> boolean covers(List<B> targets, Collection<B> all) {
+		if (all == null || all.isEmpty() || targets.size() < all.size()) {
+			return false;
+		}
+
+		return new HashSet<>(targets).containsAll(all);
+	}
+
+	private static <B> List<B> single(B bulb) {
+		List<B> ret = new ArrayList<>(1);
+		ret.add(bulb);
+
+		return ret;
+	}
+
+}
@@ -0,0 +1,274 @@
+package org.timothyb89.lifx.tasker.engine;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A persistent record of the bulbs and gateways found by previous discovery
+ * runs. This lets a freshly started service reconnect to the gateways it
+ * used last time without waiting for discovery, and resolve a label to the
+ * bulb's address before the bulb has reported its label again.
+ * <p>
+ * Entries are tagged with the network they were seen on, and lookups only
+ * consider entries from the current network (see {@link #setNetwork(String)}).
+ * <p>
+ * The cache is stored as a simple tab-separated file, one bulb per line.
+ * @author tim
+ */
+public class BulbCache {
+
+	private static final Logger log = LoggerFactory.getLogger(BulbCache.class);
+
+	/**
+	 * Entries not seen for this long are dropped when the cache is loaded.
+	 */
+	public static final long MAX_AGE = 30L * 24 * 60 * 60 * 1000;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File file;
+
+	private final Map<String, KnownBulb> bulbs;
+	private boolean dirty;
+
+	private String network;
+
+	public BulbCache(File file) {
+		this.file = file;
+
+		bulbs = new HashMap<>();
+	}
+
+	/**
+	 * @return the file the cache is stored in
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Loads cached bulbs from disk, replacing any entries held in memory.
+	 * Missing or malformed files are treated as empty.
+	 */
+	public synchronized void load() {
+		bulbs.clear();
+		dirty = false;
+
+		if (!file.exists()) {
+			return;
+		}
+
+		long cutoff = System.currentTimeMillis() - MAX_AGE;
+
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), UTF8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				KnownBulb bulb = parse(line);
+				if (bulb == null) {
+					log.warn("Skipping malformed cache line: {}", line);
+					continue;
+				}
+
+				if (bulb.getLastSeen() < cutoff) {
+					dirty = true;
+					continue;
+				}
+
+				bulbs.put(bulb.getAddress(), bulb);
+			}
+		} catch (IOException ex) {
+			log.error("Unable to load bulb cache", ex);
+		}
+
+		log.info("Loaded {} cached bulbs", bulbs.size());
+	}
+
+	/**
+	 * Writes the cache to disk if it has changed since it was last loaded or
+	 * saved.
+	 */
+	public synchronized void save() {
+		if (!dirty) {
+			return;
+		}
+
+		File temp = new File(file.getPath() + ".tmp");
+		try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(temp), UTF8))) {
+			for (KnownBulb b : bulbs.values()) {
+				writer.write(format(b));
+				writer.newLine();
+			}
+		} catch (IOException ex) {
+			log.error("Unable to save bulb cache", ex);
+			return;
+		}
+
+		if (!temp.renameTo(file)) {
+			log.error("Unable to replace bulb cache file {}", file);
+			return;
+		}
+
+		dirty = false;
+	}
+
+	/**
+	 * Sets the network that lookups and updates apply to. Entries with no
+	 * recorded network are treated as belonging to every network.
+	 * @param network the current network key, or null if unknown
+	 */
+	public synchronized void setNetwork(String network) {
+		this.network = network;
+	}
+
+	/**
+	 * Records that a bulb was just seen on the current network.
+	 * @param label the bulb's current label
+	 * @param address the bulb's MAC address
+	 * @param gatewayAddress the address of the gateway the bulb was seen on
+	 */
+	public synchronized void update(
+			String label, String address, String gatewayAddress) {
+		if (address == null) {
+			return;
+		}
+
+		bulbs.put(address, new KnownBulb(
+				label, address, gatewayAddress, network,
+				System.currentTimeMillis()));
+		dirty = true;
+	}
+
+	/**
+	 * @return true if no bulbs are known on the current network
+	 */
+	public synchronized boolean isEmpty() {
+		for (KnownBulb b : bulbs.values()) {
+			if (isCurrent(b)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	public synchronized int size() {
+		return bulbs.size();
+	}
+
+	/**
+	 * Checks if a bulb with the given label or address has been seen before
+	 * on the current network. Labels are compared case-insensitively.
+	 * @param name the label or address to check
+	 * @return true if a matching bulb is known
+	 */
+	public synchronized boolean isKnown(String name) {
+		return resolve(name) != null;
+	}
+
+	/**
+	 * Finds the cached entry for a bulb on the current network, by label or by
+	 * MAC address. Labels are compared case-insensitively, and addresses may
+	 * be written with or without separators.
+	 * @param name the label or address to look up
+	 * @return the cached entry, or null if no matching bulb is known
+	 */
+	public synchronized KnownBulb resolve(String name) {
+		String key = BulbKeys.label(name);
+		if (key == null) {
+			return null;
+		}
+
+		String address = key.replace(":", "").replace("-", "");
+		KnownBulb ret = bulbs.get(address);
+		if (ret != null && isCurrent(ret)) {
+			return ret;
+		}
+
+		for (KnownBulb b : bulbs.values()) {
+			if (isCurrent(b) && key.equals(BulbKeys.label(b.getLabel()))) {
+				return b;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return the addresses of every gateway a known bulb was seen on, on the
+	 *     current network
+	 */
+	public synchronized Set<String> getGatewayAddresses() {
+		Set<String> ret = new HashSet<>();
+		for (KnownBulb b : bulbs.values()) {
+			if (isCurrent(b) && b.getGatewayAddress() != null) {
+				ret.add(b.getGatewayAddress());
+			}
+		}
+
+		return ret;
+	}
+
+	public synchronized List<KnownBulb> getBulbs() {
+		return new ArrayList<>(bulbs.values());
+	}
+
+	private boolean isCurrent(KnownBulb b) {
+		return b.getNetwork() == null || b.getNetwork().equals(network);
+	}
+
+	private static String format(KnownBulb b) {
+		return clean(b.getAddress()) + "\t"
+				+ clean(b.getGatewayAddress()) + "\t"
+				+ b.getLastSeen() + "\t"
+				+ clean(b.getNetwork()) + "\t"
+				+ clean(b.getLabel());
+	}
+
+	private static KnownBulb parse(String line) {
+		// the label goes last so it may safely contain anything but newlines
+		String[] parts = line.split("\t", 5);
+		if (parts.length < 5 || parts[0].isEmpty()) {
+			return null;
+		}
+
+		String network = parts[3].isEmpty() ? null : parts[3];
+		String label = parts[4];
+
+		long lastSeen;
+		try {
+			lastSeen = Long.parseLong(parts[2]);
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+
+		String gateway = parts[1].isEmpty() ? null : parts[1];
+
+		return new KnownBulb(label, parts[0], gateway, network, lastSeen);
+	}
+
+	private static String clean(String value) {
+		if (value == null) {
+			return "";
+		}
+
+		return value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+	}
+
+}
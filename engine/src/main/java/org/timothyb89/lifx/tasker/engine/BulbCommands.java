@@ -0,0 +1,95 @@
+package org.timothyb89.lifx.tasker.engine;
+
+import java.io.IOException;
+import org.timothyb89.lifx.bulb.Bulb;
+import org.timothyb89.lifx.bulb.LIFXColor;
+import org.timothyb89.lifx.bulb.PowerState;
+
+/**
+ * Common per-bulb commands for use with a {@link CommandDispatcher}.
+ * @author tim
+ */
+public class BulbCommands {
+
+	private static final CommandDispatcher.Command<Bulb> TURN_ON
+			= new CommandDispatcher.Command<Bulb>() {
+
+		@Override
+		public void execute(Bulb bulb) throws IOException {
+			bulb.turnOn();
+		}
+
+	};
+
+	private static final CommandDispatcher.Command<Bulb> TURN_OFF
+			= new CommandDispatcher.Command<Bulb>() {
+
+		@Override
+		public void execute(Bulb bulb) throws IOException {
+			bulb.turnOff();
+		}
+
+	};
+
+	private static final CommandDispatcher.Command<Bulb> TOGGLE
+			= new CommandDispatcher.Command<Bulb>() {
+
+		@Override
+		public void execute(Bulb bulb) throws IOException {
+			if (bulb.getPowerState() == PowerState.ON) {
+				bulb.turnOff();
+			} else {
+				bulb.turnOn();
+			}
+		}
+
+	};
+
+	/**
+	 * Sets a bulb's color. The color is exposed so the sent value can be
+	 * confirmed.
+	 */
+	public static class SetColor implements CommandDispatcher.Command<Bulb> {
+
+		private final LIFXColor color;
+
+		public SetColor(LIFXColor color) {
+			this.color = color;
+		}
+
+		public LIFXColor getColor() {
+			return color;
+		}
+
+		@Override
+		public void execute(Bulb bulb) throws IOException {
+			bulb.setColor(color);
+		}
+
+	}
+
+	private BulbCommands() {
+		// static only
+	}
+
+	public static CommandDispatcher.Command<Bulb> turnOn() {
+		return TURN_ON;
+	}
+
+	public static CommandDispatcher.Command<Bulb> turnOff() {
+		return TURN_OFF;
+	}
+
+	public static CommandDispatcher.Command<Bulb> toggle() {
+		return TOGGLE;
+	}
+
+	/**
+	 * @param color the color to set
+	 * @return a command setting each bulb to the given color
+	 */
+	public static SetColor setColor(LIFXColor color) {
+		return new SetColor(color);
+	}
+
+}
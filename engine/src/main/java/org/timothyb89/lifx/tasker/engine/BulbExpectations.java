@@ -0,0 +1,114 @@
+package org.timothyb89.lifx.tasker.engine;
+
+import org.timothyb89.lifx.bulb.Bulb;
+import org.timothyb89.lifx.bulb.LIFXColor;
+import org.timothyb89.lifx.bulb.PowerState;
+
+/**
+ * Common per-bulb expectations for use with a {@link StateConfirmer}.
+ * @author tim
+ */
+public class BulbExpectations {
+
+	private BulbExpectations() {
+		// static only
+	}
+
+	/**
+	 * @param state the expected power state
+	 * @return an expectation met once the bulb reports the given power state
+	 */
+	public static StateConfirmer.Expectation<Bulb> power(
+			final PowerState state) {
+		return new StateConfirmer.Expectation<Bulb>() {
+
+			@Override
+			public boolean isMet(Bulb bulb) {
+				return bulb.getPowerState() == state;
+			}
+
+		};
+	}
+
+	/**
+	 * Creates an expectation for a toggle sent to the given bulb. This must
+	 * be called before the toggle is sent.
+	 * @param bulb the bulb being toggled
+	 * @return an expectation met once the bulb reports the opposite of its
+	 *     current power state
+	 */
+	public static StateConfirmer.Expectation<Bulb> toggled(Bulb bulb) {
+		return power(bulb.getPowerState() == PowerState.ON
+				? PowerState.OFF
+				: PowerState.ON);
+	}
+
+	/**
+	 * The largest difference in any color component still treated as a
+	 * match, out of 65535. Colors are sent as 8-bit RGB and reported as
+	 * 16-bit HSB, so reports are off by a few RGB steps' worth.
+	 */
+	public static final int COLOR_TOLERANCE = 1024;
+
+	/**
+	 * Creates an expectation for a color change. Reported colors don't
+	 * round-trip exactly through RGB, so components are compared within
+	 * {@link #COLOR_TOLERANCE}. Hue is ignored for (near) unsaturated
+	 * targets and every component for (near) black ones, since the bulb may
+	 * report anything there.
+	 * @param target the color sent
+	 * @return an expectation met once the bulb reports the given color
+	 */
+	public static StateConfirmer.Expectation<Bulb> color(
+			final LIFXColor target) {
+		return new StateConfirmer.Expectation<Bulb>() {
+
+			@Override
+			public boolean isMet(Bulb bulb) {
+				LIFXColor c = bulb.getColor();
+				if (c == null) {
+					return false;
+				}
+
+				return matches(target, c);
+			}
+
+		};
+	}
+
+	/**
+	 * @param target the expected color
+	 * @param reported the color the bulb reported
+	 * @return true if the reported color is the expected one, within
+	 *     {@link #COLOR_TOLERANCE}
+	 */
+	public static boolean matches(LIFXColor target, LIFXColor reported) {
+		if (!close(target.getBrightness(), reported.getBrightness())) {
+			return false;
+		}
+
+		if (target.getBrightness() <= COLOR_TOLERANCE) {
+			// black is black, whatever the hue and saturation
+			return true;
+		}
+
+		if (!close(target.getSaturation(), reported.getSaturation())) {
+			return false;
+		}
+
+		if (target.getSaturation() <= COLOR_TOLERANCE) {
+			// white, hue is meaningless
+			return true;
+		}
+
+		// hue wraps around
+		int diff = Math.abs(target.getHue() - reported.getHue()) % 0x10000;
+
+		return Math.min(diff, 0x10000 - diff) <= COLOR_TOLERANCE;
+	}
+
+	private static boolean close(int a, int b) {
+		return Math.abs(a - b) <= COLOR_TOLERANCE;
+	}
+
+}
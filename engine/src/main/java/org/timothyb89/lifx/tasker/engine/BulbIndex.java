@@ -0,0 +1,144 @@
+package org.timothyb89.lifx.tasker.engine;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An index of bulbs keyed by both normalized label and MAC address. Labels are
+ * matched case-insensitively; addresses may be given with or without
+ * separators.
+ * <p>
+ * Reads never lock, so lookups on the command path don't contend with
+ * discovery; writes are serialized.
+ * <p>
+ * The index is generic so it can be exercised without live bulbs.
+ * @param <T> the indexed bulb type
+ * @author tim
+ */
+public class BulbIndex<T> {
+
+	private final Map<String, T> byLabel;
+	private final Map<String, T> byAddress;
+	private final Map<String, String> labels;
+
+	public BulbIndex() {
+		byLabel = new ConcurrentHashMap<>();
+		byAddress = new ConcurrentHashMap<>();
+		labels = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Adds or updates a bulb in the index. If the bulb was previously indexed
+	 * under a different label, the old label is dropped.
+	 * @param address the bulb's MAC address
+	 * @param label the bulb's current label, may be null
+	 * @param bulb the bulb
+	 */
+	public synchronized void put(String address, String label, T bulb) {
+		String addressKey = address(address);
+		String labelKey = BulbKeys.label(label);
+		T previous = byAddress.get(addressKey);
+
+		String oldLabel = labelKey == null
+				? labels.remove(addressKey)
+				: labels.put(addressKey, labelKey);
+		if (oldLabel != null && !oldLabel.equals(labelKey)) {
+			if (byLabel.get(oldLabel) == previous) {
+				byLabel.remove(oldLabel);
+			}
+		}
+
+		byAddress.put(addressKey, bulb);
+
+		// keep the first bulb registered under a label, as the old linear
+		// search would have
+		if (labelKey != null) {
+			T existing = byLabel.get(labelKey);
+			if (existing == null || existing == bulb || existing == previous) {
+				byLabel.put(labelKey, bulb);
+			}
+		}
+	}
+
+	/**
+	 * Removes a bulb from the index.
+	 * @param address the bulb's MAC address
+	 */
+	public synchronized void remove(String address) {
+		String addressKey = address(address);
+
+		T bulb = byAddress.remove(addressKey);
+		String labelKey = labels.remove(addressKey);
+		if (labelKey != null && byLabel.get(labelKey) == bulb) {
+			byLabel.remove(labelKey);
+		}
+	}
+
+	/**
+	 * Finds a bulb by label or MAC address.
+	 * @param name the label or address to look for
+	 * @return the matching bulb, or null
+	 */
+	public T get(String name) {
+		if (name == null) {
+			return null;
+		}
+
+		T ret = byLabel.get(BulbKeys.label(name));
+		if (ret == null) {
+			ret = byAddress.get(address(name));
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Finds every bulb named in {@code names}. Names that resolve are removed
+	 * from the list, so on return it holds only the names still missing.
+	 * @param names the labels or addresses to look for
+	 * @return the bulbs found, in the order requested
+	 */
+	public List<T> getAll(List<String> names) {
+		Set<T> ret = new LinkedHashSet<>();
+		List<String> missing = new ArrayList<>();
+
+		for (String name : names) {
+			T bulb = get(name);
+			if (bulb == null) {
+				missing.add(name);
+			} else {
+				ret.add(bulb);
+			}
+		}
+
+		names.clear();
+		names.addAll(missing);
+
+		return new ArrayList<>(ret);
+	}
+
+	public int size() {
+		return byAddress.size();
+	}
+
+	public synchronized void clear() {
+		byLabel.clear();
+		byAddress.clear();
+		labels.clear();
+	}
+
+	private static String address(String address) {
+		if (address == null) {
+			return null;
+		}
+
+		return address.replace(":", "").replace("-", "")
+				.toLowerCase(Locale.US);
+	}
+
+}
@@ -0,0 +1,105 @@
+package org.timothyb89.lifx.tasker.engine;
+
+import java.net.InetAddress;
+import java.util.Locale;
+import org.timothyb89.lifx.bulb.Bulb;
+import org.timothyb89.lifx.gateway.Gateway;
+
+/**
+ * Helpers to derive stable lookup keys for bulbs and gateways.
+ * @author tim
+ */
+public class BulbKeys {
+
+	/**
+	 * Registry keys for lifx-java bulbs.
+	 */
+	public static final BulbRegistry.Keys<Bulb> BULBS
+			= new BulbRegistry.Keys<Bulb>() {
+
+		@Override
+		public String getAddress(Bulb bulb) {
+			return address(bulb);
+		}
+
+		@Override
+		public String getLabel(Bulb bulb) {
+			return bulb.getLabel();
+		}
+
+	};
+
+	private BulbKeys() {
+		// static only
+	}
+
+	/**
+	 * Normalizes a bulb label for case-insensitive lookups.
+	 * @param label the label to normalize
+	 * @return the normalized label, or null if {@code label} is null
+	 */
+	public static String label(String label) {
+		if (label == null) {
+			return null;
+		}
+
+		return label.trim().toLowerCase(Locale.US);
+	}
+
+	/**
+	 * Normalizes a bulb name that may be either a label or a MAC address.
+	 * Labels are normalized as {@link #label(String)} does; anything that
+	 * looks like a MAC address is also stripped of separators, so it matches
+	 * {@link #address(Bulb)}.
+	 * @param name the label or address to normalize
+	 * @return the normalized name, or null if {@code name} is null
+	 */
+	public static String name(String name) {
+		String key = label(name);
+		if (key == null) {
+			return null;
+		}
+
+		String address = key.replace(":", "").replace("-", "");
+		if (address.matches("[0-9a-f]{12}")) {
+			return address;
+		}
+
+		return key;
+	}
+
+	/**
+	 * @param bulb the bulb
+	 * @return the bulb's MAC address as a lowercase hex string
+	 */
+	public static String address(Bulb bulb) {
+		return hex(bulb.getAddress());
+	}
+
+	/**
+	 * @param gateway the gateway
+	 * @return the gateway's IP address as a string
+	 */
+	public static String address(Gateway gateway) {
+		InetAddress ip = gateway.getIpAddress();
+		if (ip == null) {
+			return null;
+		}
+
+		return ip.getHostAddress();
+	}
+
+	public static String hex(byte[] bytes) {
+		if (bytes == null) {
+			return null;
+		}
+
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(String.format("%02x", b & 0xFF));
+		}
+
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,246 @@
+package org.timothyb89.lifx.tasker.engine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The set of currently known bulbs, keyed by MAC address so a bulb can only
+ * ever be registered once.
+ * <p>
+ * Reads are lock-free: {@link #getBulbs()} returns an immutable snapshot that
+ * is replaced (not modified) whenever the registry changes, so UI threads can
+ * iterate it freely while discovery is running. Writes are serialized, and the
+ * snapshot keeps bulbs in the order they were first registered.
+ * <p>
+ * Every change bumps the registry version and is reported to the
+ * {@link Listener}, if any, as a {@link RegistryDelta}.
+ * @param <T> the bulb type
+ * @author tim
+ */
+public class BulbRegistry<T> {
+
+	/**
+	 * Extracts the keys a bulb is registered under.
+	 * @param <T> the bulb type
+	 */
+	public interface Keys<T> {
+
+		/**
+		 * @param bulb the bulb
+		 * @return the bulb's MAC address, never null
+		 */
+		String getAddress(T bulb);
+
+		/**
+		 * @param bulb the bulb
+		 * @return the bulb's current label, may be null
+		 */
+		String getLabel(T bulb);
+
+	}
+
+	/**
+	 * Notified of every change to the registry. Called while the registry is
+	 * locked, so implementations should return quickly.
+	 * @param <T> the bulb type
+	 */
+	public interface Listener<T> {
+
+		void registryChanged(RegistryDelta<T> delta);
+
+	}
+
+	private final Keys<T> keys;
+
+	private final ConcurrentMap<String, T> bulbs;
+	private final BulbIndex<T> index;
+	private final Map<String, String> labels;
+
+	private volatile List<T> snapshot;
+	private volatile long version;
+
+	private Listener<T> listener;
+
+	public BulbRegistry(Keys<T> keys) {
+		this.keys = keys;
+
+		bulbs = new ConcurrentHashMap<>();
+		index = new BulbIndex<>();
+		labels = new HashMap<>();
+
+		snapshot = Collections.emptyList();
+	}
+
+	public synchronized void setListener(Listener<T> listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Registers a bulb. If a bulb with the same address is already registered
+	 * it is replaced and its label re-indexed.
+	 * @param bulb the bulb to add
+	 * @return true if the bulb was not previously registered
+	 */
+	public synchronized boolean add(T bulb) {
+		String address = keys.getAddress(bulb);
+		String label = keys.getLabel(bulb);
+
+		T old = bulbs.put(address, bulb);
+		index.put(address, label, bulb);
+		String oldLabel = labels.put(address, label);
+
+		if (old == bulb) {
+			if (!equal(label, oldLabel)) {
+				changed(Collections.<T>emptyList(),
+						Collections.<T>emptyList(),
+						Collections.singletonList(bulb));
+			}
+
+			return false;
+		}
+
+		List<T> next = new ArrayList<>(snapshot);
+		if (old == null) {
+			next.add(bulb);
+		} else {
+			next.set(next.indexOf(old), bulb);
+		}
+
+		snapshot = Collections.unmodifiableList(next);
+
+		changed(Collections.singletonList(bulb),
+				old == null
+						? Collections.<T>emptyList()
+						: Collections.singletonList(old),
+				Collections.<T>emptyList());
+
+		return old == null;
+	}
+
+	/**
+	 * Removes a bulb from the registry.
+	 * @param bulb the bulb to remove
+	 * @return true if the bulb was registered
+	 */
+	public synchronized boolean remove(T bulb) {
+		String address = keys.getAddress(bulb);
+		if (!bulbs.remove(address, bulb)) {
+			return false;
+		}
+
+		index.remove(address);
+		labels.remove(address);
+
+		List<T> next = new ArrayList<>(snapshot);
+		next.remove(bulb);
+		snapshot = Collections.unmodifiableList(next);
+
+		changed(Collections.<T>emptyList(),
+				Collections.singletonList(bulb),
+				Collections.<T>emptyList());
+
+		return true;
+	}
+
+	/**
+	 * Re-indexes every bulb under its current label. Labels may change after a
+	 * bulb is first registered (e.g. following a refresh).
+	 */
+	public synchronized void reindex() {
+		List<T> relabeled = new ArrayList<>();
+		for (T bulb : snapshot) {
+			String address = keys.getAddress(bulb);
+			String label = keys.getLabel(bulb);
+
+			index.put(address, label, bulb);
+			if (!equal(label, labels.put(address, label))) {
+				relabeled.add(bulb);
+			}
+		}
+
+		if (!relabeled.isEmpty()) {
+			changed(Collections.<T>emptyList(),
+					Collections.<T>emptyList(),
+					relabeled);
+		}
+	}
+
+	/**
+	 * Finds a bulb by label or MAC address.
+	 * @param name the label or address
+	 * @return the bulb, or null if not found
+	 * @see BulbIndex#get(String)
+	 */
+	public T get(String name) {
+		return index.get(name);
+	}
+
+	/**
+	 * Finds a number of bulbs by label or MAC address. Names that resolve are
+	 * removed from the list.
+	 * @param names the labels or addresses
+	 * @return the bulbs found
+	 * @see BulbIndex#getAll(List)
+	 */
+	public List<T> getAll(List<String> names) {
+		return index.getAll(names);
+	}
+
+	/**
+	 * @return an immutable snapshot of every registered bulb
+	 */
+	public List<T> getBulbs() {
+		return snapshot;
+	}
+
+	/**
+	 * @return the registry version, incremented on every change
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	public int size() {
+		return snapshot.size();
+	}
+
+	public boolean isEmpty() {
+		return snapshot.isEmpty();
+	}
+
+	public synchronized void clear() {
+		List<T> old = snapshot;
+
+		bulbs.clear();
+		index.clear();
+		labels.clear();
+
+		snapshot = Collections.emptyList();
+
+		if (!old.isEmpty()) {
+			changed(Collections.<T>emptyList(),
+					old,
+					Collections.<T>emptyList());
+		}
+	}
+
+	private void changed(List<T> added, List<T> removed, List<T> changed) {
+		long from = version;
+		version = from + 1;
+
+		if (listener != null) {
+			listener.registryChanged(new RegistryDelta<>(
+					added, removed, changed, from, from + 1));
+		}
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+}
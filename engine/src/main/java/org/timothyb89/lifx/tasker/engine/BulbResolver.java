@@ -0,0 +1,134 @@
+package org.timothyb89.lifx.tasker.engine;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves bulb names (labels or addresses) against a {@link BulbRegistry},
+ * falling back to the address the {@link BulbCache} has on record for a
+ * name. This finds a reconnected bulb before it has reported its label, and a
+ * bulb renamed since it was cached.
+ * <p>
+ * Lookups are counted in the given {@link Metrics} as {@code lookup.hits},
+ * {@code lookup.misses} and {@code lookup.retries}.
+ * @param <T> the bulb type
+ * @author tim
+ */
+public class BulbResolver<T> {
+
+	private static final Logger log
+			= LoggerFactory.getLogger(BulbResolver.class);
+
+	private final BulbRegistry<T> registry;
+	private final BulbCache cache;
+	private final Metrics metrics;
+
+	/**
+	 * @param registry the registry to resolve against
+	 * @param cache the cache to look up addresses in
+	 * @param metrics where lookup counts are recorded
+	 */
+	public BulbResolver(
+			BulbRegistry<T> registry, BulbCache cache, Metrics metrics) {
+		this.registry = registry;
+		this.cache = cache;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Looks up a bulb by name, falling back to its cached address.
+	 * @param name the bulb label or address
+	 * @return the bulb, or null if it isn't registered
+	 */
+	public T lookup(String name) {
+		T bulb = registry.get(name);
+		if (bulb != null) {
+			return bulb;
+		}
+
+		KnownBulb known = cache.resolve(name);
+		if (known == null) {
+			return null;
+		}
+
+		return registry.get(known.getAddress());
+	}
+
+	/**
+	 * Looks up each name as {@link #lookup(String)} does, removing the names
+	 * that were found.
+	 * @param names the names to look up
+	 * @return the bulbs found, each listed once even if several names (e.g. a
+	 *     label and an address) resolved to it
+	 */
+	public List<T> lookupAll(List<String> names) {
+		Set<T> ret = new LinkedHashSet<>(registry.getAll(names));
+
+		Iterator<String> it = names.iterator();
+		while (it.hasNext()) {
+			T bulb = lookup(it.next());
+			if (bulb != null) {
+				ret.add(bulb);
+				it.remove();
+			}
+		}
+
+		return new ArrayList<>(ret);
+	}
+
+	/**
+	 * Looks up a bulb, re-indexing the registry and trying again if it isn't
+	 * found, in case its label changed since it was registered.
+	 * @param name the bulb label or address
+	 * @return the bulb, or null if it isn't registered
+	 */
+	public T search(String name) {
+		T bulb = lookup(name);
+		if (bulb == null) {
+			metrics.counter("lookup.retries").increment();
+			registry.reindex();
+			bulb = lookup(name);
+		}
+
+		if (bulb == null) {
+			metrics.counter("lookup.misses").increment();
+			log.debug("Bulb not found: {}", name);
+		} else {
+			metrics.counter("lookup.hits").increment();
+		}
+
+		return bulb;
+	}
+
+	/**
+	 * Looks up several bulbs as {@link #search(String)} does, removing the
+	 * names that were found.
+	 * @param names the bulb labels or addresses
+	 * @return the bulbs found, each listed once
+	 */
+	public List<T> search(List<String> names) {
+		Set<T> ret = new LinkedHashSet<>(lookupAll(names));
+		if (!names.isEmpty()) {
+			metrics.counter("lookup.retries").increment();
+			registry.reindex();
+			ret.addAll(lookupAll(names));
+		}
+
+		metrics.counter("lookup.hits").add(ret.size());
+		metrics.counter("lookup.misses").add(names.size());
+
+		if (names.isEmpty()) {
+			log.info("All requested bulbs found");
+		} else {
+			log.info("Bulbs not found: {}", names);
+		}
+
+		return new ArrayList<>(ret);
+	}
+
+}
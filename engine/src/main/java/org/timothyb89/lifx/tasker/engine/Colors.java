@@ -0,0 +1,38 @@
+package org.timothyb89.lifx.tasker.engine;
+
+import org.timothyb89.lifx.bulb.LIFXColor;
+
+/**
+ * Conversions from packed ARGB colors (as used by Android and the color
+ * picker) to LIFX colors. The channel helpers match
+ * {@code android.graphics.Color}, but run on a plain JVM.
+ * @author tim
+ */
+public class Colors {
+
+	private Colors() {
+		// static only
+	}
+
+	public static int red(int color) {
+		return (color >> 16) & 0xFF;
+	}
+
+	public static int green(int color) {
+		return (color >> 8) & 0xFF;
+	}
+
+	public static int blue(int color) {
+		return color & 0xFF;
+	}
+
+	/**
+	 * Converts a packed color to a LIFX color. Alpha is ignored.
+	 * @param color the color, as packed ARGB
+	 * @return the equivalent LIFX color
+	 */
+	public static LIFXColor toLIFX(int color) {
+		return LIFXColor.fromRGB(red(color), green(color), blue(color));
+	}
+
+}
@@ -0,0 +1,185 @@
+package org.timothyb89.lifx.tasker.engine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a command against many bulbs at once on a bounded thread pool, so one
+ * slow or blocked send doesn't hold up every bulb behind it.
+ * @author tim
+ */
+public class CommandDispatcher {
+
+	/**
+	 * A command to run against a single target.
+	 * @param <T> the target type
+	 */
+	public interface Command<T> {
+
+		void execute(T target) throws Exception;
+
+	}
+
+	public static final int DEFAULT_THREADS = 8;
+	public static final long DEFAULT_TIMEOUT = 5000; // milliseconds
+
+	private final ExecutorService executor;
+	private final long timeout;
+
+	public CommandDispatcher() {
+		this(DEFAULT_THREADS, DEFAULT_TIMEOUT);
+	}
+
+	/**
+	 * @param threads the maximum number of commands to run concurrently
+	 * @param timeout the maximum time to wait for a dispatch, in milliseconds
+	 */
+	public CommandDispatcher(int threads, long timeout) {
+		this.timeout = timeout;
+
+		executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "dispatch-" + count.incrementAndGet());
+				t.setDaemon(true);
+
+				return t;
+			}
+
+		});
+	}
+
+	/**
+	 * Runs a command against every target concurrently and waits for all of
+	 * them to finish. A single target is run directly on the calling thread.
+	 * @param <T> the target type
+	 * @param targets the targets to run against
+	 * @param command the command to run
+	 * @return the per-target results
+	 */
+	public <T> DispatchResult<T> dispatch(
+			Collection<T> targets, Command<T> command) {
+		return dispatch(targets, command, timeout);
+	}
+
+	/**
+	 * Runs a command against every target concurrently, as
+	 * {@link #dispatch(Collection, Command)} does, with a timeout sized for
+	 * this dispatch. Commands still running when it expires are cancelled.
+	 * @param <T> the target type
+	 * @param targets the targets to run against
+	 * @param command the command to run
+	 * @param timeout the maximum time to wait, in milliseconds
+	 * @return the per-target results
+	 */
+	public <T> DispatchResult<T> dispatch(
+			Collection<T> targets, final Command<T> command, long timeout) {
+		long start = System.nanoTime();
+
+		List<DispatchResult.Outcome<T>> outcomes = new ArrayList<>();
+		if (targets.size() == 1) {
+			outcomes.add(run(targets.iterator().next(), command));
+
+			return new DispatchResult<>(outcomes, millisSince(start));
+		}
+
+		List<Callable<DispatchResult.Outcome<T>>> tasks = new ArrayList<>();
+		for (final T target : targets) {
+			tasks.add(new Callable<DispatchResult.Outcome<T>>() {
+
+				@Override
+				public DispatchResult.Outcome<T> call() {
+					return run(target, command);
+				}
+
+			});
+		}
+
+		List<Future<DispatchResult.Outcome<T>>> futures;
+		try {
+			futures = executor.invokeAll(tasks, timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			futures = new ArrayList<>();
+		}
+
+		int i = 0;
+		for (T target : targets) {
+			if (i >= futures.size()) {
+				outcomes.add(new DispatchResult.Outcome<>(
+						target,
+						new InterruptedException("Dispatch interrupted"),
+						millisSince(start)));
+				i++;
+				continue;
+			}
+
+			Future<DispatchResult.Outcome<T>> f = futures.get(i++);
+			try {
+				outcomes.add(f.get());
+			} catch (CancellationException ex) {
+				outcomes.add(new DispatchResult.Outcome<>(
+						target,
+						new TimeoutException("Command timed out"),
+						millisSince(start)));
+			} catch (ExecutionException ex) {
+				outcomes.add(new DispatchResult.Outcome<>(
+						target, ex.getCause(), millisSince(start)));
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				outcomes.add(new DispatchResult.Outcome<>(
+						target, ex, millisSince(start)));
+			}
+		}
+
+		return new DispatchResult<>(outcomes, millisSince(start));
+	}
+
+	/**
+	 * @return the default dispatch timeout, in milliseconds
+	 */
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Stops the dispatcher. Queued commands are abandoned.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private static <T> DispatchResult.Outcome<T> run(
+			T target, Command<T> command) {
+		long start = System.nanoTime();
+
+		try {
+			command.execute(target);
+
+			return new DispatchResult.Outcome<>(
+					target, null, millisSince(start));
+		} catch (Exception ex) {
+			return new DispatchResult.Outcome<>(
+					target, ex, millisSince(start));
+		}
+	}
+
+	private static long millisSince(long start) {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+	}
+
+}
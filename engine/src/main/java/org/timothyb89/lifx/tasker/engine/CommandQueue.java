@@ -0,0 +1,307 @@
+package org.timothyb89.lifx.tasker.engine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A per-bulb queue of power and color commands that collapses superseded
+ * commands before they reach the network.
+ * <p>
+ * Commands are sent in passes on a single drain thread. While a pass is in
+ * flight, new commands for the same bulb are merged with whatever is still
+ * pending for it: the last color wins, and power commands compose (e.g. a
+ * pending "on" followed by a toggle becomes "off", and two toggles cancel
+ * out). When triggers outpace the bulbs, only the final state is sent.
+ * <p>
+ * Several callers may share a pass, but each caller's future only reports
+ * the outcomes for the targets that caller submitted.
+ * @param <T> the bulb type
+ * @author tim
+ */
+public class CommandQueue<T> {
+
+	/**
+	 * A queued power change.
+	 */
+	public enum Power {
+		ON, OFF, TOGGLE;
+
+		/**
+		 * Composes this pending power change with a newer one.
+		 * @param next the newer power change
+		 * @return the combined change, or null if they cancel out
+		 */
+		public Power then(Power next) {
+			if (next != TOGGLE) {
+				return next;
+			}
+
+			switch (this) {
+				case ON:  return OFF;
+				case OFF: return ON;
+				default:  return null;
+			}
+		}
+	}
+
+	/**
+	 * The pending commands for a single bulb.
+	 * @param <T> the bulb type
+	 */
+	public static class Entry<T> {
+
+		private final T target;
+
+		private Power power;
+		private CommandDispatcher.Command<T> color;
+
+		public Entry(T target) {
+			this.target = target;
+		}
+
+		public T getTarget() {
+			return target;
+		}
+
+		/**
+		 * @return the pending power change, or null
+		 */
+		public Power getPower() {
+			return power;
+		}
+
+		/**
+		 * @return the pending color command, or null
+		 */
+		public CommandDispatcher.Command<T> getColor() {
+			return color;
+		}
+
+		private boolean isEmpty() {
+			return power == null && color == null;
+		}
+
+	}
+
+	/**
+	 * Sends a batch of collapsed commands. Each entry has at least one of a
+	 * power change or color command.
+	 * @param <T> the bulb type
+	 */
+	public interface Sender<T> {
+
+		DispatchResult<T> send(List<Entry<T>> batch);
+
+	}
+
+	/**
+	 * A caller's view of a shared pass, holding only the outcomes for the
+	 * caller's own targets.
+	 */
+	private static class Share<T> implements Future<DispatchResult<T>> {
+
+		private final Future<DispatchResult<T>> pass;
+		private final Set<T> targets;
+
+		public Share(Future<DispatchResult<T>> pass, Collection<T> targets) {
+			this.pass = pass;
+			this.targets = new HashSet<>(targets);
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			// other callers share the pass
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return pass.isCancelled();
+		}
+
+		@Override
+		public boolean isDone() {
+			return pass.isDone();
+		}
+
+		@Override
+		public DispatchResult<T> get()
+				throws InterruptedException, ExecutionException {
+			return pass.get().filter(targets);
+		}
+
+		@Override
+		public DispatchResult<T> get(long timeout, TimeUnit unit)
+				throws InterruptedException, ExecutionException,
+				TimeoutException {
+			return pass.get(timeout, unit).filter(targets);
+		}
+
+	}
+
+	private final Sender<T> sender;
+	private final ExecutorService executor;
+
+	private final Map<T, Entry<T>> pending;
+	private Future<DispatchResult<T>> nextPass;
+
+	private final AtomicLong submitted;
+	private final AtomicLong coalesced;
+
+	public CommandQueue(Sender<T> sender) {
+		this.sender = sender;
+
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "command-queue");
+				t.setDaemon(true);
+
+				return t;
+			}
+
+		});
+
+		pending = new LinkedHashMap<>();
+
+		submitted = new AtomicLong();
+		coalesced = new AtomicLong();
+	}
+
+	/**
+	 * Queues a power change for each target. A target listed more than once
+	 * is only changed once, so e.g. a toggle can't cancel itself out.
+	 * @param targets the bulbs to change
+	 * @param power the power change
+	 * @return the outcomes of these commands, once their pass is sent
+	 */
+	public synchronized Future<DispatchResult<T>> submitPower(
+			Collection<T> targets, Power power) {
+		for (T target : new LinkedHashSet<>(targets)) {
+			Entry<T> e = entry(target);
+
+			if (e.power != null) {
+				e.power = e.power.then(power);
+				coalesced.incrementAndGet();
+			} else {
+				e.power = power;
+			}
+
+			if (e.isEmpty()) {
+				pending.remove(target);
+			}
+		}
+
+		return new Share<>(schedule(), targets);
+	}
+
+	/**
+	 * Queues a color command for each target, replacing any color command
+	 * still pending for it.
+	 * @param targets the bulbs to change
+	 * @param color the color command
+	 * @return the outcomes of these commands, once their pass is sent
+	 */
+	public synchronized Future<DispatchResult<T>> submitColor(
+			Collection<T> targets, CommandDispatcher.Command<T> color) {
+		for (T target : new LinkedHashSet<>(targets)) {
+			Entry<T> e = entry(target);
+
+			if (e.color != null) {
+				coalesced.incrementAndGet();
+			}
+
+			e.color = color;
+		}
+
+		return new Share<>(schedule(), targets);
+	}
+
+	/**
+	 * @return the number of commands queued so far
+	 */
+	public long getSubmitted() {
+		return submitted.get();
+	}
+
+	/**
+	 * @return the number of queued commands merged into (or cancelled by) a
+	 *     newer command before being sent
+	 */
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+
+	/**
+	 * @return the number of bulbs with commands waiting to be sent
+	 */
+	public synchronized int getPending() {
+		return pending.size();
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private Entry<T> entry(T target) {
+		submitted.incrementAndGet();
+
+		Entry<T> e = pending.get(target);
+		if (e == null) {
+			e = new Entry<>(target);
+			pending.put(target, e);
+		}
+
+		return e;
+	}
+
+	private Future<DispatchResult<T>> schedule() {
+		if (nextPass == null) {
+			nextPass = executor.submit(new Callable<DispatchResult<T>>() {
+
+				@Override
+				public DispatchResult<T> call() {
+					return drain();
+				}
+
+			});
+		}
+
+		return nextPass;
+	}
+
+	private DispatchResult<T> drain() {
+		List<Entry<T>> batch;
+		synchronized (this) {
+			batch = new ArrayList<>(pending.values());
+			pending.clear();
+
+			// anything submitted from here on goes in the next pass
+			nextPass = null;
+		}
+
+		if (batch.isEmpty()) {
+			return new DispatchResult<>(
+					new ArrayList<DispatchResult.Outcome<T>>(), 0);
+		}
+
+		return sender.send(batch);
+	}
+
+}
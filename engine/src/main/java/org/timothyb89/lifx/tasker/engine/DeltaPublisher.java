@@ -0,0 +1,147 @@
+package org.timothyb89.lifx.tasker.engine;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivers registry deltas to subscribers, merging any that pile up before
+ * they can be delivered.
+ * <p>
+ * Deltas are held for a short window so bursts of changes (e.g. a gateway
+ * reporting all of its bulbs) go out as one, and only one delivery runs at a
+ * time. Anything offered while a slow subscriber is still handling the last
+ * delta is merged and delivered as a single delta once it returns, so
+ * subscribers never work through a backlog of stale updates.
+ * <p>
+ * Delivered deltas always follow on from one another: each one's starting
+ * version is the previous one's final version. Changes that cancel out (e.g.
+ * a bulb added and removed within one window) still go out, as an empty
+ * delta, so subscribers tracking the version never see a gap.
+ * @param <T> the bulb type
+ * @author tim
+ */
+public class DeltaPublisher<T> {
+
+	private static final Logger log = LoggerFactory.getLogger(
+			DeltaPublisher.class);
+
+	public static final long DEFAULT_WINDOW = 100; // milliseconds
+
+	/**
+	 * Receives merged deltas.
+	 * @param <T> the bulb type
+	 */
+	public interface Sink<T> {
+
+		void publish(RegistryDelta<T> delta);
+
+	}
+
+	private final Sink<T> sink;
+	private final long window;
+
+	private final ScheduledExecutorService executor;
+
+	private RegistryDelta<T> pending;
+	private boolean scheduled;
+
+	private long offered;
+	private long published;
+
+	public DeltaPublisher(Sink<T> sink) {
+		this(sink, DEFAULT_WINDOW);
+	}
+
+	/**
+	 * @param sink called (on a publisher thread) with each merged delta
+	 * @param window how long to collect deltas before delivering, in
+	 *     milliseconds
+	 */
+	public DeltaPublisher(Sink<T> sink, long window) {
+		this.sink = sink;
+		this.window = window;
+
+		executor = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "delta-publisher");
+				t.setDaemon(true);
+
+				return t;
+			}
+
+		});
+	}
+
+	/**
+	 * Queues a delta for delivery, merging it with any still pending.
+	 * @param delta the delta to deliver
+	 */
+	public synchronized void offer(RegistryDelta<T> delta) {
+		if (delta.isEmpty() && delta.getVersion() == delta.getFromVersion()) {
+			return;
+		}
+
+		offered++;
+		pending = pending == null ? delta : pending.merge(delta);
+
+		if (!scheduled) {
+			scheduled = true;
+
+			executor.schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					deliver();
+				}
+
+			}, window, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * @return the number of deltas offered so far
+	 */
+	public synchronized long getOffered() {
+		return offered;
+	}
+
+	/**
+	 * @return the number of merged deltas delivered so far
+	 */
+	public synchronized long getPublished() {
+		return published;
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private void deliver() {
+		RegistryDelta<T> delta;
+		synchronized (this) {
+			delta = pending;
+			pending = null;
+			scheduled = false;
+
+			if (delta == null) {
+				return;
+			}
+
+			published++;
+		}
+
+		try {
+			sink.publish(delta);
+		} catch (RuntimeException ex) {
+			log.error("Error publishing registry delta", ex);
+		}
+	}
+
+}
@@ -0,0 +1,122 @@
+package org.timothyb89.lifx.tasker.engine;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets callers block until some discovery condition holds (e.g. "all of these
+ * bulbs are known"), without polling. Discovery handlers call
+ * {@link #signal()} whenever the set of known gateways or bulbs changes, and
+ * any waiter whose condition is now satisfied is released immediately.
+ * @author tim
+ */
+public class DiscoveryAwaiter {
+
+	/**
+	 * A condition to wait for. Conditions may be checked from any thread, but
+	 * never concurrently for the same wait.
+	 */
+	public interface Condition {
+
+		boolean isSatisfied();
+
+	}
+
+	private final List<Pending> pending;
+
+	public DiscoveryAwaiter() {
+		pending = new CopyOnWriteArrayList<>();
+	}
+
+	/**
+	 * Waits until the given condition is satisfied or the timeout elapses.
+	 * @param condition the condition to wait for
+	 * @param timeout the maximum time to wait, in milliseconds
+	 * @return true if the condition was satisfied
+	 */
+	public boolean await(Condition condition, long timeout) {
+		Pending p = new Pending(condition);
+
+		// register first so a signal between the check and the wait isn't
+		// lost
+		pending.add(p);
+		try {
+			if (p.check()) {
+				return true;
+			}
+
+			try {
+				if (p.latch.await(timeout, TimeUnit.MILLISECONDS)) {
+					return true;
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+
+			// one last look in case we timed out mid-signal
+			return p.check();
+		} finally {
+			pending.remove(p);
+			p.cancel();
+		}
+	}
+
+	/**
+	 * Re-checks every pending condition, releasing any that are satisfied.
+	 * Should be called whenever the discovery state changes.
+	 */
+	public void signal() {
+		for (Pending p : pending) {
+			p.check();
+		}
+	}
+
+	/**
+	 * @return the number of callers currently waiting
+	 */
+	public int getWaiting() {
+		return pending.size();
+	}
+
+	private static class Pending {
+
+		private final Condition condition;
+		private final CountDownLatch latch;
+		private boolean cancelled;
+
+		public Pending(Condition condition) {
+			this.condition = condition;
+
+			latch = new CountDownLatch(1);
+		}
+
+		public synchronized boolean check() {
+			if (latch.getCount() == 0) {
+				return true;
+			}
+
+			if (cancelled) {
+				return false;
+			}
+
+			if (condition.isSatisfied()) {
+				latch.countDown();
+				return true;
+			}
+
+			return false;
+		}
+
+		/**
+		 * Stops any further checks of the condition, so the waiter may safely
+		 * read state the condition writes to.
+		 */
+		public synchronized void cancel() {
+			cancelled = true;
+		}
+
+	}
+
+}
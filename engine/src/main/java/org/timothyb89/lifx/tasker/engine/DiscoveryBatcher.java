@@ -0,0 +1,185 @@
+package org.timothyb89.lifx.tasker.engine;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Batches the follow-up work for discovery events. Gateways report their bulbs
+ * in quick bursts, and refreshing and notifying listeners for every bulb
+ * individually would refresh each gateway once per bulb. Instead, bulbs and
+ * gateways are collected until no new events have arrived for a short window
+ * (or the maximum delay has passed), then flushed together so each gateway is
+ * refreshed once and listeners are notified once per batch.
+ * @param <B> the bulb type
+ * @param <G> the gateway type
+ * @author tim
+ */
+public class DiscoveryBatcher<B, G> {
+
+	private static final Logger log = LoggerFactory.getLogger(
+			DiscoveryBatcher.class);
+
+	public static final long DEFAULT_WINDOW = 100; // milliseconds
+	public static final long DEFAULT_MAX_DELAY = 500;
+
+	/**
+	 * Handles a batch of discovery events.
+	 * @param <B> the bulb type
+	 * @param <G> the gateway type
+	 */
+	public interface Flusher<B, G> {
+
+		/**
+		 * @param bulbs the bulbs added since the last batch
+		 * @param gateways the gateways that need refreshing
+		 */
+		void flush(List<B> bulbs, List<G> gateways);
+
+	}
+
+	private final Flusher<B, G> flusher;
+	private final long window;
+	private final long maxDelay;
+
+	private final ScheduledExecutorService timer;
+
+	private Set<B> bulbs;
+	private Set<G> gateways;
+	private long first;
+	private ScheduledFuture<?> pending;
+
+	private long events;
+	private long batches;
+
+	public DiscoveryBatcher(Flusher<B, G> flusher) {
+		this(flusher, DEFAULT_WINDOW, DEFAULT_MAX_DELAY);
+	}
+
+	/**
+	 * @param flusher called (on a timer thread) with each batch
+	 * @param window how long to wait for further events before flushing, in
+	 *     milliseconds
+	 * @param maxDelay the longest an event may be held, in milliseconds
+	 */
+	public DiscoveryBatcher(Flusher<B, G> flusher, long window, long maxDelay) {
+		this.flusher = flusher;
+		this.window = window;
+		this.maxDelay = maxDelay;
+
+		timer = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "discovery-batch");
+				t.setDaemon(true);
+
+				return t;
+			}
+
+		});
+
+		bulbs = new LinkedHashSet<>();
+		gateways = new LinkedHashSet<>();
+	}
+
+	/**
+	 * Adds a newly registered bulb to the current batch.
+	 * @param bulb the bulb
+	 */
+	public synchronized void bulbAdded(B bulb) {
+		bulbs.add(bulb);
+
+		schedule();
+	}
+
+	/**
+	 * Requests a refresh of the given gateway with the current batch.
+	 * @param gateway the gateway to refresh
+	 */
+	public synchronized void refresh(G gateway) {
+		gateways.add(gateway);
+
+		schedule();
+	}
+
+	/**
+	 * @return the number of events batched so far
+	 */
+	public synchronized long getEvents() {
+		return events;
+	}
+
+	/**
+	 * @return the number of batches flushed so far
+	 */
+	public synchronized long getBatches() {
+		return batches;
+	}
+
+	public void shutdown() {
+		timer.shutdownNow();
+	}
+
+	private void schedule() {
+		events++;
+
+		long now = System.currentTimeMillis();
+		if (pending == null) {
+			first = now;
+		} else {
+			pending.cancel(false);
+		}
+
+		// debounce, but never hold the first event past the max delay
+		long delay = Math.min(window, first + maxDelay - now);
+
+		pending = timer.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				flush();
+			}
+
+		}, Math.max(0, delay), TimeUnit.MILLISECONDS);
+	}
+
+	private void flush() {
+		List<B> b;
+		List<G> g;
+
+		synchronized (this) {
+			if (bulbs.isEmpty() && gateways.isEmpty()) {
+				return;
+			}
+
+			b = new ArrayList<>(bulbs);
+			g = new ArrayList<>(gateways);
+
+			bulbs = new LinkedHashSet<>();
+			gateways = new LinkedHashSet<>();
+			pending = null;
+
+			batches++;
+		}
+
+		log.debug("Flushing discovery batch: {} bulbs, {} gateways",
+				b.size(), g.size());
+
+		try {
+			flusher.flush(b, g);
+		} catch (RuntimeException ex) {
+			log.error("Error flushing discovery batch", ex);
+		}
+	}
+
+}
@@ -0,0 +1,431 @@
+package org.timothyb89.lifx.tasker.engine;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sizes discovery wait windows from how quickly gateways and bulbs have
+ * actually answered on the current network, rather than from fixed worst-case
+ * constants.
+ * <p>
+ * Response times are measured from the start of each discovery run and kept
+ * per network, since a home network and a busy office network can differ by
+ * an order of magnitude. Responses arriving after the run has ended are still
+ * recorded (up to the fully backed-off window), so a window that has shrunk
+ * too far is corrected rather than reinforced. Until enough samples have been
+ * seen the configured defaults are used. Waits that time out on an expected
+ * gateway or bulb back off, doubling the windows (up to {@link #MAX_BACKOFF}
+ * times) until discovery succeeds again.
+ * <p>
+ * Timings can be saved to a file and loaded on the next start, so a fresh
+ * process doesn't fall back to the defaults on a network it already knows.
+ * The file is tab-separated, one network per line.
+ * @author tim
+ */
+public class DiscoveryTimer {
+
+	private static final Logger log = LoggerFactory.getLogger(
+			DiscoveryTimer.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public enum Kind {
+		GATEWAY, BULB
+	}
+
+	/**
+	 * The number of recent samples kept per network and kind.
+	 */
+	public static final int SAMPLES = 32;
+
+	/**
+	 * The number of samples needed before learned timings are used.
+	 */
+	public static final int MIN_SAMPLES = 3;
+
+	/**
+	 * The number of times waits may double. With the engine's defaults, three
+	 * doublings take the gateway wait from 0.5 to 4 seconds and the discovery
+	 * window from 2.5 to 20 seconds. A gateway that stays silent for that long
+	 * is gone rather than slow, and waiting longer would only hold up every
+	 * action naming one of its bulbs.
+	 */
+	public static final int MAX_BACKOFF = 3;
+
+	public static final long MIN_WAIT = 50; // milliseconds
+
+	private final long defaultGatewayWait;
+	private final long defaultBulbWait;
+	private final long defaultWindow;
+
+	private final Map<String, Stats> networks;
+	private String network;
+	private Stats current;
+	private boolean dirty;
+
+	private long started;
+	private boolean running;
+
+	/**
+	 * @param gatewayWait the default time to wait for a gateway
+	 * @param bulbWait the default time to wait for a bulb
+	 * @param window the default length of a discovery run
+	 */
+	public DiscoveryTimer(long gatewayWait, long bulbWait, long window) {
+		this.defaultGatewayWait = gatewayWait;
+		this.defaultBulbWait = bulbWait;
+		this.defaultWindow = window;
+
+		networks = new HashMap<>();
+		current = stats(null);
+
+		started = -1;
+	}
+
+	/**
+	 * Switches to the timings recorded for the given network.
+	 * @param network the network key, or null if unknown
+	 */
+	public synchronized void setNetwork(String network) {
+		this.network = network;
+		current = stats(network);
+		started = -1;
+		running = false;
+	}
+
+	/**
+	 * Marks the start of a discovery run. Responses are timed from here.
+	 */
+	public synchronized void started() {
+		started = System.nanoTime();
+		running = true;
+	}
+
+	/**
+	 * Marks the end of a discovery run. Late responses to the run are still
+	 * recorded, up to {@link #getLateLimit()} after it started.
+	 */
+	public synchronized void finished() {
+		running = false;
+	}
+
+	/**
+	 * Records that a gateway or bulb answered the latest run, even if the run
+	 * has already ended. Responses later than {@link #getLateLimit()} (e.g.
+	 * from refreshes long after discovery) are not recorded.
+	 * @param kind what answered
+	 */
+	public synchronized void responded(Kind kind) {
+		if (started < 0) {
+			return;
+		}
+
+		long elapsed = (System.nanoTime() - started) / 1000000;
+		if (elapsed > getLateLimit()) {
+			return;
+		}
+
+		current.record(kind, elapsed);
+		dirty = true;
+	}
+
+	/**
+	 * @return how long after the start of a run responses are still
+	 *     recorded, in milliseconds: the default window, fully backed off
+	 */
+	public long getLateLimit() {
+		return defaultWindow << MAX_BACKOFF;
+	}
+
+	/**
+	 * Records that a wait ended with its condition satisfied, relaxing any
+	 * backoff.
+	 */
+	public synchronized void satisfied() {
+		if (current.backoff > 0) {
+			current.backoff--;
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Records that a wait timed out, widening future windows.
+	 */
+	public synchronized void timedOut() {
+		if (current.backoff < MAX_BACKOFF) {
+			current.backoff++;
+			dirty = true;
+		}
+	}
+
+	/**
+	 * @return how long to wait for a gateway to answer, in milliseconds
+	 */
+	public synchronized long getGatewayWait() {
+		return remaining(size(Kind.GATEWAY, 0.95, 2, defaultGatewayWait));
+	}
+
+	/**
+	 * @return how long to wait for a bulb to answer, in milliseconds
+	 */
+	public synchronized long getBulbWait() {
+		return remaining(size(Kind.BULB, 0.95, 2, defaultBulbWait));
+	}
+
+	/**
+	 * @return how long a discovery run should last if it isn't ended early,
+	 *     in milliseconds
+	 */
+	public synchronized long getDiscoveryWindow() {
+		return size(Kind.GATEWAY, 0.99, 3, defaultWindow);
+	}
+
+	/**
+	 * @param kind the kind of response
+	 * @param percentile the percentile, from 0 to 1
+	 * @return the given response time percentile on the current network, or
+	 *     -1 if too few samples have been recorded
+	 */
+	public synchronized long getPercentile(Kind kind, double percentile) {
+		return current.percentile(kind, percentile);
+	}
+
+	public synchronized int getBackoff() {
+		return current.backoff;
+	}
+
+	/**
+	 * Loads saved timings, replacing any held in memory. Missing or malformed
+	 * files are treated as empty.
+	 * @param file the file to load from
+	 */
+	public synchronized void load(File file) {
+		networks.clear();
+		current = stats(network);
+		dirty = false;
+
+		if (!file.exists()) {
+			return;
+		}
+
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), UTF8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!parse(line)) {
+					log.warn("Skipping malformed timing line: {}", line);
+				}
+			}
+		} catch (IOException ex) {
+			log.error("Unable to load discovery timings", ex);
+		}
+
+		current = stats(network);
+	}
+
+	/**
+	 * Writes the timings to a file if they have changed since they were last
+	 * loaded or saved.
+	 * @param file the file to save to
+	 */
+	public synchronized void save(File file) {
+		if (!dirty) {
+			return;
+		}
+
+		File temp = new File(file.getPath() + ".tmp");
+		try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(temp), UTF8))) {
+			for (Map.Entry<String, Stats> e : networks.entrySet()) {
+				Stats s = e.getValue();
+				if (s.isEmpty()) {
+					continue;
+				}
+
+				writer.write(format(e.getKey(), s));
+				writer.newLine();
+			}
+		} catch (IOException ex) {
+			log.error("Unable to save discovery timings", ex);
+			return;
+		}
+
+		if (!temp.renameTo(file)) {
+			log.error("Unable to replace discovery timing file {}", file);
+			return;
+		}
+
+		dirty = false;
+	}
+
+	private long size(Kind kind, double percentile, int margin, long def) {
+		long scale = 1L << current.backoff;
+
+		long p = current.percentile(kind, percentile);
+		if (p < 0) {
+			return def * scale;
+		}
+
+		long wait = Math.max(MIN_WAIT, p * margin);
+
+		return Math.min(wait, def) * scale;
+	}
+
+	/**
+	 * Trims a wait measured from the start of discovery down to what is left
+	 * of it now.
+	 */
+	private long remaining(long wait) {
+		if (!running) {
+			return wait;
+		}
+
+		long elapsed = (System.nanoTime() - started) / 1000000;
+
+		return Math.max(MIN_WAIT, wait - elapsed);
+	}
+
+	private Stats stats(String network) {
+		Stats s = networks.get(network);
+		if (s == null) {
+			s = new Stats();
+			networks.put(network, s);
+		}
+
+		return s;
+	}
+
+	private static String format(String network, Stats s) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(s.backoff);
+
+		for (Kind kind : Kind.values()) {
+			sb.append('\t');
+
+			long[] recent = s.recent(kind);
+			for (int i = 0; i < recent.length; i++) {
+				if (i > 0) {
+					sb.append(',');
+				}
+
+				sb.append(recent[i]);
+			}
+		}
+
+		// the network goes last so it may safely contain anything but newlines
+		sb.append('\t');
+		if (network != null) {
+			sb.append(network.replace('\n', ' ').replace('\r', ' '));
+		}
+
+		return sb.toString();
+	}
+
+	private boolean parse(String line) {
+		int kinds = Kind.values().length;
+
+		String[] parts = line.split("\t", kinds + 2);
+		if (parts.length < kinds + 2) {
+			return false;
+		}
+
+		Stats s = new Stats();
+		try {
+			s.backoff = Math.max(0,
+					Math.min(MAX_BACKOFF, Integer.parseInt(parts[0])));
+
+			for (Kind kind : Kind.values()) {
+				String samples = parts[kind.ordinal() + 1];
+				if (samples.isEmpty()) {
+					continue;
+				}
+
+				for (String sample : samples.split(",")) {
+					s.record(kind, Long.parseLong(sample));
+				}
+			}
+		} catch (NumberFormatException ex) {
+			return false;
+		}
+
+		String key = parts[kinds + 1];
+		networks.put(key.isEmpty() ? null : key, s);
+
+		return true;
+	}
+
+	private static class Stats {
+
+		private final long[][] samples;
+		private final int[] counts;
+
+		private int backoff;
+
+		public Stats() {
+			samples = new long[Kind.values().length][SAMPLES];
+			counts = new int[Kind.values().length];
+		}
+
+		public void record(Kind kind, long millis) {
+			int k = kind.ordinal();
+
+			samples[k][counts[k] % SAMPLES] = millis;
+			counts[k]++;
+		}
+
+		/**
+		 * @return the samples still kept for the given kind, oldest first
+		 */
+		public long[] recent(Kind kind) {
+			int k = kind.ordinal();
+
+			int n = Math.min(counts[k], SAMPLES);
+			long[] ret = new long[n];
+			for (int i = 0; i < n; i++) {
+				ret[i] = samples[k][(counts[k] - n + i) % SAMPLES];
+			}
+
+			return ret;
+		}
+
+		public boolean isEmpty() {
+			for (int count : counts) {
+				if (count > 0) {
+					return false;
+				}
+			}
+
+			return backoff == 0;
+		}
+
+		public long percentile(Kind kind, double percentile) {
+			int k = kind.ordinal();
+
+			int n = Math.min(counts[k], SAMPLES);
+			if (n < MIN_SAMPLES) {
+				return -1;
+			}
+
+			long[] sorted = Arrays.copyOf(samples[k], n);
+			Arrays.sort(sorted);
+
+			int index = (int) Math.ceil(percentile * n) - 1;
+
+			return sorted[Math.max(0, Math.min(n - 1, index))];
+		}
+
+	}
+
+}
@@ -0,0 +1,180 @@
+package org.timothyb89.lifx.tasker.engine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The aggregate result of running a command against several bulbs.
+ * @param <T> the target type
+ * @author tim
+ */
+public class DispatchResult<T> {
+
+	/**
+	 * The result of a command against a single target.
+	 * @param <T> the target type
+	 */
+	public static class Outcome<T> {
+
+		private final T target;
+		private final Throwable error;
+		private final long latency;
+
+		public Outcome(T target, Throwable error, long latency) {
+			this.target = target;
+			this.error = error;
+			this.latency = latency;
+		}
+
+		public T getTarget() {
+			return target;
+		}
+
+		public boolean isSuccess() {
+			return error == null;
+		}
+
+		/**
+		 * @return the error that caused this command to fail, or null
+		 */
+		public Throwable getError() {
+			return error;
+		}
+
+		/**
+		 * @return the time taken to run this command, in milliseconds
+		 */
+		public long getLatency() {
+			return latency;
+		}
+
+		@Override
+		public String toString() {
+			return target + ": " + (isSuccess() ? "ok" : error) + " ("
+					+ latency + " ms)";
+		}
+
+	}
+
+	private final List<Outcome<T>> outcomes;
+	private final long elapsed;
+
+	public DispatchResult(List<Outcome<T>> outcomes, long elapsed) {
+		this.outcomes = Collections.unmodifiableList(outcomes);
+		this.elapsed = elapsed;
+	}
+
+	/**
+	 * Combines the results of several dispatches that ran one after another.
+	 * @param <T> the target type
+	 * @param results the results to combine
+	 * @return a result holding every outcome, with the total elapsed time
+	 */
+	public static <T> DispatchResult<T> merge(List<DispatchResult<T>> results) {
+		List<Outcome<T>> outcomes = new ArrayList<>();
+		long elapsed = 0;
+
+		for (DispatchResult<T> r : results) {
+			outcomes.addAll(r.getOutcomes());
+			elapsed += r.getElapsed();
+		}
+
+		return new DispatchResult<>(outcomes, elapsed);
+	}
+
+	/**
+	 * @param targets the targets to keep
+	 * @return a result holding only the outcomes for the given targets, with
+	 *     the same elapsed time
+	 */
+	public DispatchResult<T> filter(Collection<T> targets) {
+		List<Outcome<T>> ret = new ArrayList<>();
+		for (Outcome<T> o : outcomes) {
+			if (targets.contains(o.getTarget())) {
+				ret.add(o);
+			}
+		}
+
+		return new DispatchResult<>(ret, elapsed);
+	}
+
+	public List<Outcome<T>> getOutcomes() {
+		return outcomes;
+	}
+
+	/**
+	 * @return every target a command was sent to, whether or not it succeeded
+	 */
+	public List<T> getTargets() {
+		List<T> ret = new ArrayList<>();
+		for (Outcome<T> o : outcomes) {
+			ret.add(o.getTarget());
+		}
+
+		return ret;
+	}
+
+	public List<T> getSucceeded() {
+		List<T> ret = new ArrayList<>();
+		for (Outcome<T> o : outcomes) {
+			if (o.isSuccess()) {
+				ret.add(o.getTarget());
+			}
+		}
+
+		return ret;
+	}
+
+	public List<Outcome<T>> getFailed() {
+		List<Outcome<T>> ret = new ArrayList<>();
+		for (Outcome<T> o : outcomes) {
+			if (!o.isSuccess()) {
+				ret.add(o);
+			}
+		}
+
+		return ret;
+	}
+
+	/**
+	 * @return true if the command succeeded for every target
+	 */
+	public boolean isSuccess() {
+		for (Outcome<T> o : outcomes) {
+			if (!o.isSuccess()) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return the wall-clock time taken for the whole dispatch, in
+	 *     milliseconds
+	 */
+	public long getElapsed() {
+		return elapsed;
+	}
+
+	/**
+	 * @return the slowest single-target latency, in milliseconds
+	 */
+	public long getMaxLatency() {
+		long max = 0;
+		for (Outcome<T> o : outcomes) {
+			max = Math.max(max, o.getLatency());
+		}
+
+		return max;
+	}
+
+	@Override
+	public String toString() {
+		return "DispatchResult[" + (outcomes.size() - getFailed().size()) + "/"
+				+ outcomes.size() + " ok, " + elapsed + " ms]";
+	}
+
+}
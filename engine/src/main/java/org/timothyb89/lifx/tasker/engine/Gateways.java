@@ -0,0 +1,53 @@
+package org.timothyb89.lifx.tasker.engine;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import org.timothyb89.lifx.gateway.Gateway;
+
+/**
+ * Connects to gateways found outside lifx-java's own discovery, e.g. an
+ * address from the bulb cache or one a transport probed for itself.
+ * <p>
+ * This is the only place the plugin constructs a lifx-java {@link Gateway}
+ * rather than receiving one in a {@code GatewayDiscoveredEvent}, so it is the
+ * only code that depends on the {@code Gateway(InetAddress, int)} constructor
+ * and {@link Gateway#connect()}. Transports should go through here instead of
+ * building gateways themselves.
+ * @author tim
+ */
+public class Gateways {
+
+	private Gateways() {
+		// static only
+	}
+
+	/**
+	 * Opens a connection to a gateway. The gateway reports its bulbs through
+	 * {@code GatewayBulbDiscoveredEvent}s on its bus, as discovered gateways
+	 * do.
+	 * @param address the gateway's IP address
+	 * @param port the gateway's TCP port, as announced in its discovery reply
+	 * @return the connected gateway
+	 * @throws IOException if the gateway can't be reached
+	 */
+	public static Gateway connect(InetAddress address, int port)
+			throws IOException {
+		Gateway gateway = new Gateway(address, port);
+		gateway.connect();
+
+		return gateway;
+	}
+
+	/**
+	 * Opens a connection to a gateway on the default LIFX port.
+	 * @param address the gateway's IP address, as a string
+	 * @return the connected gateway
+	 * @throws IOException if the address is invalid or the gateway can't be
+	 *     reached
+	 * @see LIFXEngine#GATEWAY_PORT
+	 */
+	public static Gateway connect(String address) throws IOException {
+		return connect(InetAddress.getByName(address), LIFXEngine.GATEWAY_PORT);
+	}
+
+}
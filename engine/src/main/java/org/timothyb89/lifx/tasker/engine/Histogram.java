@@ -0,0 +1,123 @@
+package org.timothyb89.lifx.tasker.engine;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative values (usually latencies in
+ * milliseconds) using power-of-two buckets. Percentiles are approximate: they
+ * report the upper bound of the bucket the percentile falls in.
+ * @author tim
+ */
+public class Histogram {
+
+	/**
+	 * Bucket {@code i} holds values up to {@code 2^i}; the last bucket holds
+	 * everything larger.
+	 */
+	public static final int BUCKETS = 20;
+
+	private final AtomicLongArray counts;
+	private final AtomicLong count;
+	private final AtomicLong sum;
+	private final AtomicLong max;
+
+	public Histogram() {
+		counts = new AtomicLongArray(BUCKETS);
+		count = new AtomicLong();
+		sum = new AtomicLong();
+		max = new AtomicLong();
+	}
+
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+
+		counts.incrementAndGet(bucket(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+
+		long m;
+		while ((m = max.get()) < value) {
+			if (max.compareAndSet(m, value)) {
+				break;
+			}
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getSum() {
+		return sum.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * @param percentile the percentile, from 0 to 1
+	 * @return the approximate value at the given percentile, or 0 if empty
+	 */
+	public long getPercentile(double percentile) {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+
+		long target = Math.max(1, (long) Math.ceil(percentile * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= target) {
+				return Math.min(upperBound(i), max.get());
+			}
+		}
+
+		return max.get();
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	private static int bucket(long value) {
+		if (value <= 1) {
+			return 0;
+		}
+
+		// smallest i with value <= 2^i
+		int i = 64 - Long.numberOfLeadingZeros(value - 1);
+
+		return Math.min(i, BUCKETS - 1);
+	}
+
+	private static long upperBound(int bucket) {
+		return 1L << bucket;
+	}
+
+	@Override
+	public String toString() {
+		return "n=" + getCount()
+				+ " mean=" + String.format("%.1f", getMean())
+				+ " p50=" + getPercentile(0.5)
+				+ " p90=" + getPercentile(0.9)
+				+ " p99=" + getPercentile(0.99)
+				+ " max=" + getMax();
+	}
+
+}
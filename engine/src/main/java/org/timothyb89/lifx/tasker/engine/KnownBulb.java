@@ -0,0 +1,62 @@
+package org.timothyb89.lifx.tasker.engine;
+
+/**
+ * A bulb seen during a previous discovery, as stored in the {@link BulbCache}.
+ * @author tim
+ */
+public class KnownBulb {
+
+	private final String label;
+	private final String address;
+	private final String gatewayAddress;
+	private final String network;
+	private final long lastSeen;
+
+	public KnownBulb(
+			String label, String address, String gatewayAddress,
+			String network, long lastSeen) {
+		this.label = label;
+		this.address = address;
+		this.gatewayAddress = gatewayAddress;
+		this.network = network;
+		this.lastSeen = lastSeen;
+	}
+
+	public String getLabel() {
+		return label;
+	}
+
+	/**
+	 * @return the bulb's MAC address, as a lowercase hex string
+	 */
+	public String getAddress() {
+		return address;
+	}
+
+	public String getGatewayAddress() {
+		return gatewayAddress;
+	}
+
+	/**
+	 * @return the key of the network this bulb was seen on, or null if
+	 *     unknown
+	 */
+	public String getNetwork() {
+		return network;
+	}
+
+	/**
+	 * @return the time this bulb was last discovered, in milliseconds since
+	 *     the epoch
+	 */
+	public long getLastSeen() {
+		return lastSeen;
+	}
+
+	@Override
+	public String toString() {
+		return "KnownBulb[" + label + ", " + address + " @ " + gatewayAddress
+				+ "]";
+	}
+
+}
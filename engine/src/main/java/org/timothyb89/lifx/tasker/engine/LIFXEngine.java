@@ -0,0 +1,1784 @@
+package org.timothyb89.lifx.tasker.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.timothyb89.eventbus.EventHandler;
+import org.timothyb89.lifx.bulb.Bulb;
+import org.timothyb89.lifx.bulb.BulbPowerStateUpdatedEvent;
+import org.timothyb89.lifx.bulb.BulbStatusUpdatedEvent;
+import org.timothyb89.lifx.bulb.LIFXColor;
+import org.timothyb89.lifx.bulb.PowerState;
+import org.timothyb89.lifx.gateway.Gateway;
+import org.timothyb89.lifx.gateway.GatewayBulbDiscoveredEvent;
+import org.timothyb89.lifx.gateway.GatewayManager;
+import org.timothyb89.lifx.net.GatewayDiscoveredEvent;
+import org.timothyb89.lifx.tasker.engine.AddressPlanner.Group;
+import org.timothyb89.lifx.tasker.engine.CommandQueue.Power;
+import org.timothyb89.lifx.tasker.engine.RateLimiter.Lane;
+
+/**
+ * The platform-independent core of the plugin: discovery, bulb resolution,
+ * command dispatch, pulses, refreshes and confirmation.
+ * <p>
+ * The engine has no Android dependencies. The host supplies a
+ * {@link Transport} to discover gateways through, registers the engine on
+ * that transport's event bus, and reports network changes via
+ * {@link #networkChanged(String)}.
+ * @author tim
+ */
+public class LIFXEngine {
+
+	private static final Logger log = LoggerFactory.getLogger(LIFXEngine.class);
+
+	public static final int  DISCOVERY_ATTEMPTS   = 5;
+	public static final long DISCOVERY_WAIT       = 100; // milliseconds
+	public static final long DISCOVERY_WAIT_SMALL = 250;
+	public static final long DISCOVERY_WAIT_LONG  = 2500;
+
+	public static final long DEFAULT_PULSE_DELAY = 1500;
+
+	public static final int GATEWAY_PORT = 56700;
+
+	/**
+	 * Appended to the bulb cache's file name to give the file discovery
+	 * timings are kept in.
+	 */
+	public static final String TIMING_SUFFIX = ".timing";
+
+	public static final long CONFIRM_TIMEOUT  = 1000; // milliseconds
+	public static final long CONFIRM_INTERVAL = 200;
+
+	/**
+	 * The socket gateways are discovered (and bulbs controlled) through.
+	 */
+	public interface Transport {
+
+		/**
+		 * Binds the socket, if needed, and starts looking for gateways. This
+		 * is also called on a bound socket after {@link #stopDiscovery()} to
+		 * start another discovery run.
+		 * @throws IOException if the socket can't be bound
+		 */
+		void startListen() throws IOException;
+
+		/**
+		 * Stops looking for new gateways, leaving the socket bound.
+		 * @throws IOException if discovery can't be stopped
+		 */
+		void stopDiscovery() throws IOException;
+
+		/**
+		 * Closes the socket.
+		 * @throws IOException if the socket can't be closed
+		 */
+		void stopListen() throws IOException;
+
+		boolean isListening();
+
+		/**
+		 * Connects straight to a gateway seen on an earlier run, without
+		 * waiting for it to answer discovery. The gateway reports its bulbs
+		 * through {@link GatewayBulbDiscoveredEvent}s as usual.
+		 * @param address the gateway's IP address
+		 * @return the connected gateway
+		 * @throws IOException if the gateway can't be reached
+		 */
+		Gateway connect(String address) throws IOException;
+
+	}
+
+	/**
+	 * Notified of engine events the host may want to surface.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called with the (possibly merged) changes to the bulb list, on the
+		 * delta publisher's thread.
+		 * @param delta the changes
+		 */
+		void bulbsChanged(RegistryDelta<Bulb> delta);
+
+		/**
+		 * Called if the LIFX port could not be bound, usually because another
+		 * app is holding it.
+		 * @param ex the bind failure
+		 */
+		void bindFailed(BindException ex);
+
+	}
+
+	private final Transport transport;
+	private final BulbCache cache;
+	private volatile Listener listener;
+
+	private final CopyOnWriteArrayList<Gateway> gateways;
+	private final BulbRegistry<Bulb> bulbs;
+	private final BulbResolver<Bulb> resolver;
+	private final DeltaPublisher<Bulb> updates;
+
+	private final DiscoveryAwaiter awaiter;
+	private final DiscoveryTimer timing;
+	private final File timingFile;
+	private final DiscoveryBatcher<Bulb, Gateway> batcher;
+	private Timer discoveryEnd;
+	private final CommandDispatcher dispatcher;
+
+	private final Map<String, Gateway> bulbGateways;
+	private final AddressPlanner<Bulb, Gateway> planner;
+	private final CommandQueue<Bulb> queue;
+	private final RateLimiter limiter;
+	private final PulseEngine pulses;
+	private final SocketLifecycle socket;
+	private final StateConfirmer<Bulb> confirmer;
+	private final Set<Bulb> watched;
+
+	private volatile boolean closePending;
+
+	private final Metrics metrics;
+	private volatile long discoveryStarted;
+	private volatile long discoveryDeadline;
+	private final Set<String> restoring;
+	private final Set<String> provisional;
+	private final Set<String> answered;
+
+	private final SuspendedNetworks<Bulb, Gateway> suspended;
+	private String network;
+	private boolean networkKnown;
+	private final AtomicLong networkSeq;
+	private long networkApplied;
+
+	private final ExecutorService background;
+
+	/**
+	 * @param transport the socket to discover gateways through
+	 * @param cache the persistent bulb cache
+	 */
+	public LIFXEngine(Transport transport, BulbCache cache) {
+		this.transport = transport;
+		this.cache = cache;
+
+		metrics = new Metrics();
+
+		background = Executors.newCachedThreadPool(new ThreadFactory() {
+
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "engine-" + count.incrementAndGet());
+				t.setDaemon(true);
+
+				return t;
+			}
+
+		});
+
+		gateways = new CopyOnWriteArrayList<>();
+		bulbs = new BulbRegistry<>(BulbKeys.BULBS);
+		resolver = new BulbResolver<>(bulbs, cache, metrics);
+		updates = new DeltaPublisher<>(new DeltaPublisher.Sink<Bulb>() {
+
+			@Override
+			public void publish(RegistryDelta<Bulb> delta) {
+				log.debug("Bulb list updated: {}", delta);
+
+				Listener l = listener;
+				if (l != null) {
+					l.bulbsChanged(delta);
+				}
+			}
+
+		});
+		bulbs.setListener(new BulbRegistry.Listener<Bulb>() {
+
+			@Override
+			public void registryChanged(RegistryDelta<Bulb> delta) {
+				updates.offer(delta);
+			}
+
+		});
+		awaiter = new DiscoveryAwaiter();
+		timing = new DiscoveryTimer(
+				DISCOVERY_ATTEMPTS * DISCOVERY_WAIT,
+				DISCOVERY_ATTEMPTS * DISCOVERY_WAIT_SMALL,
+				DISCOVERY_WAIT_LONG);
+		timingFile = new File(cache.getFile().getPath() + TIMING_SUFFIX);
+		dispatcher = new CommandDispatcher();
+
+		batcher = new DiscoveryBatcher<>(
+				new DiscoveryBatcher.Flusher<Bulb, Gateway>() {
+
+			@Override
+			public void flush(List<Bulb> added, List<Gateway> refresh) {
+				discoveryFlushed(added, refresh);
+			}
+
+		});
+		limiter = new RateLimiter();
+
+		pulses = new PulseEngine(new PulseEngine.Restorer() {
+
+			@Override
+			public void restore(Map<Bulb, LIFXColor> colors) {
+				LIFXEngine.this.restore(colors);
+			}
+
+		});
+		socket = new SocketLifecycle(new Runnable() {
+
+			@Override
+			public void run() {
+				log.info("Socket idle, closing.");
+				closeSocket();
+			}
+
+		});
+
+		pulses.setIdleListener(new PulseEngine.IdleListener() {
+
+			@Override
+			public void pulsesIdle() {
+				if (closePending) {
+					closePending = false;
+
+					// the socket may have been acquired while the pulses ran
+					if (!socket.closeIfIdle()) {
+						log.debug("Socket in use again, dropping deferred close.");
+					}
+				}
+			}
+
+		});
+
+		bulbGateways = new ConcurrentHashMap<>();
+		planner = new AddressPlanner<>(new AddressPlanner.Topology<Bulb, Gateway>() {
+
+			@Override
+			public Gateway getGateway(Bulb bulb) {
+				return bulbGateways.get(BulbKeys.address(bulb));
+			}
+
+			@Override
+			public Collection<Bulb> getBulbs(Gateway gateway) {
+				return gateway.getBulbs();
+			}
+
+		});
+
+		queue = new CommandQueue<>(new CommandQueue.Sender<Bulb>() {
+
+			@Override
+			public DispatchResult<Bulb> send(
+					List<CommandQueue.Entry<Bulb>> batch) {
+				return LIFXEngine.this.send(batch);
+			}
+
+		});
+
+		confirmer = new StateConfirmer<>(new StateConfirmer.Refresher<Bulb>() {
+
+			@Override
+			public void refresh(Collection<Bulb> targets) {
+				LIFXEngine.this.refresh(targets);
+			}
+
+		});
+		watched = Collections.newSetFromMap(
+				new ConcurrentHashMap<Bulb, Boolean>());
+		restoring = Collections.newSetFromMap(
+				new ConcurrentHashMap<String, Boolean>());
+		provisional = Collections.newSetFromMap(
+				new ConcurrentHashMap<String, Boolean>());
+		answered = Collections.newSetFromMap(
+				new ConcurrentHashMap<String, Boolean>());
+
+		suspended = new SuspendedNetworks<>();
+		networkSeq = new AtomicLong();
+
+		registerGauges();
+	}
+
+	private void registerGauges() {
+		metrics.gauge("registry.bulbs", new Metrics.Gauge() {
+
+			@Override
+			public long getValue() {
+				return bulbs.size();
+			}
+
+		});
+		metrics.gauge("registry.gateways", new Metrics.Gauge() {
+
+			@Override
+			public long getValue() {
+				return gateways.size();
+			}
+
+		});
+		metrics.gauge("registry.version", new Metrics.Gauge() {
+
+			@Override
+			public long getValue() {
+				return bulbs.getVersion();
+			}
+
+		});
+		metrics.gauge("queue.submitted", new Metrics.Gauge() {
+
+			@Override
+			public long getValue() {
+				return queue.getSubmitted();
+			}
+
+		});
+		metrics.gauge("queue.coalesced", new Metrics.Gauge() {
+
+			@Override
+			public long getValue() {
+				return queue.getCoalesced();
+			}
+
+		});
+		metrics.gauge("queue.pending", new Metrics.Gauge() {
+
+			@Override
+			public long getValue() {
+				return queue.getPending();
+			}
+
+		});
+		metrics.gauge("discovery.batches", new Metrics.Gauge() {
+
+			@Override
+			public long getValue() {
+				return batcher.getBatches();
+			}
+
+		});
+		metrics.gauge("limiter.buckets", new Metrics.Gauge() {
+
+			@Override
+			public long getValue() {
+				return limiter.getBucketCount();
+			}
+
+		});
+		metrics.gauge("socket.users", new Metrics.Gauge() {
+
+			@Override
+			public long getValue() {
+				return socket.getUsers();
+			}
+
+		});
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Loads the bulb cache and discovery timings and starts discovery, in the
+	 * background. The cache is loaded first so the gateways it lists can be
+	 * reconnected to straight away, and discovery then revalidates them.
+	 */
+	public void start() {
+		background(new Runnable() {
+
+			@Override
+			public void run() {
+				cache.load();
+				timing.load(timingFile);
+				restoreGateways();
+
+				timedListen();
+			}
+
+		});
+	}
+
+	/**
+	 * Connects directly to every cached gateway on the current network that
+	 * isn't connected yet, so lookups for cached bulbs can be answered as soon
+	 * as their gateway reports them rather than after a discovery run.
+	 * Gateways restored from a suspended network are reconnected too, since
+	 * their connections may have gone stale while the network was away.
+	 */
+	private void restoreGateways() {
+		Set<String> addresses = cache.getGatewayAddresses();
+		for (Gateway g : gateways) {
+			String address = BulbKeys.address(g);
+			if (!provisional.contains(address)) {
+				addresses.remove(address);
+			}
+		}
+
+		for (final String address : addresses) {
+			if (!restoring.add(address)) {
+				continue;
+			}
+
+			background(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						log.debug("Reconnecting to cached gateway {}", address);
+						gatewayFound(transport.connect(address), false);
+						metrics.counter("discovery.restored").increment();
+					} catch (IOException ex) {
+						log.info("Cached gateway {} unreachable", address);
+					} finally {
+						restoring.remove(address);
+					}
+				}
+
+			});
+		}
+	}
+
+	/**
+	 * Stops every engine thread. Queued commands are abandoned.
+	 */
+	public void shutdown() {
+		queue.shutdown();
+		batcher.shutdown();
+		updates.shutdown();
+		pulses.shutdown();
+		socket.shutdown();
+		dispatcher.shutdown();
+		background.shutdownNow();
+	}
+
+	private void background(Runnable r) {
+		try {
+			background.execute(r);
+		} catch (RejectedExecutionException ex) {
+			log.debug("Engine shut down, dropping background task");
+		}
+	}
+
+	/**
+	 * Starts a discovery run unless one is already under way, binding the
+	 * socket first if needed. A socket kept bound between actions stops
+	 * discovering once its window ends, so this reruns discovery on the bound
+	 * socket rather than treating a bound socket as a running search.
+	 */
+	private synchronized void timedListen() {
+		if (discoveryEnd != null && transport.isListening()) {
+			return;
+		}
+
+		try {
+			log.info("Starting gateway discovery...");
+			transport.startListen();
+			answered.clear();
+			timing.started();
+			discoveryStarted = System.currentTimeMillis();
+			metrics.counter("discovery.runs").increment();
+
+			long window = timing.getDiscoveryWindow();
+			discoveryDeadline = discoveryStarted + window;
+			log.debug("Discovery window: {} ms", window);
+
+			if (discoveryEnd != null) {
+				// left over from a run cut short by closing the socket
+				discoveryEnd.cancel();
+			}
+
+			discoveryEnd = new Timer(true);
+			discoveryEnd.schedule(new TimerTask() {
+
+				@Override
+				public void run() {
+					endDiscovery();
+				}
+
+			}, window);
+		} catch (BindException ex) {
+			log.error("Unable to bind to LIFX port.", ex);
+
+			Listener l = listener;
+			if (l != null) {
+				l.bindFailed(ex);
+			}
+		} catch (IOException ex) {
+			log.error("Unable to listen for gateways", ex);
+		}
+	}
+
+	/**
+	 * Ends the current discovery run, if any. This is called once the
+	 * discovery window has elapsed, or earlier if every expected gateway has
+	 * already answered.
+	 */
+	private synchronized void endDiscovery() {
+		if (discoveryEnd == null) {
+			return;
+		}
+
+		discoveryEnd.cancel();
+		discoveryEnd = null;
+		discoveryDeadline = 0;
+		timing.finished();
+
+		// lookups waiting on bulbs nobody knew about can give up now
+		awaiter.signal();
+
+		metrics.histogram("discovery.duration").record(
+				System.currentTimeMillis() - discoveryStarted);
+
+		try {
+			transport.stopDiscovery();
+			log.info(
+					"Gateway discovery ended, {} gateways found.",
+					gateways.size());
+		} catch (IOException ex) {
+			log.error("Unable to stop listener", ex);
+		}
+
+		cache.save();
+		timing.save(timingFile);
+	}
+
+	/**
+	 * @return true if every gateway the cache expects on this network has
+	 *     answered the current discovery run
+	 */
+	private boolean allGatewaysFound() {
+		Set<String> expected = cache.getGatewayAddresses();
+		if (expected.isEmpty()) {
+			return false;
+		}
+
+		expected.removeAll(answered);
+
+		return expected.isEmpty();
+	}
+
+	/**
+	 * Starts discovery in the background, if it isn't already running.
+	 */
+	public void backgroundTimedListen() {
+		background(new Runnable() {
+
+			@Override
+			public void run() {
+				timedListen();
+			}
+
+		});
+	}
+
+	/**
+	 * Swaps the registry over to a new network. Gateways and bulbs seen on the
+	 * old network are set aside rather than purged, and any previously
+	 * suspended registry for the new network is restored immediately so
+	 * lookups don't have to wait for a full rediscovery. If the socket is
+	 * bound it is rebound and discovery rerun to revalidate the restored
+	 * entries.
+	 * <p>
+	 * This returns immediately, so it is safe to call from the main thread;
+	 * the swap itself runs on a background thread. If several changes are
+	 * reported in quick succession, only the latest is applied.
+	 * @param key the new network key, or null if disconnected
+	 */
+	public void networkChanged(final String key) {
+		final long seq = networkSeq.incrementAndGet();
+
+		background(new Runnable() {
+
+			@Override
+			public void run() {
+				swapNetwork(key, seq);
+			}
+
+		});
+	}
+
+	/**
+	 * Applies a reported network change, unless a newer one has already been
+	 * applied.
+	 * @param key the new network key, or null if disconnected
+	 * @param seq the report's sequence number
+	 */
+	private synchronized void swapNetwork(String key, long seq) {
+		if (seq < networkApplied) {
+			log.debug("Skipping stale network change to {}", key);
+			return;
+		}
+
+		networkApplied = seq;
+
+		if (!networkKnown) {
+			// first report, nothing to swap yet
+			network = key;
+			networkKnown = true;
+			cache.setNetwork(key);
+			timing.setNetwork(key);
+			restoreGateways();
+			return;
+		}
+
+		if (key == null ? network == null : key.equals(network)) {
+			return;
+		}
+
+		log.info("Network changed from {} to {}", network, key);
+
+		suspended.suspend(network, new SuspendedNetworks.Snapshot<>(
+				gateways, bulbs.getBulbs(), bulbGateways));
+
+		bulbs.clear();
+		gateways.clear();
+		bulbGateways.clear();
+		provisional.clear();
+
+		network = key;
+		cache.setNetwork(key);
+		timing.setNetwork(key);
+
+		SuspendedNetworks.Snapshot<Bulb, Gateway> restored =
+				suspended.resume(key);
+		if (restored != null) {
+			log.info(
+					"Restoring {} gateways and {} bulbs for {}",
+					restored.getGateways().size(),
+					restored.getBulbs().size(),
+					key);
+
+			// kept until discovery or a reconnect hands us a live gateway
+			for (Gateway g : restored.getGateways()) {
+				if (gateways.addIfAbsent(g)) {
+					provisional.add(BulbKeys.address(g));
+				}
+			}
+
+			for (Bulb b : restored.getBulbs()) {
+				bulbs.add(b);
+				watch(b);
+			}
+			bulbGateways.putAll(restored.getBulbGateways());
+		}
+
+		awaiter.signal();
+
+		if (key != null) {
+			restoreGateways();
+		}
+
+		if (transport.isListening()) {
+			// the socket is bound to the old interface
+			closeSocket();
+
+			if (key != null) {
+				backgroundTimedListen();
+			}
+		}
+	}
+
+	@EventHandler
+	public void gatewayDiscovered(GatewayDiscoveredEvent event) {
+		gatewayFound(event.getGateway(), true);
+	}
+
+	/**
+	 * Registers a gateway that answered discovery, for transports that find
+	 * gateways themselves rather than posting {@link GatewayDiscoveredEvent}s.
+	 * @param gateway the connected gateway
+	 */
+	public void gatewayDiscovered(Gateway gateway) {
+		gatewayFound(gateway, true);
+	}
+
+	/**
+	 * Registers a gateway, either found by discovery or reconnected to from
+	 * the cache.
+	 * @param gateway the gateway
+	 * @param discovered true if the gateway answered discovery
+	 */
+	private void gatewayFound(Gateway gateway, boolean discovered) {
+		log.info("Found gateway: {}", gateway);
+
+		if (discovered) {
+			String address = BulbKeys.address(gateway);
+			if (address == null || answered.add(address)) {
+				timing.responded(DiscoveryTimer.Kind.GATEWAY);
+			}
+
+			if (allGatewaysFound()) {
+				log.debug("All expected gateways found, ending discovery early.");
+				background(new Runnable() {
+
+					@Override
+					public void run() {
+						endDiscovery();
+					}
+
+				});
+			}
+		}
+
+		if (!addGateway(gateway)) {
+			// already reconnected to from the cache, which this revalidates
+			log.debug("Gateway already known: {}", gateway);
+			return;
+		}
+
+		for (Bulb b : gateway.getBulbs()) {
+			// replaces any bulb restored with a stale gateway
+			if (bulbs.add(b)) {
+				batcher.bulbAdded(b);
+			}
+
+			watch(b);
+			remember(b, gateway);
+		}
+
+		gateway.bus().register(this);
+
+		awaiter.signal();
+	}
+
+	@EventHandler
+	public void bulbDiscovered(GatewayBulbDiscoveredEvent event) {
+		log.info("Found bulb: {}", event.getBulb());
+		log.info("Gateway is now: {}", event.getGateway());
+
+		remember(event.getBulb(), event.getGateway());
+
+		// this may be a status reply for a bulb awaiting confirmation
+		confirmer.reported(event.getBulb());
+
+		boolean added = bulbs.add(event.getBulb());
+
+		// a live bulb may replace one restored with a stale gateway
+		watch(event.getBulb());
+
+		if (!added) {
+			// already registered via the gateway's bulb list
+			return;
+		}
+
+		timing.responded(DiscoveryTimer.Kind.BULB);
+		awaiter.signal();
+
+		// lookups see the bulb right away, but the refresh and notification
+		// are batched with the rest of the gateway's bulbs
+		batcher.bulbAdded(event.getBulb());
+		batcher.refresh(event.getGateway());
+	}
+
+	/**
+	 * Handles a batch of discovery events by refreshing each affected gateway
+	 * once. List updates for the batch are merged by the delta publisher.
+	 * @param added the bulbs added in this batch
+	 * @param refresh the gateways to refresh
+	 */
+	private void discoveryFlushed(List<Bulb> added, List<Gateway> refresh) {
+		refreshGateways(refresh);
+
+		if (!added.isEmpty()) {
+			log.info("{} bulbs discovered", added.size());
+		}
+	}
+
+	/**
+	 * Passes one bulb's state reports on to the confirmer.
+	 */
+	protected class BulbWatcher {
+
+		private final Bulb bulb;
+
+		public BulbWatcher(Bulb bulb) {
+			this.bulb = bulb;
+		}
+
+		@EventHandler
+		public void bulbStateUpdated(BulbPowerStateUpdatedEvent event) {
+			confirmer.reported(bulb);
+		}
+
+		@EventHandler
+		public void bulbStatusUpdated(BulbStatusUpdatedEvent event) {
+			// light status replies carry the color
+			confirmer.reported(bulb);
+		}
+
+	}
+
+	/**
+	 * Subscribes to a bulb's state updates so pending confirmations are
+	 * checked as soon as it reports in.
+	 * @param bulb the bulb to watch
+	 */
+	private void watch(Bulb bulb) {
+		if (watched.add(bulb)) {
+			bulb.bus().register(new BulbWatcher(bulb));
+		}
+	}
+
+	/**
+	 * Records a discovered bulb in the persistent cache.
+	 * @param bulb the bulb that was found
+	 * @param gateway the gateway the bulb was found on
+	 */
+	private void remember(Bulb bulb, Gateway gateway) {
+		bulbGateways.put(BulbKeys.address(bulb), gateway);
+
+		cache.update(
+				bulb.getLabel(),
+				BulbKeys.address(bulb),
+				BulbKeys.address(gateway));
+	}
+
+	/**
+	 * Adds a gateway unless one with the same address is already registered.
+	 * A provisional gateway, restored from a suspended network or one that
+	 * failed a refresh, is replaced by the live one instead and its bulbs are
+	 * routed through it.
+	 * @param gateway the gateway to add
+	 * @return true if the gateway was added or replaced a provisional one
+	 */
+	private synchronized boolean addGateway(Gateway gateway) {
+		String address = BulbKeys.address(gateway);
+		for (int i = 0; i < gateways.size(); i++) {
+			Gateway g = gateways.get(i);
+			if (g == gateway) {
+				return false;
+			}
+
+			if (address == null || !address.equals(BulbKeys.address(g))) {
+				continue;
+			}
+
+			if (!provisional.remove(address)) {
+				return false;
+			}
+
+			log.debug("Replacing restored gateway {}", address);
+			gateways.set(i, gateway);
+
+			// registry entries follow as the live gateway reports its bulbs
+			for (Map.Entry<String, Gateway> e : bulbGateways.entrySet()) {
+				bulbGateways.replace(e.getKey(), g, gateway);
+			}
+
+			return true;
+		}
+
+		return gateways.add(gateway);
+	}
+
+	/**
+	 * Checks if a live gateway is registered at an address, for transports
+	 * deciding whether a gateway answering discovery needs connecting to.
+	 * Gateways restored from a suspended network or that have failed a
+	 * refresh don't count, so a rebooted gateway is reconnected.
+	 * @param address the gateway's IP address
+	 * @return true if a live gateway is registered at the address
+	 */
+	public boolean isConnected(InetAddress address) {
+		String key = address.getHostAddress();
+		if (provisional.contains(key)) {
+			return false;
+		}
+
+		for (Gateway g : gateways) {
+			if (key.equals(BulbKeys.address(g))) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Checks if we should keep waiting for a bulb to be discovered. Bulbs in
+	 * the cache are expected to turn up; any other name is waited for until
+	 * the current discovery run ends, in case it is a new or renamed bulb.
+	 * @param name the bulb label or address
+	 * @return true if discovery is expected to turn up this bulb
+	 */
+	private boolean isExpected(String name) {
+		if (cache.isEmpty() || cache.isKnown(name)) {
+			return true;
+		}
+
+		return discoveryDeadline > System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns how long to wait for the given names. Cached bulbs get the
+	 * adaptive bulb wait; unknown names may wait out the rest of the
+	 * discovery window.
+	 * @param names the names still missing
+	 * @return the wait, in milliseconds
+	 */
+	private long bulbWait(List<String> names) {
+		long wait = timing.getBulbWait();
+		for (String name : names) {
+			if (!cache.isKnown(name)) {
+				long remaining = discoveryDeadline - System.currentTimeMillis();
+				return Math.max(wait, remaining);
+			}
+		}
+
+		return wait;
+	}
+
+	/**
+	 * Returns the known gateways, attempting to discover new gateways if none
+	 * are available.
+	 * @return a list of gateways
+	 */
+	private List<Gateway> waitForGateways() {
+		if (!gateways.isEmpty()) {
+			refreshAll();
+			return gateways;
+		}
+
+		timedListen();
+
+		boolean found = waitFor(new DiscoveryAwaiter.Condition() {
+
+			@Override
+			public boolean isSatisfied() {
+				return !gateways.isEmpty();
+			}
+
+		}, timing.getGatewayWait());
+
+		if (!found && !cache.getGatewayAddresses().isEmpty()) {
+			// a gateway we've seen before should have answered by now
+			timing.timedOut();
+		}
+
+		return gateways;
+	}
+
+	/**
+	 * Finds a bulb by label or address, waiting for discovery if the bulb
+	 * isn't known yet but is expected to turn up.
+	 * @param name the bulb label or address
+	 * @return the bulb, or null if it could not be found
+	 */
+	public Bulb findBulb(final String name) {
+		// mainly we'll be waiting for discovery here
+
+		// also start listening for new gateways, in case we missed one
+		timedListen();
+
+		Bulb bulb = resolver.search(name);
+		if (bulb == null && isExpected(name)) {
+			boolean found = waitFor(new DiscoveryAwaiter.Condition() {
+
+				@Override
+				public boolean isSatisfied() {
+					// newly discovered bulbs are indexed on arrival
+					return resolver.lookup(name) != null || !isExpected(name);
+				}
+
+			}, bulbWait(Collections.singletonList(name)));
+
+			if (!found) {
+				backOff(Collections.singletonList(name));
+			}
+
+			bulb = resolver.search(name);
+		}
+
+		if (bulb == null) {
+			log.warn("Bulb could not be found: {}", name);
+			return null;
+		}
+
+		log.debug("Bulb found: {}", bulb);
+
+		return bulb;
+	}
+
+	/**
+	 * Finds a number of bulbs by label or address, waiting for discovery if
+	 * any are missing but expected to turn up.
+	 * @param names the bulb labels or addresses
+	 * @return the bulbs found, each listed once even if named more than once
+	 */
+	public List<Bulb> findBulbs(String[] names) {
+		final List<String> remaining = new ArrayList<>();
+		remaining.addAll(Arrays.asList(names));
+
+		final Set<Bulb> ret = new LinkedHashSet<>();
+
+		timedListen();
+
+		ret.addAll(resolver.search(remaining));
+		if (!remaining.isEmpty() && anyExpected(remaining)) {
+			boolean found = waitFor(new DiscoveryAwaiter.Condition() {
+
+				@Override
+				public boolean isSatisfied() {
+					ret.addAll(resolver.lookupAll(remaining));
+
+					return remaining.isEmpty() || !anyExpected(remaining);
+				}
+
+			}, bulbWait(remaining));
+
+			if (!found) {
+				backOff(remaining);
+			}
+
+			// try one more time
+			if (!remaining.isEmpty()) {
+				ret.addAll(resolver.search(remaining));
+			}
+		}
+
+		Tracer.markCurrent(Tracer.Phase.RESOLVED);
+
+		if (!remaining.isEmpty()) {
+			log.warn("Bulbs could not be found: {}", remaining);
+		} else {
+			log.debug("Bulbs found: {}", ret);
+		}
+
+		return new ArrayList<>(ret);
+	}
+
+	/**
+	 * Waits for a discovery condition. A satisfied wait relaxes any discovery
+	 * backoff; callers decide whether a timeout should widen it.
+	 */
+	private boolean waitFor(DiscoveryAwaiter.Condition condition, long wait) {
+		if (awaiter.await(condition, wait)) {
+			timing.satisfied();
+			return true;
+		}
+
+		log.debug("Discovery wait timed out after {} ms", wait);
+		metrics.counter("discovery.wait_timeouts").increment();
+
+		return false;
+	}
+
+	/**
+	 * Widens the discovery windows after a bulb wait timed out, but only if
+	 * discovery was actually too slow: some name was a cached bulb whose
+	 * gateway has not answered yet, or has not reported its bulbs yet. Names
+	 * nobody knows, and cached bulbs missing from a gateway that has already
+	 * reported its bulbs (stale or removed bulbs), don't count.
+	 * @param missing the names still missing after the wait
+	 */
+	private void backOff(List<String> missing) {
+		for (String name : missing) {
+			KnownBulb known = cache.resolve(name);
+			if (known == null || known.getGatewayAddress() == null) {
+				continue;
+			}
+
+			Gateway gateway = getGateway(known.getGatewayAddress());
+			if (gateway == null || gateway.getBulbs().isEmpty()) {
+				log.debug("Expected bulb {} missing, backing off", name);
+				timing.timedOut();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @param address a gateway address
+	 * @return the registered gateway with this address, or null
+	 */
+	private Gateway getGateway(String address) {
+		for (Gateway g : gateways) {
+			if (address.equals(BulbKeys.address(g))) {
+				return g;
+			}
+		}
+
+		return null;
+	}
+
+	private boolean anyExpected(List<String> names) {
+		for (String name : names) {
+			if (isExpected(name)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	public void turnOn() {
+		for (Gateway g : waitForGateways()) {
+			if (!acquire(Lane.INTERACTIVE, g)) {
+				break;
+			}
+
+			try {
+				expect(g.getBulbs(), BulbExpectations.power(PowerState.ON));
+				g.turnOn();
+				sent("gateway.turnOn", g.getBulbs().size(), 1);
+			} catch (IOException ex) {
+				log.error("Unable to issue turnOn() command to gateway", ex);
+			}
+		}
+	}
+
+	public void turnOn(String bulbName) {
+		Bulb bulb = findBulb(bulbName);
+
+		if (bulb != null && acquire(Lane.INTERACTIVE, bulb)) {
+			try {
+				confirmer.expect(bulb, BulbExpectations.power(PowerState.ON));
+				bulb.turnOn();
+				sent("turnOn", 1, 1);
+			} catch (IOException ex) {
+				log.error("Error calling turnOn()", ex);
+			}
+		}
+	}
+
+	public DispatchResult<Bulb> turnOn(String[] bulbNames) {
+		return await(queue.submitPower(findBulbs(bulbNames), Power.ON));
+	}
+
+	public void turnOff() {
+		for (Gateway g : waitForGateways()) {
+			if (!acquire(Lane.INTERACTIVE, g)) {
+				break;
+			}
+
+			try {
+				expect(g.getBulbs(), BulbExpectations.power(PowerState.OFF));
+				g.turnOff();
+				sent("gateway.turnOff", g.getBulbs().size(), 1);
+			} catch (IOException ex) {
+				log.error("Unable to issue turnOff() command to gateway", ex);
+			}
+		}
+	}
+
+	public void turnOff(String bulbName) {
+		Bulb bulb = findBulb(bulbName);
+
+		if (bulb != null && acquire(Lane.INTERACTIVE, bulb)) {
+			try {
+				confirmer.expect(bulb, BulbExpectations.power(PowerState.OFF));
+				bulb.turnOff();
+				sent("turnOff", 1, 1);
+			} catch (IOException ex) {
+				log.error("Error calling turnOff()", ex);
+			}
+		}
+	}
+
+	public DispatchResult<Bulb> turnOff(String[] bulbNames) {
+		return await(queue.submitPower(findBulbs(bulbNames), Power.OFF));
+	}
+
+	public void toggle(String bulbName) {
+		Bulb bulb = findBulb(bulbName);
+
+		if (bulb != null && acquire(Lane.INTERACTIVE, bulb)) {
+			try {
+				log.info("Toggling: {}", bulb);
+				confirmer.expect(bulb, BulbExpectations.toggled(bulb));
+				if (bulb.getPowerState() == PowerState.ON) {
+					bulb.turnOff();
+				} else {
+					bulb.turnOn();
+				}
+				sent("toggle", 1, 1);
+			} catch (IOException ex) {
+				log.error("Error calling toggle() on " + bulb, ex);
+			}
+		}
+	}
+
+	public DispatchResult<Bulb> toggle(String[] bulbNames) {
+		log.info("Attempting toggle on: {}", (Object) bulbNames);
+
+		return await(queue.submitPower(findBulbs(bulbNames), Power.TOGGLE));
+	}
+
+	public void setColor(String bulbName, int color) {
+		Bulb bulb = findBulb(bulbName);
+
+		if (bulb != null && acquire(Lane.INTERACTIVE, bulb)) {
+			try {
+				LIFXColor c = Colors.toLIFX(color);
+
+				confirmer.expect(bulb, BulbExpectations.color(c));
+				bulb.setColor(c);
+				sent("setColor", 1, 1);
+			} catch (IOException ex) {
+				log.error("Error calling setColor()", ex);
+			}
+		}
+	}
+
+	public DispatchResult<Bulb> setColor(String[] bulbNames, int color) {
+		LIFXColor c = Colors.toLIFX(color);
+
+		return await(queue.submitColor(
+				findBulbs(bulbNames), BulbCommands.setColor(c)));
+	}
+
+	public DispatchResult<Bulb> pulse(String[] bulbNames, int color) {
+		List<Bulb> bulbs = findBulbs(bulbNames);
+
+		LIFXColor c = Colors.toLIFX(color);
+
+		// capture base colors before anything changes, then let the pulse
+		// engine restore them once the pulse ends; confirming a pulse means
+		// seeing the bulbs back in those colors
+		for (Map.Entry<Bulb, LIFXColor> e : pulses.begin(bulbs).entrySet()) {
+			confirmer.expect(e.getKey(), BulbExpectations.color(e.getValue()));
+		}
+
+		DispatchResult<Bulb> result = dispatch(
+				"pulse", Lane.TASKER, bulbs, BulbCommands.setColor(c));
+		Tracer.markCurrent(Tracer.Phase.SENT);
+
+		pulses.end(bulbs, DEFAULT_PULSE_DELAY);
+
+		return result;
+	}
+
+	/**
+	 * Restores bulbs to their colors from before a pulse.
+	 * @param colors the color to restore for each bulb
+	 */
+	private void restore(final Map<Bulb, LIFXColor> colors) {
+		dispatch("restore", Lane.TASKER, new ArrayList<>(colors.keySet()),
+				new CommandDispatcher.Command<Bulb>() {
+
+			@Override
+			public void execute(Bulb bulb) throws IOException {
+				bulb.setColor(colors.get(bulb));
+			}
+
+		});
+	}
+
+	/**
+	 * Waits for a queued command to be sent.
+	 * @param pass the queue pass that will send the command
+	 * @return the result of the whole pass, which may include other bulbs
+	 *     queued alongside this command
+	 */
+	private DispatchResult<Bulb> await(Future<DispatchResult<Bulb>> pass) {
+		try {
+			DispatchResult<Bulb> result = pass.get();
+			Tracer.markCurrent(Tracer.Phase.SENT);
+
+			return result;
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException ex) {
+			log.error("Error sending queued commands", ex.getCause());
+		}
+
+		return new DispatchResult<>(
+				new ArrayList<DispatchResult.Outcome<Bulb>>(), 0);
+	}
+
+	/**
+	 * Sends a batch of collapsed commands from the command queue. Colors are
+	 * set first so bulbs being turned on come up in their new color.
+	 * @param batch the commands to send
+	 * @return the combined per-bulb results
+	 */
+	private DispatchResult<Bulb> send(List<CommandQueue.Entry<Bulb>> batch) {
+		final Map<Bulb, CommandDispatcher.Command<Bulb>> colors;
+		colors = new LinkedHashMap<>();
+
+		List<Bulb> on = new ArrayList<>();
+		List<Bulb> off = new ArrayList<>();
+		List<Bulb> toggle = new ArrayList<>();
+
+		for (CommandQueue.Entry<Bulb> e : batch) {
+			if (e.getColor() != null) {
+				colors.put(e.getTarget(), e.getColor());
+			}
+
+			if (e.getPower() == Power.ON) {
+				on.add(e.getTarget());
+			} else if (e.getPower() == Power.OFF) {
+				off.add(e.getTarget());
+			} else if (e.getPower() == Power.TOGGLE) {
+				toggle.add(e.getTarget());
+			}
+		}
+
+		for (Map.Entry<Bulb, CommandDispatcher.Command<Bulb>> e
+				: colors.entrySet()) {
+			if (e.getValue() instanceof BulbCommands.SetColor) {
+				LIFXColor c = ((BulbCommands.SetColor) e.getValue()).getColor();
+				confirmer.expect(e.getKey(), BulbExpectations.color(c));
+			}
+		}
+
+		expect(on, BulbExpectations.power(PowerState.ON));
+		expect(off, BulbExpectations.power(PowerState.OFF));
+		for (Bulb b : toggle) {
+			confirmer.expect(b, BulbExpectations.toggled(b));
+		}
+
+		List<DispatchResult<Bulb>> results = new ArrayList<>();
+		if (!colors.isEmpty()) {
+			results.add(dispatch(
+					"setColor", Lane.TASKER, new ArrayList<>(colors.keySet()),
+					new CommandDispatcher.Command<Bulb>() {
+
+				@Override
+				public void execute(Bulb bulb) throws Exception {
+					colors.get(bulb).execute(bulb);
+				}
+
+			}));
+		}
+
+		if (!on.isEmpty()) {
+			results.add(dispatchPower("turnOn", Lane.TASKER, on, true));
+		}
+
+		if (!off.isEmpty()) {
+			results.add(dispatchPower("turnOff", Lane.TASKER, off, false));
+		}
+
+		if (!toggle.isEmpty()) {
+			results.add(dispatch(
+					"toggle", Lane.TASKER, toggle, BulbCommands.toggle()));
+		}
+
+		log.debug("Sent {} queued bulbs, {} commands coalesced so far",
+				batch.size(), queue.getCoalesced());
+
+		return DispatchResult.merge(results);
+	}
+
+	private void expect(
+			Collection<Bulb> targets,
+			StateConfirmer.Expectation<Bulb> expectation) {
+		for (Bulb b : targets) {
+			confirmer.expect(b, expectation);
+		}
+	}
+
+	/**
+	 * Turns a set of bulbs on or off, using a single gateway-wide command for
+	 * any gateway whose bulbs are all targeted.
+	 * @param name the command name, for logging
+	 * @param lane the rate limiter lane to send in
+	 * @param targets the bulbs to switch
+	 * @param on true to turn the bulbs on, false to turn them off
+	 * @return the per-bulb results
+	 */
+	private DispatchResult<Bulb> dispatchPower(
+			String name,
+			final Lane lane,
+			List<Bulb> targets,
+			final boolean on) {
+		List<Group<Bulb, Gateway>> plan = planner.plan(targets);
+		log.debug("{}() plan: {}", name, plan);
+
+		final CommandDispatcher.Command<Bulb> command = limited(lane, on
+				? BulbCommands.turnOn()
+				: BulbCommands.turnOff());
+
+		List<String> sends = new ArrayList<>();
+		for (Group<Bulb, Gateway> group : plan) {
+			sends.add(group.isBroadcast()
+					? BulbKeys.address(group.getGateway())
+					: gatewayAddress(group.getBulbs().get(0)));
+		}
+
+		DispatchResult<Group<Bulb, Gateway>> result;
+		result = dispatcher.dispatch(plan,
+				new CommandDispatcher.Command<Group<Bulb, Gateway>>() {
+
+			@Override
+			public void execute(Group<Bulb, Gateway> group)
+					throws Exception {
+				if (!group.isBroadcast()) {
+					command.execute(group.getBulbs().get(0));
+					return;
+				}
+
+				limiter.acquire(
+						lane, null, BulbKeys.address(group.getGateway()));
+				if (on) {
+					group.getGateway().turnOn();
+				} else {
+					group.getGateway().turnOff();
+				}
+			}
+
+		}, timeout(sends));
+
+		return logResult(name, AddressPlanner.expand(result), plan.size());
+	}
+
+	/**
+	 * Runs a command against several bulbs concurrently, logging any failures.
+	 * @param name the command name, for logging
+	 * @param lane the rate limiter lane to send in
+	 * @param targets the bulbs to run against
+	 * @param command the command to run
+	 * @return the per-bulb results
+	 */
+	private DispatchResult<Bulb> dispatch(
+			String name,
+			Lane lane,
+			List<Bulb> targets,
+			CommandDispatcher.Command<Bulb> command) {
+		List<String> sends = new ArrayList<>();
+		for (Bulb b : targets) {
+			sends.add(gatewayAddress(b));
+		}
+
+		return logResult(
+				name,
+				dispatcher.dispatch(
+						targets, limited(lane, command), timeout(sends)),
+				targets.size());
+	}
+
+	/**
+	 * Sizes a dispatch timeout for the given sends, allowing for the time
+	 * they will spend waiting on the rate limiter so large batches through
+	 * one gateway aren't cancelled part way through.
+	 * @param gateways the gateway address of each planned send
+	 * @return the timeout, in milliseconds
+	 */
+	private long timeout(List<String> gateways) {
+		return dispatcher.getTimeout() + limiter.estimate(gateways);
+	}
+
+	/**
+	 * Wraps a command so it waits for the rate limiter before each send.
+	 * @param lane the lane to send in
+	 * @param command the command to wrap
+	 * @return the rate-limited command
+	 */
+	private CommandDispatcher.Command<Bulb> limited(
+			final Lane lane, final CommandDispatcher.Command<Bulb> command) {
+		return new CommandDispatcher.Command<Bulb>() {
+
+			@Override
+			public void execute(Bulb bulb) throws Exception {
+				limiter.acquire(
+						lane, BulbKeys.address(bulb), gatewayAddress(bulb));
+
+				command.execute(bulb);
+			}
+
+		};
+	}
+
+	/**
+	 * Waits for the rate limiter to allow a send to a bulb.
+	 * @param lane the lane to send in
+	 * @param bulb the bulb to send to
+	 * @return true if the send may proceed, false if interrupted
+	 */
+	private boolean acquire(Lane lane, Bulb bulb) {
+		try {
+			limiter.acquire(lane, BulbKeys.address(bulb), gatewayAddress(bulb));
+			return true;
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Waits for the rate limiter to allow a gateway-wide send.
+	 * @param lane the lane to send in
+	 * @param gateway the gateway to send to
+	 * @return true if the send may proceed, false if interrupted
+	 */
+	private boolean acquire(Lane lane, Gateway gateway) {
+		try {
+			limiter.acquire(lane, null, BulbKeys.address(gateway));
+			return true;
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private String gatewayAddress(Bulb bulb) {
+		Gateway g = bulbGateways.get(BulbKeys.address(bulb));
+		if (g == null) {
+			return null;
+		}
+
+		return BulbKeys.address(g);
+	}
+
+	private DispatchResult<Bulb> logResult(
+			String name, DispatchResult<Bulb> result, int packets) {
+		for (DispatchResult.Outcome<Bulb> o : result.getFailed()) {
+			log.error("Error calling " + name + "() on " + o.getTarget(),
+					o.getError());
+		}
+
+		log.info("{}() dispatched: {}", name, result);
+
+		sent(name, result.getOutcomes().size(), packets);
+		metrics.counter("commands." + name + ".failed").add(
+				result.getFailed().size());
+		metrics.histogram("commands." + name + ".latency").record(
+				result.getElapsed());
+
+		return result;
+	}
+
+	/**
+	 * Records a command in the metrics.
+	 * @param name the command name
+	 * @param bulbs the number of bulbs targeted
+	 * @param packets the number of packets sent
+	 */
+	private void sent(String name, int bulbs, int packets) {
+		metrics.counter("commands." + name).add(bulbs);
+		metrics.counter("packets.sent").add(packets);
+		metrics.histogram("packets.per_command").record(packets);
+	}
+
+	/**
+	 * Requests a status update from every gateway. Refreshes run in the
+	 * background lane and are skipped, rather than delayed, for any gateway
+	 * that is already at its send rate limit.
+	 */
+	public void refreshAll() {
+		refreshGateways(gateways);
+	}
+
+	/**
+	 * Requests a status update from each of the given gateways, in the
+	 * background lane.
+	 * @param targets the gateways to refresh
+	 */
+	private void refreshGateways(Collection<Gateway> targets) {
+		for (Gateway g : targets) {
+			if (!limiter.tryAcquire(
+					Lane.BACKGROUND, null, BulbKeys.address(g))) {
+				log.debug("Skipping refresh of rate-limited gateway {}", g);
+				metrics.counter("refresh.skipped").increment();
+				continue;
+			}
+
+			try {
+				g.refreshBulbs();
+				metrics.counter("refresh.sent").increment();
+			} catch (IOException ex) {
+				log.error("Error refreshing gateway " + g, ex);
+
+				// e.g. rebooted; replace it once it answers again
+				String address = BulbKeys.address(g);
+				if (address != null) {
+					provisional.add(address);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Requests a status update for the given bulbs. Gateways report on all
+	 * of their bulbs at once, so this refreshes each gateway hosting one of
+	 * the bulbs, and every gateway if any bulb's gateway is unknown.
+	 * @param targets the bulbs to refresh
+	 */
+	private void refresh(Collection<Bulb> targets) {
+		Set<Gateway> hosts = new HashSet<>();
+		for (Bulb b : targets) {
+			Gateway g = bulbGateways.get(BulbKeys.address(b));
+			if (g == null) {
+				refreshAll();
+				return;
+			}
+
+			hosts.add(g);
+		}
+
+		refreshGateways(hosts);
+	}
+
+	/**
+	 * Confirms that the commands last sent to the given bulbs took effect.
+	 * Only those bulbs are refreshed, and this returns as soon as each has
+	 * reported its expected state since the command was sent, or after
+	 * {@link #CONFIRM_TIMEOUT} at most (plus {@link #DEFAULT_PULSE_DELAY}
+	 * while a pulse is waiting to be restored). Commands other callers sent
+	 * to other bulbs are left for them to confirm.
+	 * @param targets the bulbs the caller sent commands to, e.g.
+	 *     {@link DispatchResult#getTargets()}
+	 * @return the confirmation outcome, including its latency
+	 */
+	public StateConfirmer.Confirmation<Bulb> confirm(Collection<Bulb> targets) {
+		// without a socket no replies can arrive, so only check what we have
+		long timeout = transport.isListening() ? CONFIRM_TIMEOUT : 0;
+		if (timeout > 0 && pulses.isActive()) {
+			timeout += DEFAULT_PULSE_DELAY;
+		}
+
+		StateConfirmer.Confirmation<Bulb> result;
+		result = confirmer.confirm(targets, timeout, CONFIRM_INTERVAL);
+
+		metrics.histogram("confirm.latency").record(result.getMaxLatency());
+		metrics.counter("confirm.refreshes").add(result.getRefreshes());
+		metrics.counter("confirm.unconfirmed").add(
+				result.getUnconfirmed().size());
+
+		if (result.isConfirmed()) {
+			log.info("Commands confirmed: {}", result);
+		} else {
+			log.warn("Commands unconfirmed: {}, missing: {}",
+					result, result.getUnconfirmed());
+		}
+
+		return result;
+	}
+
+	/**
+	 * Purges all bulb data so the next action will force a complete refresh.
+	 */
+	public void purgeBulbs() {
+		GatewayManager.getInstance().purge();
+		suspended.clear();
+		bulbs.clear();
+		gateways.clear();
+		bulbGateways.clear();
+		provisional.clear();
+	}
+
+	/**
+	 * @return an immutable snapshot of the currently known bulbs
+	 */
+	public List<Bulb> getBulbs() {
+		return bulbs.getBulbs();
+	}
+
+	/**
+	 * Returns a key that identifies a bulb the same way whether it is named
+	 * by label or by address, e.g. to order actions on it. Doesn't wait for
+	 * discovery.
+	 * @param name the bulb label or address
+	 * @return the bulb's MAC address if it is registered or cached, otherwise
+	 *     the normalized name
+	 */
+	public String getKey(String name) {
+		Bulb bulb = resolver.lookup(name);
+		if (bulb != null) {
+			return BulbKeys.address(bulb);
+		}
+
+		KnownBulb known = cache.resolve(name);
+		if (known != null) {
+			return known.getAddress();
+		}
+
+		return BulbKeys.name(name);
+	}
+
+	/**
+	 * @return the current bulb list version, incremented on every change
+	 */
+	public long getBulbListVersion() {
+		return bulbs.getVersion();
+	}
+
+	/**
+	 * Marks the socket as in use, binding it (and starting discovery) if
+	 * needed. The socket stays bound until every user has called
+	 * {@link #releaseSocket()} and the idle timeout has elapsed.
+	 */
+	public void acquireSocket() {
+		socket.acquire();
+
+		backgroundTimedListen();
+	}
+
+	/**
+	 * Releases a previous {@link #acquireSocket()}. Once nothing holds the
+	 * socket it is closed after the idle timeout; any command issued before
+	 * then reuses the bound socket and known gateways.
+	 */
+	public void releaseSocket() {
+		socket.release();
+	}
+
+	/**
+	 * Sets how long the socket stays bound after its last user releases it.
+	 * @param timeout the idle timeout, in milliseconds
+	 */
+	public void setSocketIdleTimeout(long timeout) {
+		socket.setIdleTimeout(timeout);
+	}
+
+	/**
+	 * Closes the bound socket. This must be called when finished to allow
+	 * other apps to make use of the port. If any pulses are still running, the
+	 * socket is closed once they have finished.
+	 */
+	public void closeSocket() {
+		if (pulses.isActive()) {
+			// restores still need to go out, close once they have
+			closePending = true;
+
+			// check again in case the last pulse just ended
+			if (pulses.isActive()) {
+				log.info("Pulses running, deferring socket close.");
+				return;
+			}
+
+			closePending = false;
+		}
+
+		try {
+			transport.stopListen();
+
+			log.info("Socket closed.");
+		} catch (IOException ex) {}
+	}
+
+	/**
+	 * @return the engine's runtime metrics
+	 */
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+}
@@ -0,0 +1,156 @@
+package org.timothyb89.lifx.tasker.engine;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A registry of named runtime metrics: counters, gauges and histograms.
+ * Counters and histograms are created on first use, so callers can simply
+ * do {@code metrics.counter("foo").increment()}.
+ * @author tim
+ */
+public class Metrics {
+
+	/**
+	 * A monotonically increasing count.
+	 */
+	public static class Counter {
+
+		private final AtomicLong value = new AtomicLong();
+
+		public void increment() {
+			value.incrementAndGet();
+		}
+
+		public void add(long n) {
+			value.addAndGet(n);
+		}
+
+		public long get() {
+			return value.get();
+		}
+
+		@Override
+		public String toString() {
+			return String.valueOf(get());
+		}
+
+	}
+
+	/**
+	 * A value read on demand.
+	 */
+	public interface Gauge {
+
+		long getValue();
+
+	}
+
+	private final ConcurrentMap<String, Counter> counters;
+	private final ConcurrentMap<String, Gauge> gauges;
+	private final ConcurrentMap<String, Histogram> histograms;
+
+	private final long created;
+
+	public Metrics() {
+		counters = new ConcurrentHashMap<>();
+		gauges = new ConcurrentHashMap<>();
+		histograms = new ConcurrentHashMap<>();
+
+		created = System.currentTimeMillis();
+	}
+
+	/**
+	 * @param name the counter name
+	 * @return the counter with the given name, created if needed
+	 */
+	public Counter counter(String name) {
+		Counter c = counters.get(name);
+		if (c == null) {
+			Counter fresh = new Counter();
+
+			c = counters.putIfAbsent(name, fresh);
+			if (c == null) {
+				c = fresh;
+			}
+		}
+
+		return c;
+	}
+
+	/**
+	 * @param name the histogram name
+	 * @return the histogram with the given name, created if needed
+	 */
+	public Histogram histogram(String name) {
+		Histogram h = histograms.get(name);
+		if (h == null) {
+			Histogram fresh = new Histogram();
+
+			h = histograms.putIfAbsent(name, fresh);
+			if (h == null) {
+				h = fresh;
+			}
+		}
+
+		return h;
+	}
+
+	/**
+	 * Registers a gauge, replacing any existing gauge with the same name.
+	 * @param name the gauge name
+	 * @param gauge the gauge
+	 */
+	public void gauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	/**
+	 * @return the current value of every counter and gauge, by name
+	 */
+	public Map<String, Long> getValues() {
+		Map<String, Long> ret = new TreeMap<>();
+		for (Map.Entry<String, Counter> e : counters.entrySet()) {
+			ret.put(e.getKey(), e.getValue().get());
+		}
+
+		for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+			ret.put(e.getKey(), e.getValue().getValue());
+		}
+
+		return ret;
+	}
+
+	/**
+	 * @return every histogram, by name
+	 */
+	public Map<String, Histogram> getHistograms() {
+		return new TreeMap<>(histograms);
+	}
+
+	/**
+	 * Writes every metric as tab-separated name/value lines.
+	 * @param out the writer to dump to
+	 * @throws IOException if writing fails
+	 */
+	public void dump(Writer out) throws IOException {
+		out.write("# metrics since " + created + ", dumped at "
+				+ System.currentTimeMillis() + "\n");
+
+		for (Map.Entry<String, Long> e : getValues().entrySet()) {
+			out.write(e.getKey() + "\t" + e.getValue() + "\n");
+		}
+
+		for (Map.Entry<String, Histogram> e : getHistograms().entrySet()) {
+			out.write(e.getKey() + "\t" + e.getValue() + "\n");
+		}
+
+		out.flush();
+	}
+
+}
@@ -0,0 +1,198 @@
+package org.timothyb89.lifx.tasker.engine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.timothyb89.lifx.bulb.Bulb;
+import org.timothyb89.lifx.bulb.LIFXColor;
+
+/**
+ * Tracks running color pulses and restores bulbs once they finish, using a
+ * timer rather than a sleeping thread.
+ * <p>
+ * Each bulb's "base" color is captured when the first of any overlapping
+ * pulses starts, and is only restored once the last of them ends. This way a
+ * pulse that starts while another is showing never mistakes the other pulse's
+ * color for the bulb's real one.
+ * @author tim
+ */
+public class PulseEngine {
+
+	private static final Logger log = LoggerFactory.getLogger(
+			PulseEngine.class);
+
+	/**
+	 * Sends restored colors to bulbs.
+	 */
+	public interface Restorer {
+
+		void restore(Map<Bulb, LIFXColor> colors);
+
+	}
+
+	/**
+	 * Notified when the last running pulse has finished.
+	 */
+	public interface IdleListener {
+
+		void pulsesIdle();
+
+	}
+
+	private final Restorer restorer;
+	private final ScheduledExecutorService scheduler;
+
+	private final Map<Bulb, State> states;
+
+	private IdleListener idleListener;
+
+	public PulseEngine(Restorer restorer) {
+		this.restorer = restorer;
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "pulse-timer");
+				t.setDaemon(true);
+
+				return t;
+			}
+
+		});
+
+		states = new HashMap<>();
+	}
+
+	public synchronized void setIdleListener(IdleListener idleListener) {
+		this.idleListener = idleListener;
+	}
+
+	/**
+	 * Registers the start of a pulse on the given bulbs. This must be called
+	 * before the pulse color is sent so each bulb's base color is captured
+	 * first.
+	 * @param bulbs the bulbs being pulsed
+	 * @return the color each bulb will be restored to once its last pulse
+	 *     ends; bulbs whose color isn't known yet are left out
+	 */
+	public synchronized Map<Bulb, LIFXColor> begin(Collection<Bulb> bulbs) {
+		Map<Bulb, LIFXColor> ret = new HashMap<>();
+
+		for (Bulb b : bulbs) {
+			State state = states.get(b);
+			if (state == null) {
+				state = new State(b.getColor());
+				states.put(b, state);
+			}
+
+			state.active++;
+
+			if (state.base != null) {
+				ret.put(b, state.base);
+			}
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Schedules the end of a pulse started with {@link #begin(Collection)}.
+	 * Bulbs with no other pulse still running will be restored to their base
+	 * color once the delay elapses.
+	 * @param bulbs the bulbs passed to {@code begin()}
+	 * @param delay the pulse length, in milliseconds
+	 */
+	public void end(final Collection<Bulb> bulbs, long delay) {
+		final List<Bulb> copy = new ArrayList<>(bulbs);
+
+		scheduler.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				finish(copy);
+			}
+
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return true if any pulse is currently running
+	 */
+	public synchronized boolean isActive() {
+		return !states.isEmpty();
+	}
+
+	/**
+	 * @return the number of bulbs currently showing a pulse
+	 */
+	public synchronized int getActiveBulbs() {
+		return states.size();
+	}
+
+	public void shutdown() {
+		scheduler.shutdownNow();
+	}
+
+	private void finish(List<Bulb> bulbs) {
+		Map<Bulb, LIFXColor> restore = new HashMap<>();
+		IdleListener listener = null;
+
+		synchronized (this) {
+			for (Bulb b : bulbs) {
+				State state = states.get(b);
+				if (state == null) {
+					continue;
+				}
+
+				state.active--;
+				if (state.active > 0) {
+					// another pulse is still showing
+					continue;
+				}
+
+				states.remove(b);
+				if (state.base != null) {
+					restore.put(b, state.base);
+				}
+			}
+
+			if (states.isEmpty()) {
+				listener = idleListener;
+			}
+		}
+
+		if (!restore.isEmpty()) {
+			try {
+				restorer.restore(restore);
+			} catch (RuntimeException ex) {
+				log.error("Error restoring pulsed bulbs", ex);
+			}
+		}
+
+		if (listener != null) {
+			listener.pulsesIdle();
+		}
+	}
+
+	private static class State {
+
+		private final LIFXColor base;
+		private int active;
+
+		public State(LIFXColor base) {
+			this.base = base;
+		}
+
+	}
+
+}
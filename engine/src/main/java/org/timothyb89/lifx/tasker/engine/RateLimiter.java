@@ -0,0 +1,371 @@
+package org.timothyb89.lifx.tasker.engine;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token-bucket rate limiting for outgoing commands, per bulb and per gateway.
+ * Bulbs start dropping messages when sent more than a few per second, so every
+ * send should acquire a token for both the bulb and the gateway it goes
+ * through.
+ * <p>
+ * Senders are split into priority lanes. A sender never proceeds while a
+ * higher-priority lane is waiting on the same bulb or gateway, so interactive
+ * commands are never stuck behind Tasker actions or background polling.
+ * Senders to other bulbs and gateways are not held up.
+ * <p>
+ * A bucket that has refilled completely is no different from a new one, so
+ * idle buckets are dropped every {@link #EVICT_INTERVAL}. This keeps a
+ * long-running host from accumulating a bucket for every bulb and gateway it
+ * has ever seen, e.g. across network changes.
+ * @author tim
+ */
+public class RateLimiter {
+
+	/**
+	 * Priority lanes, highest priority first.
+	 */
+	public enum Lane {
+		/**
+		 * User-initiated commands, e.g. button presses.
+		 */
+		INTERACTIVE,
+
+		/**
+		 * Tasker actions.
+		 */
+		TASKER,
+
+		/**
+		 * Refreshes and other polling.
+		 */
+		BACKGROUND
+	}
+
+	public static final double BULB_RATE     = 5;  // per second
+	public static final int    BULB_BURST    = 5;
+	public static final double GATEWAY_RATE  = 20;
+	public static final int    GATEWAY_BURST = 20;
+
+	public static final long EVICT_INTERVAL = 60000; // milliseconds
+
+	private final double bulbRate;
+	private final int bulbBurst;
+	private final double gatewayRate;
+	private final int gatewayBurst;
+
+	private final Map<String, TokenBucket> bulbBuckets;
+	private final Map<String, TokenBucket> gatewayBuckets;
+
+	private final int[] waiting;
+	private final Map<String, int[]> bulbWaiting;
+	private final Map<String, int[]> gatewayWaiting;
+
+	private long lastEvicted;
+
+	public RateLimiter() {
+		this(BULB_RATE, BULB_BURST, GATEWAY_RATE, GATEWAY_BURST);
+	}
+
+	public RateLimiter(
+			double bulbRate, int bulbBurst,
+			double gatewayRate, int gatewayBurst) {
+		this.bulbRate = bulbRate;
+		this.bulbBurst = bulbBurst;
+		this.gatewayRate = gatewayRate;
+		this.gatewayBurst = gatewayBurst;
+
+		bulbBuckets = new HashMap<>();
+		gatewayBuckets = new HashMap<>();
+
+		waiting = new int[Lane.values().length];
+		bulbWaiting = new HashMap<>();
+		gatewayWaiting = new HashMap<>();
+
+		lastEvicted = System.nanoTime();
+	}
+
+	/**
+	 * Blocks until a send to the given bulb and gateway is allowed.
+	 * @param lane the sender's priority lane
+	 * @param bulb the bulb's address, or null for gateway-wide sends
+	 * @param gateway the gateway's address, or null if unknown
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized void acquire(Lane lane, String bulb, String gateway)
+			throws InterruptedException {
+		evictIdle(false);
+
+		TokenBucket b = bucket(bulbBuckets, bulb, bulbRate, bulbBurst);
+		TokenBucket g = bucket(
+				gatewayBuckets, gateway, gatewayRate, gatewayBurst);
+
+		waiting(lane, bulb, gateway, 1);
+		try {
+			while (true) {
+				if (!isBlocked(lane, bulb, gateway)) {
+					long now = System.nanoTime();
+					long delay = Math.max(delay(b, now), delay(g, now));
+
+					if (delay == 0) {
+						take(b, now);
+						take(g, now);
+						return;
+					}
+
+					TimeUnit.NANOSECONDS.timedWait(this, delay);
+				} else {
+					wait();
+				}
+			}
+		} finally {
+			waiting(lane, bulb, gateway, -1);
+
+			// lower lanes may be able to proceed now
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Attempts to send to the given bulb and gateway without waiting.
+	 * @param lane the sender's priority lane
+	 * @param bulb the bulb's address, or null for gateway-wide sends
+	 * @param gateway the gateway's address, or null if unknown
+	 * @return true if the send is allowed, false if it should be skipped
+	 */
+	public synchronized boolean tryAcquire(
+			Lane lane, String bulb, String gateway) {
+		evictIdle(false);
+
+		if (isBlocked(lane, bulb, gateway)) {
+			return false;
+		}
+
+		TokenBucket b = bucket(bulbBuckets, bulb, bulbRate, bulbBurst);
+		TokenBucket g = bucket(
+				gatewayBuckets, gateway, gatewayRate, gatewayBurst);
+
+		long now = System.nanoTime();
+		if (delay(b, now) > 0 || delay(g, now) > 0) {
+			return false;
+		}
+
+		take(b, now);
+		take(g, now);
+
+		return true;
+	}
+
+	/**
+	 * @param lane the lane to check
+	 * @return the number of senders currently waiting in the lane
+	 */
+	public synchronized int getWaiting(Lane lane) {
+		return waiting[lane.ordinal()];
+	}
+
+	/**
+	 * Drops every bucket that has refilled completely and has no sender
+	 * waiting on it. This also happens on its own every
+	 * {@link #EVICT_INTERVAL}.
+	 */
+	public synchronized void evictIdle() {
+		evictIdle(true);
+	}
+
+	/**
+	 * @return the number of bulb and gateway buckets currently held
+	 */
+	public synchronized int getBucketCount() {
+		return bulbBuckets.size() + gatewayBuckets.size();
+	}
+
+	/**
+	 * Estimates how long a batch of sends will wait for gateway tokens,
+	 * assuming full buckets and no other senders. Sends through different
+	 * gateways proceed in parallel, so this is the wait of the busiest one.
+	 * @param gateways the gateway address of each send; null entries are
+	 *     not limited
+	 * @return the estimated wait, in milliseconds
+	 */
+	public long estimate(Collection<String> gateways) {
+		Map<String, Integer> counts = new HashMap<>();
+		int max = 0;
+		for (String g : gateways) {
+			if (g == null) {
+				continue;
+			}
+
+			Integer count = counts.get(g);
+			count = count == null ? 1 : count + 1;
+			counts.put(g, count);
+
+			max = Math.max(max, count);
+		}
+
+		if (max <= gatewayBurst) {
+			return 0;
+		}
+
+		return (long) Math.ceil((max - gatewayBurst) * 1000 / gatewayRate);
+	}
+
+	private void evictIdle(boolean force) {
+		long now = System.nanoTime();
+		if (!force && now - lastEvicted
+				< TimeUnit.MILLISECONDS.toNanos(EVICT_INTERVAL)) {
+			return;
+		}
+
+		lastEvicted = now;
+
+		evict(bulbBuckets, bulbWaiting, now);
+		evict(gatewayBuckets, gatewayWaiting, now);
+	}
+
+	private static void evict(
+			Map<String, TokenBucket> buckets,
+			Map<String, int[]> waiting,
+			long now) {
+		Iterator<Map.Entry<String, TokenBucket>> it;
+		for (it = buckets.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, TokenBucket> e = it.next();
+			if (!waiting.containsKey(e.getKey()) && e.getValue().isFull(now)) {
+				it.remove();
+			}
+		}
+	}
+
+	private void waiting(Lane lane, String bulb, String gateway, int delta) {
+		waiting[lane.ordinal()] += delta;
+
+		count(bulbWaiting, bulb, lane, delta);
+		count(gatewayWaiting, gateway, lane, delta);
+	}
+
+	private static void count(
+			Map<String, int[]> counts, String key, Lane lane, int delta) {
+		if (key == null) {
+			return;
+		}
+
+		int[] c = counts.get(key);
+		if (c == null) {
+			c = new int[Lane.values().length];
+			counts.put(key, c);
+		}
+
+		c[lane.ordinal()] += delta;
+
+		for (int n : c) {
+			if (n > 0) {
+				return;
+			}
+		}
+
+		counts.remove(key);
+	}
+
+	/**
+	 * Checks if a higher lane is waiting on the same bulb or gateway.
+	 */
+	private boolean isBlocked(Lane lane, String bulb, String gateway) {
+		return isBlocked(bulbWaiting.get(bulb), lane)
+				|| isBlocked(gatewayWaiting.get(gateway), lane);
+	}
+
+	private static boolean isBlocked(int[] counts, Lane lane) {
+		if (counts == null) {
+			return false;
+		}
+
+		for (int i = 0; i < lane.ordinal(); i++) {
+			if (counts[i] > 0) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private static TokenBucket bucket(
+			Map<String, TokenBucket> buckets, String key,
+			double rate, int burst) {
+		if (key == null) {
+			return null;
+		}
+
+		TokenBucket ret = buckets.get(key);
+		if (ret == null) {
+			ret = new TokenBucket(rate, burst);
+			buckets.put(key, ret);
+		}
+
+		return ret;
+	}
+
+	private static long delay(TokenBucket bucket, long now) {
+		return bucket == null ? 0 : bucket.delay(now);
+	}
+
+	private static void take(TokenBucket bucket, long now) {
+		if (bucket != null) {
+			bucket.take(now);
+		}
+	}
+
+	private static class TokenBucket {
+
+		private final double rate; // tokens per nanosecond
+		private final int burst;
+
+		private double tokens;
+		private long updated;
+
+		public TokenBucket(double ratePerSecond, int burst) {
+			this.rate = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+			this.burst = burst;
+
+			tokens = burst;
+			updated = System.nanoTime();
+		}
+
+		private void refill(long now) {
+			tokens = Math.min(burst, tokens + (now - updated) * rate);
+			updated = now;
+		}
+
+		/**
+		 * @return nanoseconds until a token is available, or 0 if one is
+		 *     available now
+		 */
+		public long delay(long now) {
+			refill(now);
+
+			if (tokens >= 1) {
+				return 0;
+			}
+
+			return Math.max(1, (long) Math.ceil((1 - tokens) / rate));
+		}
+
+		/**
+		 * @return true if the bucket has refilled to its full burst
+		 */
+		public boolean isFull(long now) {
+			refill(now);
+
+			return tokens >= burst;
+		}
+
+		public void take(long now) {
+			refill(now);
+			tokens -= 1;
+		}
+
+	}
+
+}
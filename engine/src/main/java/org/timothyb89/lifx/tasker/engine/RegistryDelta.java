@@ -0,0 +1,118 @@
+package org.timothyb89.lifx.tasker.engine;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * A change to a {@link BulbRegistry}: the bulbs added, removed and changed
+ * between two registry versions. Deltas for consecutive versions can be
+ * {@link #merge(RegistryDelta) merged} into a single delta spanning both.
+ * @param <T> the bulb type
+ * @author tim
+ */
+public class RegistryDelta<T> {
+
+	private final Set<T> added;
+	private final Set<T> removed;
+	private final Set<T> changed;
+
+	private final long fromVersion;
+	private final long version;
+
+	public RegistryDelta(
+			Collection<T> added,
+			Collection<T> removed,
+			Collection<T> changed,
+			long fromVersion,
+			long version) {
+		this.added = Collections.unmodifiableSet(new LinkedHashSet<>(added));
+		this.removed = Collections.unmodifiableSet(
+				new LinkedHashSet<>(removed));
+		this.changed = Collections.unmodifiableSet(
+				new LinkedHashSet<>(changed));
+
+		this.fromVersion = fromVersion;
+		this.version = version;
+	}
+
+	/**
+	 * Combines this delta with the one that followed it. Bulbs added and then
+	 * removed cancel out, bulbs removed and then added again are reported as
+	 * changed, and changes to newly added bulbs are folded into the add.
+	 * @param next the following delta
+	 * @return a delta from this delta's starting version to {@code next}'s
+	 *     version
+	 */
+	public RegistryDelta<T> merge(RegistryDelta<T> next) {
+		Set<T> a = new LinkedHashSet<>(added);
+		Set<T> r = new LinkedHashSet<>(removed);
+		Set<T> c = new LinkedHashSet<>(changed);
+
+		for (T t : next.removed) {
+			c.remove(t);
+			if (!a.remove(t)) {
+				r.add(t);
+			}
+		}
+
+		for (T t : next.added) {
+			if (r.remove(t)) {
+				c.add(t);
+			} else {
+				a.add(t);
+			}
+		}
+
+		for (T t : next.changed) {
+			if (!a.contains(t)) {
+				c.add(t);
+			}
+		}
+
+		return new RegistryDelta<>(a, r, c, fromVersion, next.version);
+	}
+
+	public Set<T> getAdded() {
+		return added;
+	}
+
+	public Set<T> getRemoved() {
+		return removed;
+	}
+
+	/**
+	 * @return bulbs that remain registered but whose details (e.g. label)
+	 *     have changed
+	 */
+	public Set<T> getChanged() {
+		return changed;
+	}
+
+	/**
+	 * @return the registry version this delta applies to
+	 */
+	public long getFromVersion() {
+		return fromVersion;
+	}
+
+	/**
+	 * @return the registry version after this delta is applied
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	public boolean isEmpty() {
+		return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		return "RegistryDelta[v" + fromVersion + " -> v" + version + ": +"
+				+ added.size() + " -" + removed.size() + " ~" + changed.size()
+				+ "]";
+	}
+
+}
@@ -0,0 +1,152 @@
+package org.timothyb89.lifx.tasker.engine;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the LIFX socket bound while it is in use and for a while afterwards,
+ * so back-to-back actions don't each pay for binding the port and running
+ * discovery. Once every user has released the socket and it has sat idle for
+ * the configured timeout, the close callback is run.
+ * @author tim
+ */
+public class SocketLifecycle {
+
+	public static final long DEFAULT_IDLE_TIMEOUT = 60000; // milliseconds
+
+	private final Runnable closer;
+	private final ScheduledExecutorService timer;
+
+	private long idleTimeout;
+	private int users;
+	private ScheduledFuture<?> pendingClose;
+
+	/**
+	 * @param closer called (on a timer thread) to close the socket once idle;
+	 *     {@link #acquire()} blocks while it runs, so it must not call back
+	 *     into this object
+	 */
+	public SocketLifecycle(Runnable closer) {
+		this.closer = closer;
+
+		timer = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "socket-idle");
+				t.setDaemon(true);
+
+				return t;
+			}
+
+		});
+
+		idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	}
+
+	/**
+	 * Marks the socket as in use, cancelling any pending idle close.
+	 */
+	public synchronized void acquire() {
+		users++;
+
+		cancelClose();
+	}
+
+	/**
+	 * Releases a previous {@link #acquire()}. Once no users remain, the socket
+	 * will be closed after the idle timeout unless acquired again first.
+	 */
+	public synchronized void release() {
+		if (users > 0) {
+			users--;
+		}
+
+		if (users == 0) {
+			scheduleClose();
+		}
+	}
+
+	/**
+	 * @return the number of users currently holding the socket
+	 */
+	public synchronized int getUsers() {
+		return users;
+	}
+
+	/**
+	 * Runs the close callback now, unless the socket has been acquired again
+	 * or is already due to close after the idle timeout. This is for a close
+	 * that was put off (e.g. until running pulses had finished) and may have
+	 * been overtaken by a new user in the meantime.
+	 * @return true if the callback was run
+	 */
+	public synchronized boolean closeIfIdle() {
+		if (users > 0 || pendingClose != null) {
+			return false;
+		}
+
+		closer.run();
+
+		return true;
+	}
+
+	public synchronized long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * Sets how long the socket stays bound after its last user releases it.
+	 * A timeout of zero closes it immediately on release.
+	 * @param idleTimeout the timeout, in milliseconds
+	 */
+	public synchronized void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = Math.max(0, idleTimeout);
+
+		if (pendingClose != null) {
+			scheduleClose();
+		}
+	}
+
+	public synchronized void shutdown() {
+		cancelClose();
+
+		timer.shutdownNow();
+	}
+
+	private void scheduleClose() {
+		cancelClose();
+
+		pendingClose = timer.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				// closed under the lock, so an acquire() racing the close
+				// waits for it and then finds the socket closed, rather than
+				// finding it bound and losing it mid-action
+				synchronized (SocketLifecycle.this) {
+					if (users > 0) {
+						return;
+					}
+
+					pendingClose = null;
+
+					closer.run();
+				}
+			}
+
+		}, idleTimeout, TimeUnit.MILLISECONDS);
+	}
+
+	private void cancelClose() {
+		if (pendingClose != null) {
+			pendingClose.cancel(false);
+			pendingClose = null;
+		}
+	}
+
+}
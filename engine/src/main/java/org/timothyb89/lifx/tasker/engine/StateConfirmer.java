@@ -0,0 +1,281 @@
+package org.timothyb89.lifx.tasker.engine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Confirms that commands took effect by refreshing only the targets they
+ * touched, and stopping as soon as each target reports the expected state.
+ * <p>
+ * Commands register an {@link Expectation} for each target as they are sent.
+ * {@link #confirm(Collection, long, long)} then refreshes the given targets'
+ * outstanding expectations and waits for state reports (via
+ * {@link #reported(Object)}), re-refreshing any still unconfirmed targets
+ * every interval until all are confirmed or the timeout elapses. Expectations
+ * for other targets are left alone, so concurrent actions on disjoint targets
+ * each confirm only their own commands.
+ * <p>
+ * A target is only confirmed by a report received after its expectation was
+ * registered. Cached state that already matches proves nothing about whether
+ * the command arrived.
+ * @param <T> the target type
+ * @author tim
+ */
+public class StateConfirmer<T> {
+
+	/**
+	 * A condition on a target's reported state.
+	 * @param <T> the target type
+	 */
+	public interface Expectation<T> {
+
+		boolean isMet(T target);
+
+	}
+
+	/**
+	 * Requests fresh state from a set of targets.
+	 * @param <T> the target type
+	 */
+	public interface Refresher<T> {
+
+		void refresh(Collection<T> targets);
+
+	}
+
+	/**
+	 * The outcome of a confirmation run.
+	 * @param <T> the target type
+	 */
+	public static class Confirmation<T> {
+
+		private final Map<T, Long> confirmed;
+		private final List<T> unconfirmed;
+		private final int refreshes;
+		private final long elapsed;
+
+		public Confirmation(
+				Map<T, Long> confirmed,
+				List<T> unconfirmed,
+				int refreshes,
+				long elapsed) {
+			this.confirmed = Collections.unmodifiableMap(confirmed);
+			this.unconfirmed = Collections.unmodifiableList(unconfirmed);
+			this.refreshes = refreshes;
+			this.elapsed = elapsed;
+		}
+
+		/**
+		 * @return the confirmation latency of each confirmed target, in
+		 *     milliseconds
+		 */
+		public Map<T, Long> getConfirmed() {
+			return confirmed;
+		}
+
+		/**
+		 * @return targets that never reported the expected state
+		 */
+		public List<T> getUnconfirmed() {
+			return unconfirmed;
+		}
+
+		public boolean isConfirmed() {
+			return unconfirmed.isEmpty();
+		}
+
+		/**
+		 * @return the number of refresh rounds sent
+		 */
+		public int getRefreshes() {
+			return refreshes;
+		}
+
+		/**
+		 * @return the total time spent confirming, in milliseconds
+		 */
+		public long getElapsed() {
+			return elapsed;
+		}
+
+		/**
+		 * @return the time until the last target was confirmed, in
+		 *     milliseconds
+		 */
+		public long getMaxLatency() {
+			long max = 0;
+			for (Long l : confirmed.values()) {
+				max = Math.max(max, l);
+			}
+
+			return max;
+		}
+
+		@Override
+		public String toString() {
+			return confirmed.size() + " confirmed, " + unconfirmed.size()
+					+ " unconfirmed, " + refreshes + " refreshes, max latency "
+					+ getMaxLatency() + " ms, " + elapsed + " ms total";
+		}
+
+	}
+
+	/**
+	 * An expectation, and whether its target has reported since it was
+	 * registered.
+	 */
+	private static class Pending<T> {
+
+		private final Expectation<T> expectation;
+		private volatile boolean reported;
+
+		public Pending(Expectation<T> expectation) {
+			this.expectation = expectation;
+		}
+
+		public boolean isMet(T target) {
+			return reported && expectation.isMet(target);
+		}
+
+	}
+
+	private final Refresher<T> refresher;
+	private final DiscoveryAwaiter updates;
+	private final ConcurrentMap<T, Pending<T>> expected;
+
+	public StateConfirmer(Refresher<T> refresher) {
+		this.refresher = refresher;
+
+		updates = new DiscoveryAwaiter();
+		expected = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Registers the state a target is expected to reach, replacing any
+	 * earlier expectation for it. This must be called before the command is
+	 * sent, so the target's reply can't arrive first.
+	 * @param target the target
+	 * @param expectation the expected state
+	 */
+	public void expect(T target, Expectation<T> expectation) {
+		expected.put(target, new Pending<>(expectation));
+	}
+
+	/**
+	 * Records that a target has reported its state, and wakes any running
+	 * confirmation to re-check it. Should be called whenever a target reports
+	 * new state.
+	 * @param target the target that reported
+	 */
+	public void reported(T target) {
+		Pending<T> p = expected.get(target);
+		if (p != null) {
+			p.reported = true;
+		}
+
+		updates.signal();
+	}
+
+	/**
+	 * @return the number of targets awaiting confirmation
+	 */
+	public int getOutstanding() {
+		return expected.size();
+	}
+
+	/**
+	 * Confirms the outstanding expectations for the given targets. Those
+	 * expectations are cleared once checked, whether or not they were
+	 * confirmed; expectations for any other target are kept.
+	 * @param targets the targets to confirm; targets with no outstanding
+	 *     expectation are ignored
+	 * @param timeout the maximum time to spend, in milliseconds
+	 * @param interval the time to wait before re-refreshing unconfirmed
+	 *     targets, in milliseconds
+	 * @return the confirmation outcome
+	 */
+	public Confirmation<T> confirm(
+			Collection<T> targets, long timeout, long interval) {
+		final long start = System.nanoTime();
+		long deadline = start + timeout * 1000000;
+
+		Map<T, Pending<T>> checked = new LinkedHashMap<>();
+		for (T target : targets) {
+			Pending<T> p = expected.get(target);
+			if (p != null) {
+				checked.put(target, p);
+			}
+		}
+
+		final Map<T, Pending<T>> pending = new LinkedHashMap<>(checked);
+		final Map<T, Long> confirmed = new LinkedHashMap<>();
+
+		int refreshes = 0;
+		if (!prune(pending, confirmed, start)) {
+			while (true) {
+				long remaining = (deadline - System.nanoTime()) / 1000000;
+				if (remaining <= 0) {
+					break;
+				}
+
+				refresher.refresh(new ArrayList<>(pending.keySet()));
+				refreshes++;
+
+				boolean done = updates.await(new DiscoveryAwaiter.Condition() {
+
+					@Override
+					public boolean isSatisfied() {
+						return prune(pending, confirmed, start);
+					}
+
+				}, Math.min(interval, remaining));
+
+				if (done) {
+					break;
+				}
+			}
+		}
+
+		// clear what we checked, keeping anything registered since
+		for (Map.Entry<T, Pending<T>> e : checked.entrySet()) {
+			expected.remove(e.getKey(), e.getValue());
+		}
+
+		return new Confirmation<>(
+				confirmed,
+				new ArrayList<>(pending.keySet()),
+				refreshes,
+				(System.nanoTime() - start) / 1000000);
+	}
+
+	/**
+	 * Moves targets that have reported their expected state from pending to
+	 * confirmed.
+	 * @return true if nothing remains pending
+	 */
+	private static <T> boolean prune(
+			Map<T, Pending<T>> pending,
+			Map<T, Long> confirmed,
+			long start) {
+		long now = (System.nanoTime() - start) / 1000000;
+
+		Iterator<Map.Entry<T, Pending<T>>> it;
+		for (it = pending.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<T, Pending<T>> e = it.next();
+			if (e.getValue().isMet(e.getKey())) {
+				confirmed.put(e.getKey(), now);
+				it.remove();
+			}
+		}
+
+		return pending.isEmpty();
+	}
+
+}
@@ -0,0 +1,128 @@
+package org.timothyb89.lifx.tasker.engine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds the gateways and bulbs found on networks we are not currently
+ * connected to, so they can be restored immediately when we reconnect rather
+ * than waiting for a full rediscovery.
+ * <p>
+ * Only the most recently used networks are kept.
+ * @param <B> the bulb type
+ * @param <G> the gateway type
+ * @author tim
+ */
+public class SuspendedNetworks<B, G> {
+
+	public static final int MAX_NETWORKS = 4;
+
+	/**
+	 * The registry contents for a single network.
+	 * @param <B> the bulb type
+	 * @param <G> the gateway type
+	 */
+	public static class Snapshot<B, G> {
+
+		private final List<G> gateways;
+		private final List<B> bulbs;
+		private final Map<String, G> bulbGateways;
+		private final long suspended;
+
+		public Snapshot(
+				Collection<G> gateways,
+				Collection<B> bulbs,
+				Map<String, G> bulbGateways) {
+			this.gateways = Collections.unmodifiableList(
+					new ArrayList<>(gateways));
+			this.bulbs = Collections.unmodifiableList(new ArrayList<>(bulbs));
+			this.bulbGateways = Collections.unmodifiableMap(
+					new HashMap<>(bulbGateways));
+
+			suspended = System.currentTimeMillis();
+		}
+
+		public List<G> getGateways() {
+			return gateways;
+		}
+
+		public List<B> getBulbs() {
+			return bulbs;
+		}
+
+		/**
+		 * @return the gateway each bulb was seen behind, by bulb address
+		 */
+		public Map<String, G> getBulbGateways() {
+			return bulbGateways;
+		}
+
+		/**
+		 * @return the time this network was suspended, in milliseconds since
+		 *     the epoch
+		 */
+		public long getSuspended() {
+			return suspended;
+		}
+
+		public boolean isEmpty() {
+			return gateways.isEmpty() && bulbs.isEmpty();
+		}
+
+	}
+
+	private final Map<String, Snapshot<B, G>> snapshots;
+
+	public SuspendedNetworks() {
+		snapshots = new LinkedHashMap<String, Snapshot<B, G>>(
+				MAX_NETWORKS, 0.75f, true) {
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, Snapshot<B, G>> eldest) {
+				return size() > MAX_NETWORKS;
+			}
+
+		};
+	}
+
+	/**
+	 * Stores the registry contents for a network we are leaving.
+	 * @param network the network key
+	 * @param snapshot the network's gateways and bulbs
+	 */
+	public synchronized void suspend(String network, Snapshot<B, G> snapshot) {
+		if (network == null || snapshot.isEmpty()) {
+			return;
+		}
+
+		snapshots.put(network, snapshot);
+	}
+
+	/**
+	 * Removes and returns the stored contents for a network we are rejoining.
+	 * @param network the network key
+	 * @return the stored snapshot, or null if none
+	 */
+	public synchronized Snapshot<B, G> resume(String network) {
+		if (network == null) {
+			return null;
+		}
+
+		return snapshots.remove(network);
+	}
+
+	public synchronized int size() {
+		return snapshots.size();
+	}
+
+	public synchronized void clear() {
+		snapshots.clear();
+	}
+
+}
@@ -0,0 +1,317 @@
+package org.timothyb89.lifx.tasker.engine;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lightweight end-to-end tracing for actions. Each action gets a trace with
+ * a unique ID that is passed along from component to component, and each
+ * component marks the phases it completes.
+ * <p>
+ * Finished traces are kept in a fixed-size ring (oldest overwritten first),
+ * and the time spent in each phase (since the previous marked phase) is
+ * recorded in a per-phase {@link Histogram}.
+ * @author tim
+ */
+public class Tracer {
+
+	public static final int DEFAULT_CAPACITY = 128;
+
+	/**
+	 * Unfinished traces older than this are abandoned, in milliseconds.
+	 */
+	public static final long ABANDON_AGE = 60000;
+
+	/**
+	 * The phases of an action, in order.
+	 */
+	public enum Phase {
+		RECEIVED, HANDLE_INTENT, CONNECTED, RESOLVED, SENT, CONFIRMED
+	}
+
+	/**
+	 * A single action's trace.
+	 */
+	public static class Trace {
+
+		private final long id;
+		private final String name;
+		private final long started;
+		private final long startNanos;
+
+		private final long[] marks;
+
+		public Trace(long id, String name) {
+			this.id = id;
+			this.name = name;
+
+			started = System.currentTimeMillis();
+			startNanos = System.nanoTime();
+
+			marks = new long[Phase.values().length];
+			for (int i = 0; i < marks.length; i++) {
+				marks[i] = -1;
+			}
+		}
+
+		public long getId() {
+			return id;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return the time this trace began, in milliseconds since the epoch
+		 */
+		public long getStarted() {
+			return started;
+		}
+
+		/**
+		 * Marks a phase as complete. Marking a phase again replaces the
+		 * earlier mark.
+		 * @param phase the phase
+		 */
+		public synchronized void mark(Phase phase) {
+			marks[phase.ordinal()] = System.nanoTime() - startNanos;
+		}
+
+		/**
+		 * @param phase the phase
+		 * @return the time from the start of the trace to the phase, in
+		 *     milliseconds, or -1 if the phase was not marked
+		 */
+		public synchronized long getOffset(Phase phase) {
+			long mark = marks[phase.ordinal()];
+			return mark < 0 ? -1 : mark / 1000000;
+		}
+
+		/**
+		 * @return the time from the start of the trace to the last marked
+		 *     phase, in milliseconds
+		 */
+		public synchronized long getElapsed() {
+			long last = 0;
+			for (long m : marks) {
+				last = Math.max(last, m);
+			}
+
+			return last / 1000000;
+		}
+
+		@Override
+		public synchronized String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(id).append('\t').append(started).append('\t')
+					.append(name);
+
+			for (Phase p : Phase.values()) {
+				sb.append('\t').append(getOffset(p));
+			}
+
+			return sb.toString();
+		}
+
+	}
+
+	private static final Tracer instance = new Tracer(DEFAULT_CAPACITY);
+
+	private static final ThreadLocal<Trace> current = new ThreadLocal<>();
+
+	private final AtomicLong ids;
+	private final Map<Long, Trace> active;
+
+	private final Trace[] finished;
+	private int next;
+	private long total;
+
+	private final Map<Phase, Histogram> phases;
+	private final Histogram elapsed;
+
+	public Tracer(int capacity) {
+		ids = new AtomicLong();
+		active = new ConcurrentHashMap<>();
+
+		finished = new Trace[capacity];
+
+		phases = new EnumMap<>(Phase.class);
+		for (Phase p : Phase.values()) {
+			phases.put(p, new Histogram());
+		}
+
+		elapsed = new Histogram();
+	}
+
+	/**
+	 * @return the process-wide tracer
+	 */
+	public static Tracer getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Sets the trace for work done on the current thread, so components that
+	 * aren't handed the trace directly can mark it.
+	 * @param trace the trace, or null to clear
+	 */
+	public static void setCurrent(Trace trace) {
+		if (trace == null) {
+			current.remove();
+		} else {
+			current.set(trace);
+		}
+	}
+
+	/**
+	 * @return the current thread's trace, or null
+	 */
+	public static Trace getCurrent() {
+		return current.get();
+	}
+
+	/**
+	 * Marks a phase on the current thread's trace, if any.
+	 * @param phase the phase
+	 */
+	public static void markCurrent(Phase phase) {
+		Trace t = current.get();
+		if (t != null) {
+			t.mark(phase);
+		}
+	}
+
+	/**
+	 * Starts a new trace.
+	 * @param name a short description of the action
+	 * @return the new trace
+	 */
+	public Trace begin(String name) {
+		if (active.size() >= finished.length) {
+			abandon();
+		}
+
+		Trace t = new Trace(ids.incrementAndGet(), name);
+		active.put(t.getId(), t);
+
+		return t;
+	}
+
+	/**
+	 * Drops unfinished traces that are too old to ever finish (e.g. because
+	 * their action failed before reaching the end).
+	 */
+	private void abandon() {
+		long cutoff = System.currentTimeMillis() - ABANDON_AGE;
+		for (Trace t : active.values()) {
+			if (t.getStarted() < cutoff) {
+				active.remove(t.getId());
+			}
+		}
+	}
+
+	/**
+	 * @param id a trace ID
+	 * @return the unfinished trace with the given ID, or null
+	 */
+	public Trace get(long id) {
+		return active.get(id);
+	}
+
+	/**
+	 * Finishes a trace, recording its phase timings.
+	 * @param trace the trace to finish
+	 */
+	public void finish(Trace trace) {
+		if (active.remove(trace.getId()) == null) {
+			return;
+		}
+
+		long previous = 0;
+		for (Phase p : Phase.values()) {
+			long offset = trace.getOffset(p);
+			if (offset < 0) {
+				continue;
+			}
+
+			phases.get(p).record(offset - previous);
+			previous = offset;
+		}
+
+		elapsed.record(trace.getElapsed());
+
+		synchronized (finished) {
+			finished[next] = trace;
+			next = (next + 1) % finished.length;
+			total++;
+		}
+	}
+
+	/**
+	 * @return finished traces still in the buffer, oldest first
+	 */
+	public List<Trace> getTraces() {
+		List<Trace> ret = new ArrayList<>();
+
+		synchronized (finished) {
+			int n = (int) Math.min(total, finished.length);
+			int start = (next - n + finished.length) % finished.length;
+			for (int i = 0; i < n; i++) {
+				ret.add(finished[(start + i) % finished.length]);
+			}
+		}
+
+		return ret;
+	}
+
+	/**
+	 * @param phase the phase
+	 * @return the distribution of time spent reaching the phase from the
+	 *     previous marked phase, in milliseconds
+	 */
+	public Histogram getHistogram(Phase phase) {
+		return phases.get(phase);
+	}
+
+	/**
+	 * @return the distribution of total action time, in milliseconds
+	 */
+	public Histogram getElapsed() {
+		return elapsed;
+	}
+
+	/**
+	 * Writes the phase histograms followed by every buffered trace as
+	 * tab-separated lines.
+	 * @param out the writer to export to
+	 * @throws IOException if writing fails
+	 */
+	public void export(Writer out) throws IOException {
+		out.write("# phase latencies (ms, since previous phase)\n");
+		for (Phase p : Phase.values()) {
+			out.write("# " + p + "\t" + phases.get(p) + "\n");
+		}
+		out.write("# TOTAL\t" + elapsed + "\n");
+
+		out.write("id\tstarted\tname");
+		for (Phase p : Phase.values()) {
+			out.write("\t" + p);
+		}
+		out.write("\n");
+
+		for (Trace t : getTraces()) {
+			out.write(t.toString());
+			out.write("\n");
+		}
+
+		out.flush();
+	}
+
+}
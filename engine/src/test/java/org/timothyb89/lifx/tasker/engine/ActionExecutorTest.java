@@ -0,0 +1,168 @@
+package org.timothyb89.lifx.tasker.engine;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that actions sharing a key run in order, actions on disjoint keys
+ * run concurrently, and keyless actions act as barriers.
+ * @author tim
+ */
+public class ActionExecutorTest {
+
+	private static final long TIMEOUT = 2000; // milliseconds
+	private static final long SETTLE = 100;
+
+	private ActionExecutor executor;
+	private List<String> ran;
+
+	@Before
+	public void setUp() {
+		executor = new ActionExecutor(new Metrics());
+		ran = new CopyOnWriteArrayList<>();
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdown();
+	}
+
+	@Test
+	public void sameKeyRunsInOrder() throws InterruptedException {
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(2);
+
+		executor.submit(keys("a"), blocking("first", release, done));
+		executor.submit(keys("a"), record("second", done));
+
+		assertFalse(done.await(SETTLE, TimeUnit.MILLISECONDS));
+		assertTrue(ran.isEmpty());
+
+		release.countDown();
+
+		assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertEquals(Arrays.asList("first", "second"), ran);
+	}
+
+	@Test
+	public void sharedKeyOrdersOverlappingActions()
+			throws InterruptedException {
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(2);
+
+		executor.submit(keys("a", "b"), blocking("first", release, done));
+		executor.submit(keys("b", "c"), record("second", done));
+
+		assertFalse(done.await(SETTLE, TimeUnit.MILLISECONDS));
+
+		release.countDown();
+
+		assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertEquals(Arrays.asList("first", "second"), ran);
+	}
+
+	@Test
+	public void disjointKeysRunConcurrently() throws InterruptedException {
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch first = new CountDownLatch(1);
+		CountDownLatch second = new CountDownLatch(1);
+
+		executor.submit(keys("a"), blocking("first", release, first));
+		executor.submit(keys("b"), record("second", second));
+
+		// the second action finishes while the first is still blocked
+		assertTrue(second.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertEquals(1, first.getCount());
+
+		release.countDown();
+
+		assertTrue(first.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertEquals(Arrays.asList("second", "first"), ran);
+	}
+
+	@Test
+	public void emptyKeysActAsBarrier() throws InterruptedException {
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(3);
+
+		executor.submit(keys("a"), blocking("first", release, done));
+		executor.submit(keys(), record("barrier", done));
+		executor.submit(keys("b"), record("after", done));
+
+		// neither the barrier nor the unrelated action after it may start
+		assertFalse(done.await(SETTLE, TimeUnit.MILLISECONDS));
+		assertTrue(ran.isEmpty());
+
+		release.countDown();
+
+		assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertEquals(Arrays.asList("first", "barrier", "after"), ran);
+	}
+
+	@Test
+	public void failingActionReleasesDependents() throws InterruptedException {
+		CountDownLatch done = new CountDownLatch(1);
+
+		executor.submit(keys("a"), new Runnable() {
+
+			@Override
+			public void run() {
+				throw new IllegalStateException("expected");
+			}
+
+		});
+		executor.submit(keys("a"), record("second", done));
+
+		assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertEquals(Collections.singletonList("second"), ran);
+	}
+
+	private static List<String> keys(String... keys) {
+		return Arrays.asList(keys);
+	}
+
+	private Runnable record(final String name, final CountDownLatch done) {
+		return new Runnable() {
+
+			@Override
+			public void run() {
+				ran.add(name);
+				done.countDown();
+			}
+
+		};
+	}
+
+	private Runnable blocking(
+			final String name,
+			final CountDownLatch release,
+			final CountDownLatch done) {
+		return new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					release.await(TIMEOUT, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+
+				ran.add(name);
+				done.countDown();
+			}
+
+		};
+	}
+
+}
@@ -0,0 +1,39 @@
+package org.timothyb89.lifx.tasker.engine;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks label and address normalization.
+ * @author tim
+ */
+public class BulbKeysTest {
+
+	@Test
+	public void labelsAreTrimmedAndLowercased() {
+		assertEquals("kitchen", BulbKeys.label("  Kitchen "));
+		assertNull(BulbKeys.label(null));
+	}
+
+	@Test
+	public void addressesMatchHexForm() {
+		String hex = BulbKeys.hex(new byte[] {
+			(byte) 0xd0, 0x73, (byte) 0xd5, 0x00, 0x12, (byte) 0xab
+		});
+
+		assertEquals("d073d50012ab", hex);
+		assertEquals(hex, BulbKeys.name("D0:73:D5:00:12:AB"));
+		assertEquals(hex, BulbKeys.name("d0-73-d5-00-12-ab"));
+		assertEquals(hex, BulbKeys.name("d073d50012ab"));
+	}
+
+	@Test
+	public void labelsAreNotMistakenForAddresses() {
+		assertEquals("desk-lamp", BulbKeys.name("Desk-Lamp"));
+		assertEquals("abc:def", BulbKeys.name("ABC:DEF"));
+		assertNull(BulbKeys.name(null));
+	}
+
+}
@@ -0,0 +1,95 @@
+package org.timothyb89.lifx.tasker.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that bulbs named more than once resolve to a single target.
+ * @author tim
+ */
+public class BulbResolverTest {
+
+	private static final String KITCHEN = "Kitchen";
+	private static final String KITCHEN_MAC = "d073d5000001";
+	private static final String DESK = "Desk";
+	private static final String DESK_MAC = "d073d5000002";
+
+	/**
+	 * Test bulbs are "label@address" strings.
+	 */
+	private static final BulbRegistry.Keys<String> KEYS
+			= new BulbRegistry.Keys<String>() {
+
+		@Override
+		public String getAddress(String bulb) {
+			return bulb.substring(bulb.indexOf('@') + 1);
+		}
+
+		@Override
+		public String getLabel(String bulb) {
+			return bulb.substring(0, bulb.indexOf('@'));
+		}
+
+	};
+
+	private BulbCache cache;
+	private BulbResolver<String> resolver;
+
+	@Before
+	public void setUp() throws IOException {
+		File file = File.createTempFile("bulbs", ".cache");
+		file.deleteOnExit();
+
+		BulbRegistry<String> registry = new BulbRegistry<>(KEYS);
+		registry.add(KITCHEN + "@" + KITCHEN_MAC);
+		registry.add(DESK + "@" + DESK_MAC);
+
+		cache = new BulbCache(file);
+		resolver = new BulbResolver<>(registry, cache, new Metrics());
+	}
+
+	@Test
+	public void labelAndAddressResolveOnce() {
+		List<String> names = new ArrayList<>(
+				Arrays.asList(KITCHEN, KITCHEN_MAC, DESK));
+
+		assertEquals(Arrays.asList(
+				KITCHEN + "@" + KITCHEN_MAC,
+				DESK + "@" + DESK_MAC), resolver.search(names));
+		assertTrue(names.isEmpty());
+	}
+
+	@Test
+	public void cachedNameForFoundBulbResolvesOnce() {
+		// the kitchen bulb was renamed since it was cached
+		cache.update("Old Kitchen", KITCHEN_MAC, "10.0.0.1");
+
+		List<String> names = new ArrayList<>(
+				Arrays.asList(KITCHEN, "Old Kitchen"));
+
+		assertEquals(Collections.singletonList(KITCHEN + "@" + KITCHEN_MAC),
+				resolver.lookupAll(names));
+		assertTrue(names.isEmpty());
+	}
+
+	@Test
+	public void repeatedNameResolvesOnce() {
+		cache.update("Old Kitchen", KITCHEN_MAC, "10.0.0.1");
+
+		List<String> names = new ArrayList<>(
+				Arrays.asList("Old Kitchen", "old kitchen", KITCHEN));
+
+		assertEquals(Collections.singletonList(KITCHEN + "@" + KITCHEN_MAC),
+				resolver.search(names));
+	}
+
+}
@@ -0,0 +1,213 @@
+package org.timothyb89.lifx.tasker.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.timothyb89.lifx.tasker.engine.CommandQueue.Power;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how queued power and color commands are collapsed while a pass is
+ * in flight, and that callers sharing a pass only see their own outcomes.
+ * @author tim
+ */
+public class CommandQueueTest {
+
+	private static final long TIMEOUT = 2000; // milliseconds
+
+	/**
+	 * Records each batch, holding the first pass until released so later
+	 * commands queue up behind it.
+	 */
+	private static class HeldSender implements CommandQueue.Sender<String> {
+
+		private final CountDownLatch started = new CountDownLatch(1);
+		private final CountDownLatch release = new CountDownLatch(1);
+
+		private final List<List<CommandQueue.Entry<String>>> batches
+				= new CopyOnWriteArrayList<>();
+
+		@Override
+		public DispatchResult<String> send(
+				List<CommandQueue.Entry<String>> batch) {
+			started.countDown();
+			try {
+				release.await(TIMEOUT, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+
+			batches.add(batch);
+
+			List<DispatchResult.Outcome<String>> outcomes = new ArrayList<>();
+			for (CommandQueue.Entry<String> e : batch) {
+				outcomes.add(new DispatchResult.Outcome<>(
+						e.getTarget(), null, 0));
+			}
+
+			return new DispatchResult<>(outcomes, 0);
+		}
+
+	}
+
+	private static class NoopCommand
+			implements CommandDispatcher.Command<String> {
+
+		@Override
+		public void execute(String target) {
+			// nothing to send
+		}
+
+	}
+
+	private static final CommandDispatcher.Command<String> RED
+			= new NoopCommand();
+	private static final CommandDispatcher.Command<String> BLUE
+			= new NoopCommand();
+
+	private HeldSender sender;
+	private CommandQueue<String> queue;
+
+	@Before
+	public void setUp() {
+		sender = new HeldSender();
+		queue = new CommandQueue<>(sender);
+	}
+
+	@After
+	public void tearDown() {
+		queue.shutdown();
+	}
+
+	@Test
+	public void powerComposition() {
+		assertSame(Power.ON, Power.OFF.then(Power.ON));
+		assertSame(Power.OFF, Power.ON.then(Power.OFF));
+		assertSame(Power.OFF, Power.ON.then(Power.TOGGLE));
+		assertSame(Power.ON, Power.OFF.then(Power.TOGGLE));
+		assertNull(Power.TOGGLE.then(Power.TOGGLE));
+		assertSame(Power.ON, Power.TOGGLE.then(Power.ON));
+	}
+
+	@Test
+	public void togglesCoalesceWhilePassInFlight() throws Exception {
+		Future<DispatchResult<String>> first = holdFirstPass();
+
+		// two toggles cancel out, and a toggle after "on" becomes "off"
+		Future<DispatchResult<String>> b1 = power("b", Power.TOGGLE);
+		Future<DispatchResult<String>> b2 = power("b", Power.TOGGLE);
+		Future<DispatchResult<String>> c1 = power("c", Power.ON);
+		Future<DispatchResult<String>> c2 = power("c", Power.TOGGLE);
+
+		assertEquals(1, queue.getPending());
+		assertEquals(2, queue.getCoalesced());
+
+		sender.release.countDown();
+		first.get(TIMEOUT, TimeUnit.MILLISECONDS);
+		c2.get(TIMEOUT, TimeUnit.MILLISECONDS);
+
+		assertEquals(2, sender.batches.size());
+
+		List<CommandQueue.Entry<String>> second = sender.batches.get(1);
+		assertEquals(1, second.size());
+		assertEquals("c", second.get(0).getTarget());
+		assertSame(Power.OFF, second.get(0).getPower());
+
+		// a cancelled command reports nothing sent
+		assertTrue(b1.get(TIMEOUT, TimeUnit.MILLISECONDS)
+				.getOutcomes().isEmpty());
+		assertTrue(b2.get(TIMEOUT, TimeUnit.MILLISECONDS)
+				.getOutcomes().isEmpty());
+		assertEquals(Collections.singletonList("c"),
+				c1.get(TIMEOUT, TimeUnit.MILLISECONDS).getSucceeded());
+	}
+
+	@Test
+	public void duplicateTargetsInOneSubmitAreChangedOnce() throws Exception {
+		Future<DispatchResult<String>> first = holdFirstPass();
+
+		// e.g. a bulb named once by label and once by address
+		Future<DispatchResult<String>> toggle = queue.submitPower(
+				Arrays.asList("b", "b"), Power.TOGGLE);
+
+		assertEquals(1, queue.getPending());
+		assertEquals(0, queue.getCoalesced());
+
+		sender.release.countDown();
+		first.get(TIMEOUT, TimeUnit.MILLISECONDS);
+
+		assertEquals(Collections.singletonList("b"),
+				toggle.get(TIMEOUT, TimeUnit.MILLISECONDS).getSucceeded());
+
+		CommandQueue.Entry<String> e = sender.batches.get(1).get(0);
+		assertSame(Power.TOGGLE, e.getPower());
+	}
+
+	@Test
+	public void lastColorWins() throws Exception {
+		Future<DispatchResult<String>> first = holdFirstPass();
+
+		queue.submitColor(Collections.singletonList("b"), RED);
+		Future<DispatchResult<String>> last = queue.submitColor(
+				Collections.singletonList("b"), BLUE);
+
+		assertEquals(1, queue.getCoalesced());
+
+		sender.release.countDown();
+		first.get(TIMEOUT, TimeUnit.MILLISECONDS);
+		last.get(TIMEOUT, TimeUnit.MILLISECONDS);
+
+		CommandQueue.Entry<String> e = sender.batches.get(1).get(0);
+		assertSame(BLUE, e.getColor());
+		assertNull(e.getPower());
+	}
+
+	@Test
+	public void callersOnlySeeTheirOwnTargets() throws Exception {
+		Future<DispatchResult<String>> first = holdFirstPass();
+
+		Future<DispatchResult<String>> mine = queue.submitPower(
+				Arrays.asList("b", "c"), Power.ON);
+		Future<DispatchResult<String>> theirs = power("d", Power.OFF);
+
+		sender.release.countDown();
+		first.get(TIMEOUT, TimeUnit.MILLISECONDS);
+
+		assertEquals(Arrays.asList("b", "c"),
+				mine.get(TIMEOUT, TimeUnit.MILLISECONDS).getSucceeded());
+		assertEquals(Collections.singletonList("d"),
+				theirs.get(TIMEOUT, TimeUnit.MILLISECONDS).getSucceeded());
+
+		// both shared the second pass
+		assertEquals(2, sender.batches.size());
+		assertEquals(3, sender.batches.get(1).size());
+	}
+
+	/**
+	 * Starts a pass for bulb "a" and waits until the sender is holding it.
+	 */
+	private Future<DispatchResult<String>> holdFirstPass()
+			throws InterruptedException {
+		Future<DispatchResult<String>> ret = power("a", Power.ON);
+		assertTrue(sender.started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+		return ret;
+	}
+
+	private Future<DispatchResult<String>> power(String target, Power power) {
+		return queue.submitPower(Collections.singletonList(target), power);
+	}
+
+}
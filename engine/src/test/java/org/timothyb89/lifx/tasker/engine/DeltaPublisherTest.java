@@ -0,0 +1,124 @@
+package org.timothyb89.lifx.tasker.engine;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that deltas are merged within a window and that delivered versions
+ * never skip, even when merged changes cancel out.
+ * @author tim
+ */
+public class DeltaPublisherTest {
+
+	private static final long TIMEOUT = 2000; // milliseconds
+	private static final long WINDOW = 20;
+
+	private static final BulbRegistry.Keys<String> KEYS
+			= new BulbRegistry.Keys<String>() {
+
+		@Override
+		public String getAddress(String bulb) {
+			return bulb;
+		}
+
+		@Override
+		public String getLabel(String bulb) {
+			return bulb;
+		}
+
+	};
+
+	private List<RegistryDelta<String>> published;
+	private DeltaPublisher<String> publisher;
+	private BulbRegistry<String> registry;
+
+	@Before
+	public void setUp() {
+		published = new CopyOnWriteArrayList<>();
+
+		publisher = new DeltaPublisher<>(new DeltaPublisher.Sink<String>() {
+
+			@Override
+			public void publish(RegistryDelta<String> delta) {
+				published.add(delta);
+			}
+
+		}, WINDOW);
+
+		registry = new BulbRegistry<>(KEYS);
+		registry.setListener(new BulbRegistry.Listener<String>() {
+
+			@Override
+			public void registryChanged(RegistryDelta<String> delta) {
+				publisher.offer(delta);
+			}
+
+		});
+	}
+
+	@After
+	public void tearDown() {
+		publisher.shutdown();
+	}
+
+	@Test
+	public void burstIsMergedIntoOneDelta() throws InterruptedException {
+		registry.add("a");
+		registry.add("b");
+		registry.add("c");
+
+		awaitVersion(3);
+
+		assertEquals(1, published.size());
+		assertEquals(3, published.get(0).getAdded().size());
+		assertEquals(0, published.get(0).getFromVersion());
+	}
+
+	@Test
+	public void cancelledChangesStillAdvanceVersion()
+			throws InterruptedException {
+		registry.add("a");
+		awaitVersion(1);
+
+		// added and removed within one window
+		registry.add("b");
+		registry.remove("b");
+		awaitVersion(3);
+
+		RegistryDelta<String> last = published.get(published.size() - 1);
+		assertTrue(last.isEmpty());
+		assertEquals(1, last.getFromVersion());
+		assertEquals(3, last.getVersion());
+
+		registry.add("c");
+		awaitVersion(4);
+
+		assertContiguous();
+	}
+
+	private void awaitVersion(long version) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (published.isEmpty()
+				|| published.get(published.size() - 1).getVersion() < version) {
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(5);
+		}
+	}
+
+	private void assertContiguous() {
+		long version = 0;
+		for (RegistryDelta<String> d : published) {
+			assertEquals(version, d.getFromVersion());
+			version = d.getVersion();
+		}
+
+		assertEquals(registry.getVersion(), version);
+	}
+
+}
@@ -0,0 +1,265 @@
+package org.timothyb89.lifx.tasker.engine;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import org.junit.Test;
+import org.timothyb89.lifx.tasker.engine.DiscoveryTimer.Kind;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks learned percentiles, window sizing, backoff and persistence.
+ * @author tim
+ */
+public class DiscoveryTimerTest {
+
+	private static final long GATEWAY_WAIT = 1000; // milliseconds
+	private static final long BULB_WAIT = 2000;
+	private static final long WINDOW = 4000;
+
+	@Test
+	public void defaultsUntilEnoughSamples() {
+		DiscoveryTimer timer = timer();
+
+		timer.started();
+		for (int i = 1; i < DiscoveryTimer.MIN_SAMPLES; i++) {
+			timer.responded(Kind.GATEWAY);
+		}
+		timer.finished();
+
+		assertEquals(-1, timer.getPercentile(Kind.GATEWAY, 0.5));
+		assertEquals(GATEWAY_WAIT, timer.getGatewayWait());
+		assertEquals(WINDOW, timer.getDiscoveryWindow());
+	}
+
+	@Test
+	public void fastResponsesShrinkWindows() {
+		DiscoveryTimer timer = timer();
+
+		timer.started();
+		for (int i = 0; i < DiscoveryTimer.MIN_SAMPLES; i++) {
+			timer.responded(Kind.GATEWAY);
+			timer.responded(Kind.BULB);
+		}
+		timer.finished();
+
+		// twice the 95th percentile, but never below the minimum
+		long gateway = timer.getPercentile(Kind.GATEWAY, 0.95);
+		assertEquals(Math.max(DiscoveryTimer.MIN_WAIT, gateway * 2),
+				timer.getGatewayWait());
+
+		long bulb = timer.getPercentile(Kind.BULB, 0.95);
+		assertEquals(Math.max(DiscoveryTimer.MIN_WAIT, bulb * 2),
+				timer.getBulbWait());
+
+		assertTrue(timer.getGatewayWait() < GATEWAY_WAIT);
+		assertTrue(timer.getDiscoveryWindow() < WINDOW);
+	}
+
+	@Test
+	public void percentilesFollowSamples() throws InterruptedException {
+		DiscoveryTimer timer = timer();
+
+		timer.started();
+		timer.responded(Kind.GATEWAY);
+		timer.responded(Kind.GATEWAY);
+		Thread.sleep(100);
+		timer.responded(Kind.GATEWAY);
+		timer.finished();
+
+		long median = timer.getPercentile(Kind.GATEWAY, 0.5);
+		long max = timer.getPercentile(Kind.GATEWAY, 0.99);
+
+		assertTrue(median < 100);
+		assertTrue(max >= 100);
+		assertEquals(max, timer.getPercentile(Kind.GATEWAY, 1));
+		assertEquals(timer.getPercentile(Kind.GATEWAY, 0),
+				timer.getPercentile(Kind.GATEWAY, 0.1));
+
+		// the window covers three times the slowest gateway
+		assertEquals(Math.min(max * 3, WINDOW), timer.getDiscoveryWindow());
+	}
+
+	@Test
+	public void backoffDoublesAndRelaxes() {
+		DiscoveryTimer timer = timer();
+
+		timer.timedOut();
+		assertEquals(1, timer.getBackoff());
+		assertEquals(GATEWAY_WAIT * 2, timer.getGatewayWait());
+		assertEquals(BULB_WAIT * 2, timer.getBulbWait());
+
+		for (int i = 0; i < DiscoveryTimer.MAX_BACKOFF + 2; i++) {
+			timer.timedOut();
+		}
+		assertEquals(DiscoveryTimer.MAX_BACKOFF, timer.getBackoff());
+		assertEquals(WINDOW << DiscoveryTimer.MAX_BACKOFF,
+				timer.getDiscoveryWindow());
+
+		timer.satisfied();
+		assertEquals(DiscoveryTimer.MAX_BACKOFF - 1, timer.getBackoff());
+	}
+
+	@Test
+	public void timingsArePerNetwork() {
+		DiscoveryTimer timer = timer();
+
+		timer.setNetwork("home");
+		timer.started();
+		for (int i = 0; i < DiscoveryTimer.MIN_SAMPLES; i++) {
+			timer.responded(Kind.GATEWAY);
+		}
+		timer.finished();
+		timer.timedOut();
+
+		timer.setNetwork("office");
+		assertEquals(-1, timer.getPercentile(Kind.GATEWAY, 0.5));
+		assertEquals(0, timer.getBackoff());
+
+		timer.setNetwork("home");
+		assertTrue(timer.getPercentile(Kind.GATEWAY, 0.5) >= 0);
+		assertEquals(1, timer.getBackoff());
+	}
+
+	@Test
+	public void lateResponsesAreRecorded() {
+		DiscoveryTimer timer = timer();
+
+		timer.started();
+		timer.finished();
+		for (int i = 0; i < DiscoveryTimer.MIN_SAMPLES; i++) {
+			timer.responded(Kind.BULB);
+		}
+
+		assertTrue(timer.getPercentile(Kind.BULB, 0.5) >= 0);
+	}
+
+	@Test
+	public void responsesPastLateLimitAreIgnored()
+			throws InterruptedException {
+		// a 1 ms window stops recording 8 ms after the run starts
+		DiscoveryTimer timer = new DiscoveryTimer(1, 1, 1);
+
+		timer.started();
+		timer.finished();
+		Thread.sleep(timer.getLateLimit() + 20);
+
+		for (int i = 0; i < DiscoveryTimer.MIN_SAMPLES; i++) {
+			timer.responded(Kind.GATEWAY);
+		}
+
+		assertEquals(-1, timer.getPercentile(Kind.GATEWAY, 0.5));
+	}
+
+	@Test
+	public void responsesBeforeAnyRunAreIgnored() {
+		DiscoveryTimer timer = timer();
+
+		for (int i = 0; i < DiscoveryTimer.MIN_SAMPLES; i++) {
+			timer.responded(Kind.GATEWAY);
+		}
+
+		assertEquals(-1, timer.getPercentile(Kind.GATEWAY, 0.5));
+	}
+
+	@Test
+	public void timingsSurviveSaveAndLoad() throws IOException {
+		File file = tempFile();
+
+		DiscoveryTimer timer = timer();
+		timer.setNetwork("home");
+		timer.started();
+		for (int i = 0; i < DiscoveryTimer.MIN_SAMPLES; i++) {
+			timer.responded(Kind.GATEWAY);
+		}
+		timer.finished();
+		timer.timedOut();
+		long gatewayWait = timer.getGatewayWait();
+
+		timer.setNetwork("office");
+		timer.timedOut();
+		timer.timedOut();
+		timer.save(file);
+
+		DiscoveryTimer loaded = timer();
+		loaded.setNetwork("home");
+		loaded.load(file);
+
+		assertEquals(gatewayWait, loaded.getGatewayWait());
+		assertEquals(1, loaded.getBackoff());
+
+		loaded.setNetwork("office");
+		assertEquals(-1, loaded.getPercentile(Kind.GATEWAY, 0.5));
+		assertEquals(2, loaded.getBackoff());
+	}
+
+	@Test
+	public void onlyRecentSamplesAreSaved() throws IOException {
+		File file = tempFile();
+
+		DiscoveryTimer timer = timer();
+		timer.started();
+		for (int i = 0; i < DiscoveryTimer.SAMPLES * 2; i++) {
+			timer.responded(Kind.BULB);
+		}
+		timer.save(file);
+
+		DiscoveryTimer loaded = timer();
+		loaded.load(file);
+
+		assertEquals(timer.getPercentile(Kind.BULB, 0.5),
+				loaded.getPercentile(Kind.BULB, 0.5));
+		assertEquals(timer.getPercentile(Kind.BULB, 1),
+				loaded.getPercentile(Kind.BULB, 1));
+	}
+
+	@Test
+	public void malformedLinesAreSkipped() throws IOException {
+		File file = tempFile();
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			out.write(("x\t1,2,3\t\thome\n"
+					+ "9\t10,20,30\tbad\toffice\n"
+					+ "1\t10,20,30\t\tlab\n")
+					.getBytes(Charset.forName("UTF-8")));
+		}
+
+		DiscoveryTimer timer = timer();
+		timer.load(file);
+
+		timer.setNetwork("home");
+		assertEquals(0, timer.getBackoff());
+		timer.setNetwork("office");
+		assertEquals(-1, timer.getPercentile(Kind.GATEWAY, 0.5));
+
+		timer.setNetwork("lab");
+		assertEquals(20, timer.getPercentile(Kind.GATEWAY, 0.5));
+		assertEquals(1, timer.getBackoff());
+	}
+
+	@Test
+	public void missingFileLeavesDefaults() throws IOException {
+		File file = tempFile();
+		assertTrue(file.delete());
+
+		DiscoveryTimer timer = timer();
+		timer.load(file);
+
+		assertEquals(GATEWAY_WAIT, timer.getGatewayWait());
+		assertEquals(WINDOW, timer.getDiscoveryWindow());
+	}
+
+	private static File tempFile() throws IOException {
+		File ret = File.createTempFile("discovery", ".timing");
+		ret.deleteOnExit();
+
+		return ret;
+	}
+
+	private static DiscoveryTimer timer() {
+		return new DiscoveryTimer(GATEWAY_WAIT, BULB_WAIT, WINDOW);
+	}
+
+}
@@ -0,0 +1,179 @@
+package org.timothyb89.lifx.tasker.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import org.timothyb89.lifx.tasker.engine.RateLimiter.Lane;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks token buckets, that lanes only hold up senders to the same bulb or
+ * gateway, and the gateway wait estimate.
+ * @author tim
+ */
+public class RateLimiterTest {
+
+	private static final long TIMEOUT = 2000; // milliseconds
+
+	@Test
+	public void bulbBurstIsPerBulb() {
+		RateLimiter limiter = new RateLimiter(0.01, 2, 100, 100);
+
+		assertTrue(limiter.tryAcquire(Lane.TASKER, "a", "g"));
+		assertTrue(limiter.tryAcquire(Lane.TASKER, "a", "g"));
+		assertFalse(limiter.tryAcquire(Lane.TASKER, "a", "g"));
+
+		assertTrue(limiter.tryAcquire(Lane.TASKER, "b", "g"));
+	}
+
+	@Test
+	public void gatewayBurstIsShared() {
+		RateLimiter limiter = new RateLimiter(100, 100, 0.01, 2);
+
+		assertTrue(limiter.tryAcquire(Lane.TASKER, "a", "g"));
+		assertTrue(limiter.tryAcquire(Lane.TASKER, "b", "g"));
+		assertFalse(limiter.tryAcquire(Lane.TASKER, "c", "g"));
+
+		assertTrue(limiter.tryAcquire(Lane.TASKER, "c", "h"));
+	}
+
+	@Test
+	public void waitingLaneOnlyBlocksItsOwnBuckets() throws Exception {
+		final RateLimiter limiter = new RateLimiter(0.01, 1, 100, 100);
+
+		// use up bulb a's only token, so an interactive send has to wait
+		assertTrue(limiter.tryAcquire(Lane.TASKER, "a", "g1"));
+
+		Thread waiter = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					limiter.acquire(Lane.INTERACTIVE, "a", "g1");
+				} catch (InterruptedException ex) {
+					// expected, once the test is done
+				}
+			}
+
+		});
+		waiter.start();
+
+		try {
+			awaitWaiting(limiter, Lane.INTERACTIVE, 1);
+
+			// same gateway: held back for the interactive sender
+			assertFalse(limiter.tryAcquire(Lane.TASKER, "b", "g1"));
+
+			// same lane is not held back
+			assertTrue(limiter.tryAcquire(Lane.INTERACTIVE, "c", "g1"));
+
+			// other bulbs and gateways proceed
+			assertTrue(limiter.tryAcquire(Lane.TASKER, "d", "g2"));
+			assertTrue(limiter.tryAcquire(Lane.BACKGROUND, "e", null));
+		} finally {
+			waiter.interrupt();
+			waiter.join(TIMEOUT);
+		}
+
+		assertEquals(0, limiter.getWaiting(Lane.INTERACTIVE));
+		assertTrue(limiter.tryAcquire(Lane.TASKER, "b", "g1"));
+	}
+
+	@Test
+	public void estimateUsesBusiestGateway() {
+		RateLimiter limiter = new RateLimiter(5, 5, 20, 20);
+
+		List<String> gateways = new ArrayList<>();
+		gateways.addAll(Collections.nCopies(25, "g1"));
+		gateways.addAll(Collections.nCopies(10, "g2"));
+		gateways.add(null);
+
+		// five sends beyond g1's burst at 20 per second
+		assertEquals(250, limiter.estimate(gateways));
+	}
+
+	@Test
+	public void estimateWithinBurstIsFree() {
+		RateLimiter limiter = new RateLimiter(5, 5, 20, 20);
+
+		assertEquals(0, limiter.estimate(Collections.nCopies(20, "g1")));
+		assertEquals(0, limiter.estimate(Arrays.asList("g1", "g2", null)));
+	}
+
+	@Test
+	public void idleBucketsAreEvicted() throws InterruptedException {
+		RateLimiter limiter = new RateLimiter(1000, 1, 1000, 1);
+
+		for (int i = 0; i < 50; i++) {
+			assertTrue(limiter.tryAcquire(Lane.TASKER, "bulb" + i, "g" + i));
+		}
+		assertEquals(100, limiter.getBucketCount());
+
+		// a token refills every millisecond
+		Thread.sleep(20);
+		limiter.evictIdle();
+
+		assertEquals(0, limiter.getBucketCount());
+	}
+
+	@Test
+	public void drainedBucketsAreKept() {
+		RateLimiter limiter = new RateLimiter(0.01, 1, 0.01, 1);
+
+		assertTrue(limiter.tryAcquire(Lane.TASKER, "a", "g"));
+		limiter.evictIdle();
+
+		// still empty, so dropping it would hand out a fresh burst
+		assertEquals(2, limiter.getBucketCount());
+		assertFalse(limiter.tryAcquire(Lane.TASKER, "a", "g"));
+	}
+
+	@Test
+	public void bucketsWithWaitersAreKept() throws Exception {
+		final RateLimiter limiter = new RateLimiter(1000, 1, 0.01, 1);
+
+		assertTrue(limiter.tryAcquire(Lane.TASKER, "a", "g"));
+
+		Thread waiter = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					limiter.acquire(Lane.TASKER, "b", "g");
+				} catch (InterruptedException ex) {
+					// expected, once the test is done
+				}
+			}
+
+		});
+		waiter.start();
+
+		try {
+			awaitWaiting(limiter, Lane.TASKER, 1);
+
+			// bulb a has refilled; bulb b and the gateway have a waiter
+			Thread.sleep(20);
+			limiter.evictIdle();
+
+			assertEquals(2, limiter.getBucketCount());
+		} finally {
+			waiter.interrupt();
+			waiter.join(TIMEOUT);
+		}
+	}
+
+	private static void awaitWaiting(RateLimiter limiter, Lane lane, int count)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (limiter.getWaiting(lane) < count) {
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(5);
+		}
+	}
+
+}
@@ -0,0 +1,133 @@
+package org.timothyb89.lifx.tasker.engine;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks idle closing, and that a close deferred while pulses run is dropped
+ * if the socket is acquired again in the meantime.
+ * @author tim
+ */
+public class SocketLifecycleTest {
+
+	private static final long TIMEOUT = 2000; // milliseconds
+
+	private AtomicInteger closes;
+	private AtomicInteger deferrals;
+	private volatile boolean pulsing;
+	private SocketLifecycle socket;
+
+	@Before
+	public void setUp() {
+		closes = new AtomicInteger();
+		deferrals = new AtomicInteger();
+
+		// behaves like the engine: a close while pulses run is put off
+		socket = new SocketLifecycle(new Runnable() {
+
+			@Override
+			public void run() {
+				if (pulsing) {
+					deferrals.incrementAndGet();
+				} else {
+					closes.incrementAndGet();
+				}
+			}
+
+		});
+	}
+
+	@After
+	public void tearDown() {
+		socket.shutdown();
+	}
+
+	@Test
+	public void closesOnceIdle() throws InterruptedException {
+		socket.setIdleTimeout(0);
+
+		socket.acquire();
+		socket.release();
+
+		awaitCount(closes, 1);
+		assertEquals(0, socket.getUsers());
+	}
+
+	@Test
+	public void acquireCancelsIdleClose() throws InterruptedException {
+		socket.setIdleTimeout(50);
+
+		socket.acquire();
+		socket.release();
+		socket.acquire();
+
+		Thread.sleep(150);
+		assertEquals(0, closes.get());
+	}
+
+	@Test
+	public void acquireDuringPulseDropsDeferredClose()
+			throws InterruptedException {
+		socket.setIdleTimeout(0);
+
+		pulsing = true;
+		socket.acquire();
+		socket.release();
+		awaitCount(deferrals, 1);
+
+		// a new action starts before the pulse has finished
+		socket.acquire();
+
+		pulsing = false;
+		assertFalse(socket.closeIfIdle());
+		assertEquals(0, closes.get());
+
+		// closed as usual once the new user is done
+		socket.release();
+		awaitCount(closes, 1);
+	}
+
+	@Test
+	public void deferredCloseRunsWhenStillIdle() throws InterruptedException {
+		socket.setIdleTimeout(0);
+
+		pulsing = true;
+		socket.acquire();
+		socket.release();
+		awaitCount(deferrals, 1);
+
+		pulsing = false;
+		assertTrue(socket.closeIfIdle());
+		assertEquals(1, closes.get());
+	}
+
+	@Test
+	public void deferredCloseLeavesScheduledClose() {
+		socket.setIdleTimeout(TIMEOUT);
+
+		// acquired and released again: its own idle timer is running
+		socket.acquire();
+		socket.release();
+
+		assertFalse(socket.closeIfIdle());
+		assertEquals(0, closes.get());
+	}
+
+	private static void awaitCount(AtomicInteger count, int expected)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (count.get() < expected) {
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(5);
+		}
+
+		assertEquals(expected, count.get());
+	}
+
+}
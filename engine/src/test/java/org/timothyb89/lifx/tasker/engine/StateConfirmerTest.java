@@ -0,0 +1,235 @@
+package org.timothyb89.lifx.tasker.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that confirmation only refreshes and consumes the expectations of
+ * the targets it is given, needs a report newer than each expectation, and
+ * stops as soon as they are met.
+ * @author tim
+ */
+public class StateConfirmerTest {
+
+	private static final long TIMEOUT = 2000; // milliseconds
+	private static final long INTERVAL = 20;
+
+	private Map<String, String> state;
+	private List<Collection<String>> refreshes;
+	private StateConfirmer<String> confirmer;
+	private volatile Runnable onRefresh;
+
+	@Before
+	public void setUp() {
+		state = new ConcurrentHashMap<>();
+		refreshes = new CopyOnWriteArrayList<>();
+
+		confirmer = new StateConfirmer<>(new StateConfirmer.Refresher<String>() {
+
+			@Override
+			public void refresh(Collection<String> targets) {
+				refreshes.add(new ArrayList<>(targets));
+
+				if (onRefresh != null) {
+					onRefresh.run();
+				}
+			}
+
+		});
+	}
+
+	@Test
+	public void reportedExpectationsConfirmWithoutRefreshing() {
+		confirmer.expect("a", is("on"));
+		report("a", "on");
+
+		StateConfirmer.Confirmation<String> c = confirmer.confirm(
+				Collections.singletonList("a"), TIMEOUT, INTERVAL);
+
+		assertTrue(c.isConfirmed());
+		assertEquals(Collections.singleton("a"), c.getConfirmed().keySet());
+		assertEquals(0, c.getRefreshes());
+		assertTrue(refreshes.isEmpty());
+		assertEquals(0, confirmer.getOutstanding());
+	}
+
+	@Test
+	public void matchingStateWithoutReportIsUnconfirmed() {
+		// cached from before the command; the command may never have arrived
+		state.put("a", "on");
+		confirmer.expect("a", is("on"));
+
+		StateConfirmer.Confirmation<String> c = confirmer.confirm(
+				Collections.singletonList("a"), 100, INTERVAL);
+
+		assertFalse(c.isConfirmed());
+		assertTrue(c.getRefreshes() > 0);
+	}
+
+	@Test
+	public void reportBeforeExpectationDoesNotCount() {
+		report("a", "on");
+		confirmer.expect("a", is("on"));
+
+		StateConfirmer.Confirmation<String> c = confirmer.confirm(
+				Collections.singletonList("a"), 100, INTERVAL);
+
+		assertFalse(c.isConfirmed());
+	}
+
+	@Test
+	public void refreshReplyConfirms() {
+		state.put("a", "on");
+		confirmer.expect("a", is("on"));
+
+		onRefresh = new Runnable() {
+
+			@Override
+			public void run() {
+				confirmer.reported("a");
+			}
+
+		};
+
+		StateConfirmer.Confirmation<String> c = confirmer.confirm(
+				Collections.singletonList("a"), TIMEOUT, TIMEOUT);
+
+		assertTrue(c.isConfirmed());
+		assertEquals(1, c.getRefreshes());
+	}
+
+	@Test
+	public void onlyGivenTargetsAreConsumed() {
+		confirmer.expect("a", is("on"));
+		confirmer.expect("b", is("off"));
+		report("a", "on");
+
+		StateConfirmer.Confirmation<String> c = confirmer.confirm(
+				Collections.singletonList("a"), TIMEOUT, INTERVAL);
+
+		assertTrue(c.isConfirmed());
+		assertEquals(Collections.singleton("a"), c.getConfirmed().keySet());
+
+		// another action's expectation is left for it to confirm
+		assertEquals(1, confirmer.getOutstanding());
+
+		report("b", "off");
+		c = confirmer.confirm(
+				Collections.singletonList("b"), TIMEOUT, INTERVAL);
+
+		assertTrue(c.isConfirmed());
+		assertEquals(0, confirmer.getOutstanding());
+	}
+
+	@Test
+	public void targetsWithoutExpectationsAreIgnored() {
+		StateConfirmer.Confirmation<String> c = confirmer.confirm(
+				Arrays.asList("a", "b"), TIMEOUT, INTERVAL);
+
+		assertTrue(c.isConfirmed());
+		assertTrue(c.getConfirmed().isEmpty());
+		assertTrue(refreshes.isEmpty());
+	}
+
+	@Test
+	public void unmetExpectationsTimeOut() {
+		confirmer.expect("a", is("on"));
+		confirmer.expect("b", is("on"));
+		report("b", "on");
+
+		StateConfirmer.Confirmation<String> c = confirmer.confirm(
+				Arrays.asList("a", "b"), 100, INTERVAL);
+
+		assertFalse(c.isConfirmed());
+		assertEquals(Collections.singletonList("a"), c.getUnconfirmed());
+		assertEquals(Collections.singleton("b"), c.getConfirmed().keySet());
+
+		// only the unconfirmed target is re-refreshed, once per interval
+		assertTrue(c.getRefreshes() > 1);
+		for (Collection<String> r : refreshes) {
+			assertEquals(Collections.singletonList("a"), r);
+		}
+
+		// cleared once checked, confirmed or not
+		assertEquals(0, confirmer.getOutstanding());
+	}
+
+	@Test
+	public void reportWakesConfirmation() {
+		confirmer.expect("a", is("on"));
+
+		Thread reporter = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException ex) {
+					return;
+				}
+
+				report("a", "on");
+			}
+
+		});
+		reporter.start();
+
+		// a long interval, so only the signal can end the wait early
+		StateConfirmer.Confirmation<String> c = confirmer.confirm(
+				Collections.singletonList("a"), TIMEOUT, TIMEOUT);
+
+		assertTrue(c.isConfirmed());
+		assertEquals(1, c.getRefreshes());
+		assertTrue(c.getElapsed() < TIMEOUT);
+	}
+
+	@Test
+	public void newerExpectationIsKept() {
+		confirmer.expect("a", is("on"));
+
+		// a newer command replaces the expectation mid-confirmation
+		onRefresh = new Runnable() {
+
+			@Override
+			public void run() {
+				confirmer.expect("a", is("off"));
+			}
+
+		};
+
+		StateConfirmer.Confirmation<String> c = confirmer.confirm(
+				Collections.singletonList("a"), 50, INTERVAL);
+
+		assertEquals(Collections.singletonList("a"), c.getUnconfirmed());
+		assertEquals(1, confirmer.getOutstanding());
+	}
+
+	private void report(String target, String value) {
+		state.put(target, value);
+		confirmer.reported(target);
+	}
+
+	private StateConfirmer.Expectation<String> is(final String value) {
+		return new StateConfirmer.Expectation<String>() {
+
+			@Override
+			public boolean isMet(String target) {
+				return value.equals(state.get(target));
+			}
+
+		};
+	}
+
+}
@@ -0,0 +1,303 @@
+package org.timothyb89.lifx.tasker.simulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.BindException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.timothyb89.lifx.bulb.Bulb;
+import org.timothyb89.lifx.tasker.engine.BulbCache;
+import org.timothyb89.lifx.tasker.engine.DiscoveryAwaiter;
+import org.timothyb89.lifx.tasker.engine.DispatchResult;
+import org.timothyb89.lifx.tasker.engine.Histogram;
+import org.timothyb89.lifx.tasker.engine.LIFXEngine;
+import org.timothyb89.lifx.tasker.engine.RegistryDelta;
+import org.timothyb89.lifx.tasker.engine.StateConfirmer;
+
+/**
+ * Measures discovery time, command throughput and confirmation latency for
+ * fleets of various sizes against a {@link Simulator} on loopback.
+ * <p>
+ * The test drives a real {@link LIFXEngine} holding lifx-java gateways and
+ * bulbs connected to the simulator. Only gateway discovery is stood in for,
+ * by a {@link LoopbackTransport}; resolution, the command queue, rate
+ * limiter, address planner, dispatcher and confirmer are the shipped ones.
+ * @author tim
+ */
+public class LoadTest {
+
+	public static final long DISCOVERY_TIMEOUT = 10000;
+	public static final long DISCOVERY_RETRY = 250;
+
+	private final int bulbs;
+	private final int gateways;
+	private final NetworkConditions conditions;
+	private final int port;
+
+	private Simulator simulator;
+	private LoopbackTransport transport;
+	private LIFXEngine engine;
+
+	private long gatewayTime = -1;
+	private long discoveryTime = -1;
+
+	private long commands;
+	private long commandTime;
+
+	private final Histogram confirmLatency;
+	private long unconfirmed;
+
+	public LoadTest(
+			int bulbs, int gateways, NetworkConditions conditions, int port) {
+		this.bulbs = bulbs;
+		this.gateways = gateways;
+		this.conditions = conditions;
+		this.port = port;
+
+		confirmLatency = new Histogram();
+	}
+
+	/**
+	 * Runs the test.
+	 * @param rounds the number of times to switch the whole fleet on or off
+	 * @throws IOException if the simulator can't be started
+	 */
+	public void run(int rounds) throws IOException {
+		simulator = new Simulator(gateways, bulbs, conditions);
+		simulator.setPort(port);
+		simulator.start();
+
+		// a fresh cache, so every run starts cold
+		File cacheFile = File.createTempFile("lifx", ".cache");
+		cacheFile.delete();
+
+		try {
+			transport = new LoopbackTransport(simulator.getAddresses(), port);
+			engine = new LIFXEngine(transport, new BulbCache(cacheFile));
+			transport.setEngine(engine);
+
+			engine.setListener(new LIFXEngine.Listener() {
+
+				@Override
+				public void bulbsChanged(RegistryDelta<Bulb> delta) {
+					transport.getAwaiter().signal();
+				}
+
+				@Override
+				public void bindFailed(BindException ex) {
+					throw new IllegalStateException("Unable to bind", ex);
+				}
+
+			});
+
+			engine.start();
+			engine.acquireSocket();
+
+			if (discover()) {
+				send(rounds);
+			}
+		} finally {
+			if (engine != null) {
+				engine.releaseSocket();
+				engine.closeSocket();
+				engine.shutdown();
+			}
+
+			simulator.stop();
+			cacheFile.delete();
+		}
+	}
+
+	private boolean discover() {
+		long start = System.nanoTime();
+		long deadline = start + DISCOVERY_TIMEOUT * 1000000;
+
+		DiscoveryAwaiter.Condition allGateways = new DiscoveryAwaiter.Condition() {
+
+			@Override
+			public boolean isSatisfied() {
+				return transport.getGatewayCount() >= gateways;
+			}
+
+		};
+
+		DiscoveryAwaiter.Condition allBulbs = new DiscoveryAwaiter.Condition() {
+
+			@Override
+			public boolean isSatisfied() {
+				return engine.getBulbs().size() >= bulbs;
+			}
+
+		};
+
+		while (System.nanoTime() < deadline) {
+			if (gatewayTime < 0 && allGateways.isSatisfied()) {
+				gatewayTime = millisSince(start);
+			}
+
+			DiscoveryAwaiter.Condition next
+					= gatewayTime < 0 ? allGateways : allBulbs;
+			if (transport.getAwaiter().await(next, DISCOVERY_RETRY)) {
+				if (next == allBulbs) {
+					discoveryTime = millisSince(start);
+					return true;
+				}
+
+				continue;
+			}
+
+			// status replies were lost (or are slow); ask again as the
+			// engine's periodic refresh would
+			if (gatewayTime >= 0) {
+				engine.refreshAll();
+			}
+		}
+
+		return false;
+	}
+
+	private void send(int rounds) {
+		List<String> names = new ArrayList<>();
+		for (Bulb b : engine.getBulbs()) {
+			names.add(b.getLabel());
+		}
+
+		String[] fleet = names.toArray(new String[names.size()]);
+
+		for (int i = 0; i < rounds; i++) {
+			boolean on = i % 2 == 0;
+
+			long start = System.nanoTime();
+			DispatchResult<Bulb> result = on
+					? engine.turnOn(fleet)
+					: engine.turnOff(fleet);
+
+			commandTime += System.nanoTime() - start;
+			commands += result.getOutcomes().size();
+
+			StateConfirmer.Confirmation<Bulb> c = engine.confirm(
+					result.getTargets());
+			for (Map.Entry<Bulb, Long> e : c.getConfirmed().entrySet()) {
+				confirmLatency.record(e.getValue());
+			}
+
+			unconfirmed += c.getUnconfirmed().size();
+		}
+	}
+
+	private static long millisSince(long start) {
+		return (System.nanoTime() - start) / 1000000;
+	}
+
+	/**
+	 * @return the time until every gateway answered, in milliseconds, or -1
+	 */
+	public long getGatewayTime() {
+		return gatewayTime;
+	}
+
+	/**
+	 * @return the time until every bulb was registered, in milliseconds, or
+	 *     -1 if discovery timed out
+	 */
+	public long getDiscoveryTime() {
+		return discoveryTime;
+	}
+
+	/**
+	 * @return commands sent per second
+	 */
+	public double getThroughput() {
+		return commandTime == 0 ? 0 : commands * 1e9 / commandTime;
+	}
+
+	/**
+	 * @return per-bulb confirmation latencies, in milliseconds
+	 */
+	public Histogram getConfirmLatency() {
+		return confirmLatency;
+	}
+
+	public long getUnconfirmed() {
+		return unconfirmed;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(bulbs).append(" bulbs / ").append(gateways)
+				.append(" gateways (").append(conditions).append(")\n");
+		sb.append("  discovery: gateways ").append(gatewayTime)
+				.append(" ms, bulbs ").append(discoveryTime).append(" ms\n");
+		sb.append("  commands: ").append(commands).append(" sent, ")
+				.append(String.format("%.0f", getThroughput()))
+				.append("/s\n");
+		sb.append("  confirmation (ms): ").append(confirmLatency)
+				.append(", unconfirmed ").append(unconfirmed).append("\n");
+		sb.append("  engine: ").append(engine.getMetrics().getValues())
+				.append("\n");
+		sb.append("  simulator: ")
+				.append(simulator.getMetrics().getValues());
+
+		return sb.toString();
+	}
+
+	private static void usage() {
+		System.err.println("usage: LoadTest [-sizes 1,50,500] "
+				+ "[-per-gateway n] [-rounds n] [-port n] [-latency ms] "
+				+ "[-jitter ms] [-loss fraction]");
+		System.exit(1);
+	}
+
+	/**
+	 * Runs a load test for each fleet size and prints the results.
+	 * @param args command line options, see {@link #usage()}
+	 * @throws Exception if a simulator can't be started
+	 */
+	public static void main(String[] args) throws Exception {
+		String sizes = "1,50,500";
+		int perGateway = 50;
+		int rounds = 20;
+		int port = Packet.DEFAULT_PORT;
+		long latency = 0;
+		long jitter = 0;
+		double loss = 0;
+
+		if (args.length % 2 != 0) {
+			usage();
+		}
+
+		for (int i = 0; i < args.length; i += 2) {
+			String value = args[i + 1];
+			switch (args[i]) {
+				case "-sizes":       sizes = value; break;
+				case "-per-gateway": perGateway = Integer.parseInt(value); break;
+				case "-rounds":      rounds = Integer.parseInt(value); break;
+				case "-port":        port = Integer.parseInt(value); break;
+				case "-latency":     latency = Long.parseLong(value); break;
+				case "-jitter":      jitter = Long.parseLong(value); break;
+				case "-loss":        loss = Double.parseDouble(value); break;
+				default:             usage();
+			}
+		}
+
+		NetworkConditions conditions
+				= new NetworkConditions(latency, jitter, loss);
+
+		boolean ok = true;
+		for (String s : sizes.split(",")) {
+			int bulbs = Integer.parseInt(s.trim());
+			int gateways = Math.max(1, (bulbs + perGateway - 1) / perGateway);
+
+			LoadTest test = new LoadTest(bulbs, gateways, conditions, port);
+			test.run(rounds);
+
+			System.out.println(test);
+			ok &= test.getDiscoveryTime() >= 0;
+		}
+
+		System.exit(ok ? 0 : 2);
+	}
+
+}
@@ -0,0 +1,229 @@
+package org.timothyb89.lifx.tasker.simulator;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.timothyb89.lifx.gateway.Gateway;
+import org.timothyb89.lifx.tasker.engine.DiscoveryAwaiter;
+import org.timothyb89.lifx.tasker.engine.Gateways;
+import org.timothyb89.lifx.tasker.engine.LIFXEngine;
+
+/**
+ * A {@link LIFXEngine.Transport} that discovers the gateways of a
+ * {@link Simulator} on loopback.
+ * <p>
+ * lifx-java's {@code BroadcastListener} needs an Android {@code Context} and
+ * can only broadcast, so it can't run on a plain JVM against loopback
+ * gateways. This transport stands in for it and nothing else: it probes each
+ * gateway address directly, and every gateway that answers is connected to
+ * as a lifx-java {@link Gateway} and handed to the engine. From there on the
+ * engine's own gateways, bulbs, rate limiter and planner do the work.
+ * @author tim
+ */
+public class LoopbackTransport implements LIFXEngine.Transport {
+
+	private static final Logger log
+			= LoggerFactory.getLogger(LoopbackTransport.class);
+
+	/**
+	 * How often unanswered gateways are probed again while discovering, as
+	 * lifx-java does with its broadcasts.
+	 */
+	public static final long PROBE_INTERVAL = 250; // milliseconds
+
+	private final List<InetAddress> addresses;
+	private final int port;
+
+	private final Set<InetAddress> answered;
+	private final DiscoveryAwaiter awaiter;
+
+	private volatile LIFXEngine engine;
+
+	private DatagramSocket socket;
+	private volatile boolean discovering;
+
+	/**
+	 * @param addresses the gateway addresses to probe
+	 * @param port the gateway port
+	 */
+	public LoopbackTransport(Collection<InetAddress> addresses, int port) {
+		this.addresses = Collections.unmodifiableList(
+				new ArrayList<>(addresses));
+		this.port = port;
+
+		answered = Collections.newSetFromMap(
+				new ConcurrentHashMap<InetAddress, Boolean>());
+		awaiter = new DiscoveryAwaiter();
+	}
+
+	/**
+	 * @param engine the engine to hand discovered gateways to
+	 */
+	public void setEngine(LIFXEngine engine) {
+		this.engine = engine;
+	}
+
+	@Override
+	public synchronized void startListen() throws IOException {
+		if (socket == null || socket.isClosed()) {
+			socket = new DatagramSocket();
+
+			final DatagramSocket s = socket;
+			thread("transport-receive", new Runnable() {
+
+				@Override
+				public void run() {
+					receiveLoop(s);
+				}
+
+			});
+		}
+
+		if (discovering) {
+			return;
+		}
+
+		discovering = true;
+		thread("transport-probe", new Runnable() {
+
+			@Override
+			public void run() {
+				probeLoop();
+			}
+
+		});
+	}
+
+	@Override
+	public void stopDiscovery() {
+		discovering = false;
+	}
+
+	@Override
+	public synchronized void stopListen() {
+		discovering = false;
+
+		if (socket != null) {
+			socket.close();
+			socket = null;
+		}
+	}
+
+	@Override
+	public synchronized boolean isListening() {
+		return socket != null && !socket.isClosed();
+	}
+
+	@Override
+	public Gateway connect(String address) throws IOException {
+		return Gateways.connect(InetAddress.getByName(address), port);
+	}
+
+	/**
+	 * @return the number of gateways that have answered a probe
+	 */
+	public int getGatewayCount() {
+		return answered.size();
+	}
+
+	/**
+	 * @return signalled each time a gateway answers
+	 */
+	public DiscoveryAwaiter getAwaiter() {
+		return awaiter;
+	}
+
+	private void probeLoop() {
+		byte[] probe = new Packet(Packet.GET_PAN_GATEWAY, null, null, null)
+				.toBytes();
+
+		while (discovering) {
+			DatagramSocket s;
+			synchronized (this) {
+				s = socket;
+			}
+
+			if (s == null) {
+				return;
+			}
+
+			try {
+				for (InetAddress a : addresses) {
+					if (!answered.contains(a)) {
+						s.send(new DatagramPacket(
+								probe, probe.length, a, port));
+					}
+				}
+
+				Thread.sleep(PROBE_INTERVAL);
+			} catch (InterruptedException ex) {
+				return;
+			} catch (IOException ex) {
+				log.debug("Probe failed", ex);
+				return;
+			}
+		}
+	}
+
+	private void receiveLoop(DatagramSocket s) {
+		byte[] buffer = new byte[1024];
+
+		while (!s.isClosed()) {
+			DatagramPacket dp = new DatagramPacket(buffer, buffer.length);
+			try {
+				s.receive(dp);
+
+				Packet p = Packet.read(buffer, dp.getLength());
+				if (p.getType() == Packet.PAN_GATEWAY) {
+					gatewayAnswered(p, dp.getAddress());
+				}
+			} catch (SocketException ex) {
+				return; // closed
+			} catch (IOException | IllegalArgumentException ex) {
+				log.warn("Error receiving packet", ex);
+			}
+		}
+	}
+
+	private void gatewayAnswered(Packet p, InetAddress from) {
+		if (!answered.add(from)) {
+			return;
+		}
+
+		ByteBuffer payload = p.payload();
+		payload.get(); // service
+		int gatewayPort = payload.getInt();
+
+		try {
+			Gateway gateway = Gateways.connect(from, gatewayPort);
+
+			LIFXEngine e = engine;
+			if (e != null) {
+				e.gatewayDiscovered(gateway);
+			}
+		} catch (IOException ex) {
+			log.warn("Unable to connect to gateway " + from, ex);
+			answered.remove(from);
+		}
+
+		awaiter.signal();
+	}
+
+	private static void thread(String name, Runnable r) {
+		Thread t = new Thread(r, name);
+		t.setDaemon(true);
+		t.start();
+	}
+
+}
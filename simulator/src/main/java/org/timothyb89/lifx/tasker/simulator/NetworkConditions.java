@@ -0,0 +1,79 @@
+package org.timothyb89.lifx.tasker.simulator;
+
+import java.util.Random;
+
+/**
+ * Simulated network behavior: a fixed latency, uniformly distributed jitter
+ * around it, and random packet loss.
+ * @author tim
+ */
+public class NetworkConditions {
+
+	public static final NetworkConditions PERFECT
+			= new NetworkConditions(0, 0, 0);
+
+	private final long latency;
+	private final long jitter;
+	private final double loss;
+
+	private final Random random;
+
+	/**
+	 * @param latency the one-way delay added to each packet, in milliseconds
+	 * @param jitter the maximum deviation from {@code latency}, in
+	 *     milliseconds
+	 * @param loss the probability of dropping any given packet, from 0 to 1
+	 */
+	public NetworkConditions(long latency, long jitter, double loss) {
+		if (latency < 0 || jitter < 0 || loss < 0 || loss > 1) {
+			throw new IllegalArgumentException(
+					"Invalid network conditions: latency=" + latency
+					+ ", jitter=" + jitter + ", loss=" + loss);
+		}
+
+		this.latency = latency;
+		this.jitter = jitter;
+		this.loss = loss;
+
+		random = new Random();
+	}
+
+	/**
+	 * @return the delay for the next packet, in milliseconds
+	 */
+	public long delay() {
+		if (jitter == 0) {
+			return latency;
+		}
+
+		long offset = (long) (random.nextDouble() * (2 * jitter + 1)) - jitter;
+
+		return Math.max(0, latency + offset);
+	}
+
+	/**
+	 * @return true if the next packet should be dropped
+	 */
+	public boolean drop() {
+		return loss > 0 && random.nextDouble() < loss;
+	}
+
+	public long getLatency() {
+		return latency;
+	}
+
+	public long getJitter() {
+		return jitter;
+	}
+
+	public double getLoss() {
+		return loss;
+	}
+
+	@Override
+	public String toString() {
+		return "latency=" + latency + "ms jitter=" + jitter + "ms loss="
+				+ String.format("%.1f%%", loss * 100);
+	}
+
+}
@@ -0,0 +1,157 @@
+package org.timothyb89.lifx.tasker.simulator;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * A LIFX LAN protocol (v1) packet: a 36 byte little-endian header followed
+ * by a type-specific payload.
+ * @author tim
+ */
+public class Packet {
+
+	public static final int DEFAULT_PORT = 56700;
+
+	public static final int HEADER_SIZE = 36;
+
+	public static final int PROTOCOL_ADDRESSED = 0x1400;
+	public static final int PROTOCOL_TAGGED = 0x3400;
+
+	public static final int GET_PAN_GATEWAY = 0x02;
+	public static final int PAN_GATEWAY = 0x03;
+	public static final int GET_POWER_STATE = 0x14;
+	public static final int SET_POWER_STATE = 0x15;
+	public static final int POWER_STATE = 0x16;
+	public static final int GET_LIGHT_STATE = 0x65;
+	public static final int SET_LIGHT_COLOR = 0x66;
+	public static final int LIGHT_STATUS = 0x6b;
+
+	/**
+	 * The PAN_GATEWAY service ID for UDP.
+	 */
+	public static final int SERVICE_UDP = 1;
+
+	public static final byte[] NO_ADDRESS = new byte[6];
+
+	private final int type;
+	private final byte[] target;
+	private final byte[] site;
+	private final byte[] payload;
+
+	/**
+	 * @param type the packet type
+	 * @param target the target bulb's MAC address, or {@link #NO_ADDRESS} to
+	 *     address every bulb behind the gateway
+	 * @param site the gateway's MAC address
+	 * @param payload the payload
+	 */
+	public Packet(int type, byte[] target, byte[] site, byte[] payload) {
+		this.type = type;
+		this.target = target == null ? NO_ADDRESS : target;
+		this.site = site == null ? NO_ADDRESS : site;
+		this.payload = payload == null ? new byte[0] : payload;
+	}
+
+	/**
+	 * Parses a packet.
+	 * @param data the buffer holding the packet
+	 * @param length the number of valid bytes in the buffer
+	 * @return the packet
+	 * @throws IllegalArgumentException if the packet is malformed
+	 */
+	public static Packet read(byte[] data, int length) {
+		if (length < HEADER_SIZE) {
+			throw new IllegalArgumentException(
+					"Packet too short: " + length + " bytes");
+		}
+
+		ByteBuffer b = ByteBuffer.wrap(data, 0, length)
+				.order(ByteOrder.LITTLE_ENDIAN);
+
+		int size = b.getShort() & 0xFFFF;
+		if (size < HEADER_SIZE || size > length) {
+			throw new IllegalArgumentException("Bad packet size: " + size);
+		}
+
+		b.getShort(); // protocol
+		b.getInt();
+
+		byte[] target = new byte[6];
+		b.get(target);
+		b.getShort();
+
+		byte[] site = new byte[6];
+		b.get(site);
+		b.getShort();
+
+		b.getLong(); // timestamp
+
+		int type = b.getShort() & 0xFFFF;
+		b.getShort();
+
+		byte[] payload = Arrays.copyOfRange(data, HEADER_SIZE, size);
+
+		return new Packet(type, target, site, payload);
+	}
+
+	public byte[] toBytes() {
+		int size = HEADER_SIZE + payload.length;
+
+		ByteBuffer b = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		b.putShort((short) size);
+		b.putShort((short) (isTagged() ? PROTOCOL_TAGGED : PROTOCOL_ADDRESSED));
+		b.putInt(0);
+		b.put(target);
+		b.putShort((short) 0);
+		b.put(site);
+		b.putShort((short) 0);
+		b.putLong(0);
+		b.putShort((short) type);
+		b.putShort((short) 0);
+		b.put(payload);
+
+		return b.array();
+	}
+
+	/**
+	 * @return a little-endian reader over the payload
+	 */
+	public ByteBuffer payload() {
+		return ByteBuffer.wrap(payload).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * @param size the payload size
+	 * @return a little-endian buffer to build a payload in
+	 */
+	public static ByteBuffer allocate(int size) {
+		return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	public int getType() {
+		return type;
+	}
+
+	public byte[] getTarget() {
+		return target;
+	}
+
+	public byte[] getSite() {
+		return site;
+	}
+
+	/**
+	 * @return true if this packet addresses every bulb behind the gateway
+	 */
+	public boolean isTagged() {
+		return Arrays.equals(target, NO_ADDRESS);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Packet[type=0x%02x, %d byte payload]",
+				type, payload.length);
+	}
+
+}
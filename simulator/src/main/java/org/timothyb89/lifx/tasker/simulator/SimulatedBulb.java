@@ -0,0 +1,93 @@
+package org.timothyb89.lifx.tasker.simulator;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import org.timothyb89.lifx.tasker.engine.BulbKeys;
+
+/**
+ * The state of a single simulated bulb.
+ * @author tim
+ */
+public class SimulatedBulb {
+
+	public static final int LABEL_SIZE = 32;
+	public static final int LIGHT_STATUS_SIZE = 52;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final byte[] address;
+	private final String label;
+
+	private int power;
+	private int hue;
+	private int saturation;
+	private int brightness;
+	private int kelvin;
+
+	public SimulatedBulb(byte[] address, String label) {
+		this.address = address;
+		this.label = label;
+
+		brightness = 0xFFFF;
+		kelvin = 3500;
+	}
+
+	public byte[] getAddress() {
+		return address;
+	}
+
+	public String getLabel() {
+		return label;
+	}
+
+	public synchronized boolean isOn() {
+		return power != 0;
+	}
+
+	public synchronized void setPower(int power) {
+		this.power = power;
+	}
+
+	public synchronized void setColor(
+			int hue, int saturation, int brightness, int kelvin) {
+		this.hue = hue;
+		this.saturation = saturation;
+		this.brightness = brightness;
+		this.kelvin = kelvin;
+	}
+
+	/**
+	 * @return a POWER_STATE payload
+	 */
+	public synchronized byte[] powerState() {
+		return Packet.allocate(2).putShort((short) power).array();
+	}
+
+	/**
+	 * @return a LIGHT_STATUS payload
+	 */
+	public synchronized byte[] lightStatus() {
+		ByteBuffer b = Packet.allocate(LIGHT_STATUS_SIZE);
+		b.putShort((short) hue);
+		b.putShort((short) saturation);
+		b.putShort((short) brightness);
+		b.putShort((short) kelvin);
+		b.putShort((short) 0); // dim
+		b.putShort((short) power);
+
+		byte[] name = label.getBytes(UTF8);
+		b.put(name, 0, Math.min(name.length, LABEL_SIZE));
+		b.position(b.position() + LABEL_SIZE - Math.min(name.length, LABEL_SIZE));
+
+		b.putLong(0); // tags
+
+		return b.array();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return label + " (" + BulbKeys.hex(address) + ", "
+				+ (power != 0 ? "on" : "off") + ")";
+	}
+
+}
@@ -0,0 +1,385 @@
+package org.timothyb89.lifx.tasker.simulator;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.timothyb89.lifx.tasker.engine.BulbKeys;
+import org.timothyb89.lifx.tasker.engine.Metrics;
+
+/**
+ * A simulated gateway bulb and the mesh of bulbs behind it.
+ * <p>
+ * The gateway listens for UDP packets on its address and port, and also
+ * accepts TCP connections on the same port using the same framing, since
+ * clients may talk to v1 gateways either way. Every reply is delayed and
+ * possibly dropped according to the gateway's {@link NetworkConditions}, and
+ * incoming packets may be dropped as well.
+ * @author tim
+ */
+public class SimulatedGateway {
+
+	private static final Logger log
+			= LoggerFactory.getLogger(SimulatedGateway.class);
+
+	private static final int MAX_PACKET = 1024;
+
+	/**
+	 * Sends a reply back to whoever sent a request.
+	 */
+	private interface Reply {
+
+		void send(byte[] data) throws IOException;
+
+	}
+
+	private final InetAddress address;
+	private final int port;
+	private final List<SimulatedBulb> bulbs;
+	private final Map<String, SimulatedBulb> byAddress;
+	private final byte[] site;
+
+	private final NetworkConditions conditions;
+	private final ScheduledExecutorService scheduler;
+	private final Metrics metrics;
+
+	private DatagramSocket udp;
+	private ServerSocket tcp;
+	private final List<Socket> connections;
+
+	/**
+	 * @param address the address to listen on
+	 * @param port the port to listen on
+	 * @param bulbs the bulbs behind this gateway; the first is the gateway
+	 *     bulb itself
+	 * @param conditions the simulated network conditions
+	 * @param scheduler the scheduler used to send delayed replies
+	 * @param metrics where packet counts are recorded
+	 */
+	public SimulatedGateway(
+			InetAddress address,
+			int port,
+			List<SimulatedBulb> bulbs,
+			NetworkConditions conditions,
+			ScheduledExecutorService scheduler,
+			Metrics metrics) {
+		if (bulbs.isEmpty()) {
+			throw new IllegalArgumentException("A gateway needs a bulb");
+		}
+
+		this.address = address;
+		this.port = port;
+		this.bulbs = Collections.unmodifiableList(new ArrayList<>(bulbs));
+		this.conditions = conditions;
+		this.scheduler = scheduler;
+		this.metrics = metrics;
+
+		byAddress = new HashMap<>();
+		for (SimulatedBulb b : bulbs) {
+			byAddress.put(BulbKeys.hex(b.getAddress()), b);
+		}
+
+		site = bulbs.get(0).getAddress();
+
+		connections = Collections.synchronizedList(new ArrayList<Socket>());
+	}
+
+	public void start() throws IOException {
+		udp = new DatagramSocket(null);
+		udp.setReuseAddress(true);
+		udp.bind(new InetSocketAddress(address, port));
+
+		tcp = new ServerSocket();
+		tcp.setReuseAddress(true);
+		tcp.bind(new InetSocketAddress(address, port));
+
+		thread("sim-udp-" + address.getHostAddress(), new Runnable() {
+
+			@Override
+			public void run() {
+				receiveLoop();
+			}
+
+		});
+
+		thread("sim-tcp-" + address.getHostAddress(), new Runnable() {
+
+			@Override
+			public void run() {
+				acceptLoop();
+			}
+
+		});
+
+		log.debug("Gateway {} listening on {}:{} with {} bulbs",
+				BulbKeys.hex(site), address.getHostAddress(), port,
+				bulbs.size());
+	}
+
+	public void stop() {
+		if (udp != null) {
+			udp.close();
+		}
+
+		try {
+			if (tcp != null) {
+				tcp.close();
+			}
+		} catch (IOException ex) {
+			log.debug("Error closing TCP listener", ex);
+		}
+
+		synchronized (connections) {
+			for (Socket s : connections) {
+				try {
+					s.close();
+				} catch (IOException ex) {
+					log.debug("Error closing connection", ex);
+				}
+			}
+
+			connections.clear();
+		}
+	}
+
+	public InetAddress getAddress() {
+		return address;
+	}
+
+	public List<SimulatedBulb> getBulbs() {
+		return bulbs;
+	}
+
+	private void thread(String name, Runnable r) {
+		Thread t = new Thread(r, name);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private void receiveLoop() {
+		byte[] buffer = new byte[MAX_PACKET];
+
+		while (!udp.isClosed()) {
+			DatagramPacket dp = new DatagramPacket(buffer, buffer.length);
+			try {
+				udp.receive(dp);
+			} catch (SocketException ex) {
+				return; // closed
+			} catch (IOException ex) {
+				log.warn("Error receiving packet", ex);
+				continue;
+			}
+
+			final SocketAddress sender = dp.getSocketAddress();
+			receive(buffer, dp.getLength(), new Reply() {
+
+				@Override
+				public void send(byte[] data) throws IOException {
+					udp.send(new DatagramPacket(data, data.length, sender));
+				}
+
+			});
+		}
+	}
+
+	private void acceptLoop() {
+		while (!tcp.isClosed()) {
+			final Socket s;
+			try {
+				s = tcp.accept();
+			} catch (IOException ex) {
+				return; // closed
+			}
+
+			connections.add(s);
+			thread("sim-conn-" + s.getRemoteSocketAddress(), new Runnable() {
+
+				@Override
+				public void run() {
+					connectionLoop(s);
+				}
+
+			});
+		}
+	}
+
+	private void connectionLoop(Socket s) {
+		try {
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			final OutputStream out = s.getOutputStream();
+
+			Reply reply = new Reply() {
+
+				@Override
+				public void send(byte[] data) throws IOException {
+					synchronized (out) {
+						out.write(data);
+						out.flush();
+					}
+				}
+
+			};
+
+			byte[] buffer = new byte[MAX_PACKET];
+			while (true) {
+				// the size is the first (little-endian) field of the header
+				in.readFully(buffer, 0, 2);
+				int size = (buffer[0] & 0xFF) | ((buffer[1] & 0xFF) << 8);
+				if (size < Packet.HEADER_SIZE || size > MAX_PACKET) {
+					log.warn("Bad packet size {}, closing connection", size);
+					return;
+				}
+
+				in.readFully(buffer, 2, size - 2);
+				receive(buffer, size, reply);
+			}
+		} catch (EOFException ex) {
+			// client disconnected
+		} catch (IOException ex) {
+			log.debug("Connection closed", ex);
+		} finally {
+			connections.remove(s);
+
+			try {
+				s.close();
+			} catch (IOException ex) {
+				// ignore
+			}
+		}
+	}
+
+	private void receive(byte[] data, int length, Reply reply) {
+		metrics.counter("packets.received").increment();
+		if (conditions.drop()) {
+			metrics.counter("packets.dropped.in").increment();
+			return;
+		}
+
+		Packet p;
+		try {
+			p = Packet.read(data, length);
+		} catch (IllegalArgumentException ex) {
+			metrics.counter("packets.malformed").increment();
+			log.debug("Ignoring malformed packet", ex);
+			return;
+		}
+
+		handle(p, reply);
+	}
+
+	private void handle(Packet p, Reply reply) {
+		switch (p.getType()) {
+			case Packet.GET_PAN_GATEWAY:
+				respond(reply, Packet.PAN_GATEWAY, Packet.NO_ADDRESS,
+						Packet.allocate(5)
+								.put((byte) Packet.SERVICE_UDP)
+								.putInt(port)
+								.array());
+				break;
+
+			case Packet.GET_LIGHT_STATE:
+				for (SimulatedBulb b : targets(p)) {
+					respond(reply, Packet.LIGHT_STATUS,
+							b.getAddress(), b.lightStatus());
+				}
+				break;
+
+			case Packet.GET_POWER_STATE:
+				for (SimulatedBulb b : targets(p)) {
+					respond(reply, Packet.POWER_STATE,
+							b.getAddress(), b.powerState());
+				}
+				break;
+
+			case Packet.SET_POWER_STATE: {
+				int power = p.payload().getShort() & 0xFFFF;
+				for (SimulatedBulb b : targets(p)) {
+					b.setPower(power);
+					respond(reply, Packet.POWER_STATE,
+							b.getAddress(), b.powerState());
+				}
+				break;
+			}
+
+			case Packet.SET_LIGHT_COLOR: {
+				ByteBuffer payload = p.payload();
+				payload.get(); // stream
+				int hue = payload.getShort() & 0xFFFF;
+				int saturation = payload.getShort() & 0xFFFF;
+				int brightness = payload.getShort() & 0xFFFF;
+				int kelvin = payload.getShort() & 0xFFFF;
+
+				for (SimulatedBulb b : targets(p)) {
+					b.setColor(hue, saturation, brightness, kelvin);
+					respond(reply, Packet.LIGHT_STATUS,
+							b.getAddress(), b.lightStatus());
+				}
+				break;
+			}
+
+			default:
+				metrics.counter("packets.unknown").increment();
+				log.debug("Ignoring unsupported packet: {}", p);
+		}
+	}
+
+	private List<SimulatedBulb> targets(Packet p) {
+		if (p.isTagged()) {
+			return bulbs;
+		}
+
+		SimulatedBulb b = byAddress.get(BulbKeys.hex(p.getTarget()));
+		if (b == null) {
+			return Collections.emptyList();
+		}
+
+		return Collections.singletonList(b);
+	}
+
+	private void respond(
+			final Reply reply, int type, byte[] target, byte[] payload) {
+		if (conditions.drop()) {
+			metrics.counter("packets.dropped.out").increment();
+			return;
+		}
+
+		final byte[] data = new Packet(type, target, site, payload).toBytes();
+		try {
+			scheduler.schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						reply.send(data);
+						metrics.counter("packets.sent").increment();
+					} catch (IOException ex) {
+						log.debug("Error sending reply", ex);
+					}
+				}
+
+			}, conditions.delay(), TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException ex) {
+			// the simulator is stopping
+		}
+	}
+
+}
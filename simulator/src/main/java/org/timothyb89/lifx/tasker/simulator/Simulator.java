@@ -0,0 +1,250 @@
+package org.timothyb89.lifx.tasker.simulator;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.timothyb89.lifx.tasker.engine.Metrics;
+
+/**
+ * Simulates a fleet of LIFX gateways and bulbs speaking the LAN protocol, for
+ * load and latency testing without real hardware.
+ * <p>
+ * By default gateway {@code i} listens on loopback address
+ * {@code 127.0.0.(i + 1)}, so each gateway has its own IP just as on a real
+ * network (Linux routes all of {@code 127.0.0.0/8} to the loopback
+ * interface). Alternatively a single gateway can listen on a given address;
+ * on {@code 0.0.0.0} it answers discovery broadcasts from the app running on
+ * a device or emulator on the same network.
+ * @author tim
+ */
+public class Simulator {
+
+	private static final Logger log = LoggerFactory.getLogger(Simulator.class);
+
+	/**
+	 * The first three octets of LIFX MAC addresses.
+	 */
+	private static final byte[] OUI = { (byte) 0xd0, (byte) 0x73, (byte) 0xd5 };
+
+	private final int gatewayCount;
+	private final int bulbCount;
+	private final NetworkConditions conditions;
+
+	private InetAddress host;
+	private int port;
+
+	private final Metrics metrics;
+	private final List<SimulatedGateway> gateways;
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * @param gateways the number of gateways
+	 * @param bulbs the total number of bulbs, spread evenly over the
+	 *     gateways
+	 * @param conditions the simulated network conditions
+	 */
+	public Simulator(int gateways, int bulbs, NetworkConditions conditions) {
+		if (gateways < 1 || bulbs < gateways) {
+			throw new IllegalArgumentException(
+					"Need at least one bulb per gateway");
+		}
+
+		this.gatewayCount = gateways;
+		this.bulbCount = bulbs;
+		this.conditions = conditions;
+
+		port = Packet.DEFAULT_PORT;
+
+		metrics = new Metrics();
+		this.gateways = new ArrayList<>();
+	}
+
+	/**
+	 * Sets the address for a single gateway to listen on, instead of one
+	 * loopback address per gateway. Must be called before {@link #start()}.
+	 * @param host the address to listen on
+	 */
+	public void setHost(InetAddress host) {
+		if (gatewayCount != 1) {
+			throw new IllegalStateException(
+					"A fixed host only supports a single gateway");
+		}
+
+		this.host = host;
+	}
+
+	/**
+	 * Sets the port gateways listen on. Must be called before
+	 * {@link #start()}.
+	 * @param port the port
+	 */
+	public void setPort(int port) {
+		this.port = port;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public synchronized void start() throws IOException {
+		if (scheduler != null) {
+			return;
+		}
+
+		scheduler = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "sim-reply");
+				t.setDaemon(true);
+
+				return t;
+			}
+
+		});
+
+		List<List<SimulatedBulb>> meshes = new ArrayList<>();
+		for (int i = 0; i < gatewayCount; i++) {
+			meshes.add(new ArrayList<SimulatedBulb>());
+		}
+
+		for (int i = 0; i < bulbCount; i++) {
+			meshes.get(i % gatewayCount).add(
+					new SimulatedBulb(address(i), "Bulb " + i));
+		}
+
+		try {
+			for (int i = 0; i < gatewayCount; i++) {
+				SimulatedGateway g = new SimulatedGateway(
+						host == null ? loopback(i) : host, port,
+						meshes.get(i), conditions, scheduler, metrics);
+				g.start();
+
+				gateways.add(g);
+			}
+		} catch (IOException ex) {
+			stop();
+			throw ex;
+		}
+
+		log.info("Simulating {} bulbs behind {} gateways on port {} ({})",
+				bulbCount, gatewayCount, port, conditions);
+	}
+
+	public synchronized void stop() {
+		for (SimulatedGateway g : gateways) {
+			g.stop();
+		}
+
+		gateways.clear();
+
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * @return the address each gateway listens on
+	 */
+	public synchronized List<InetAddress> getAddresses() {
+		List<InetAddress> ret = new ArrayList<>();
+		for (SimulatedGateway g : gateways) {
+			ret.add(g.getAddress());
+		}
+
+		return ret;
+	}
+
+	public synchronized List<SimulatedGateway> getGateways() {
+		return Collections.unmodifiableList(new ArrayList<>(gateways));
+	}
+
+	public int getBulbCount() {
+		return bulbCount;
+	}
+
+	/**
+	 * @return packet counts for the simulated network
+	 */
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	private static byte[] address(int index) {
+		return new byte[] {
+			OUI[0], OUI[1], OUI[2],
+			(byte) (index >> 16), (byte) (index >> 8), (byte) index
+		};
+	}
+
+	private static InetAddress loopback(int index) throws UnknownHostException {
+		if (index > 253) {
+			throw new IllegalArgumentException("Too many gateways: " + index);
+		}
+
+		return InetAddress.getByAddress(
+				new byte[] { 127, 0, 0, (byte) (index + 1) });
+	}
+
+	private static void usage() {
+		System.err.println("usage: Simulator [-gateways n] [-bulbs n] "
+				+ "[-host address] [-port n] [-latency ms] [-jitter ms] "
+				+ "[-loss fraction]");
+		System.exit(1);
+	}
+
+	/**
+	 * Runs a simulator until killed.
+	 * @param args command line options, see {@link #usage()}
+	 * @throws Exception if the simulator can't be started
+	 */
+	public static void main(String[] args) throws Exception {
+		int gateways = 1;
+		int bulbs = 5;
+		String host = null;
+		int port = Packet.DEFAULT_PORT;
+		long latency = 0;
+		long jitter = 0;
+		double loss = 0;
+
+		if (args.length % 2 != 0) {
+			usage();
+		}
+
+		for (int i = 0; i < args.length; i += 2) {
+			String value = args[i + 1];
+			switch (args[i]) {
+				case "-gateways": gateways = Integer.parseInt(value); break;
+				case "-bulbs":    bulbs = Integer.parseInt(value); break;
+				case "-host":     host = value; break;
+				case "-port":     port = Integer.parseInt(value); break;
+				case "-latency":  latency = Long.parseLong(value); break;
+				case "-jitter":   jitter = Long.parseLong(value); break;
+				case "-loss":     loss = Double.parseDouble(value); break;
+				default:          usage();
+			}
+		}
+
+		Simulator sim = new Simulator(gateways, bulbs,
+				new NetworkConditions(latency, jitter, loss));
+		sim.setPort(port);
+		if (host != null) {
+			sim.setHost(InetAddress.getByName(host));
+		}
+
+		sim.start();
+
+		// the gateways run on daemon threads
+		Thread.sleep(Long.MAX_VALUE);
+	}
+
+}
@@ -59,8 +59,7 @@ public class ColorPicker extends View {
 	 * you change this array.
 	 * </p>
 	 */
-	private static final int[] COLORS = new int[] { 0xFFFF0000, 0xFFFF00FF,
-			0xFF0000FF, 0xFF00FFFF, 0xFF00FF00, 0xFFFFFF00, 0xFFFF0000 };
+	private static final int[] COLORS = ColorWheelMath.COLORS;
 
 	/**
 	 * {@code Paint} instance used to draw the color wheel.
@@ -458,10 +457,6 @@ public class ColorPicker extends View {
 				mColorCenterRadius, mColorCenterRadius);
 	}
 
-	private int ave(int s, int d, float p) {
-		return s + java.lang.Math.round(p * (d - s));
-	}
-
 	/**
 	 * Calculate the color using the supplied angle.
 	 * 
@@ -470,35 +465,11 @@ public class ColorPicker extends View {
 	 * 
 	 * @return The ARGB value of the color on the color wheel at the specified
 	 *         angle.
+	 * @see ColorWheelMath#calculateColor(int[], float)
 	 */
 	private int calculateColor(float angle) {
-		float unit = (float) (angle / (2 * Math.PI));
-		if (unit < 0) {
-			unit += 1;
-		}
-
-		if (unit <= 0) {
-			mColor = COLORS[0];
-			return COLORS[0];
-		}
-		if (unit >= 1) {
-			mColor = COLORS[COLORS.length - 1];
-			return COLORS[COLORS.length - 1];
-		}
-
-		float p = unit * (COLORS.length - 1);
-		int i = (int) p;
-		p -= i;
-
-		int c0 = COLORS[i];
-		int c1 = COLORS[i + 1];
-		int a = ave(Color.alpha(c0), Color.alpha(c1), p);
-		int r = ave(Color.red(c0), Color.red(c1), p);
-		int g = ave(Color.green(c0), Color.green(c1), p);
-		int b = ave(Color.blue(c0), Color.blue(c1), p);
-
-		mColor = Color.argb(a, r, g, b);
-		return Color.argb(a, r, g, b);
+		mColor = ColorWheelMath.calculateColor(COLORS, angle);
+		return mColor;
 	}
 
 	/**
@@ -578,10 +549,7 @@ public class ColorPicker extends View {
 	 *         color wheel.
 	 */
 	private float colorToAngle(int color) {
-		float[] colors = new float[3];
-		Color.colorToHSV(color, colors);
-		
-		return (float) Math.toRadians(-colors[0]);
+		return ColorWheelMath.colorToAngle(color);
 	}
 	
 	@Override
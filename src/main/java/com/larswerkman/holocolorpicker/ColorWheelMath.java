@@ -0,0 +1,164 @@
+/*
+ * Copyright 2012 Lars Werkman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larswerkman.holocolorpicker;
+
+/**
+ * The color wheel math used by {@link ColorPicker}.
+ *
+ * <p>
+ * Kept free of any Android classes so it can be run (and benchmarked) on a
+ * plain JVM. The channel helpers match {@code android.graphics.Color}.
+ * </p>
+ */
+public final class ColorWheelMath {
+
+	/**
+	 * Colors to construct the color wheel from, shared with
+	 * {@link ColorPicker}.
+	 * 
+	 * <p>
+	 * Note: {@link ColorPicker#setColor(int)} highly depends on these exact
+	 * values and might break if you change this array.
+	 * </p>
+	 */
+	static final int[] COLORS = new int[] { 0xFFFF0000, 0xFFFF00FF,
+			0xFF0000FF, 0xFF00FFFF, 0xFF00FF00, 0xFFFFFF00, 0xFFFF0000 };
+
+	private ColorWheelMath() {
+		// static only
+	}
+
+	/**
+	 * @return a copy of the colors the wheel is constructed from, in order
+	 */
+	public static int[] getWheelColors() {
+		return COLORS.clone();
+	}
+
+	public static int alpha(int color) {
+		return color >>> 24;
+	}
+
+	public static int red(int color) {
+		return (color >> 16) & 0xFF;
+	}
+
+	public static int green(int color) {
+		return (color >> 8) & 0xFF;
+	}
+
+	public static int blue(int color) {
+		return color & 0xFF;
+	}
+
+	public static int argb(int alpha, int red, int green, int blue) {
+		return (alpha << 24) | (red << 16) | (green << 8) | blue;
+	}
+
+	private static int ave(int s, int d, float p) {
+		return s + java.lang.Math.round(p * (d - s));
+	}
+
+	/**
+	 * Calculate the color using the supplied angle.
+	 *
+	 * @param colors
+	 *            The colors the wheel is constructed from, in order.
+	 * @param angle
+	 *            The selected color's position expressed as angle (in rad).
+	 *
+	 * @return The ARGB value of the color on the color wheel at the specified
+	 *         angle.
+	 */
+	public static int calculateColor(int[] colors, float angle) {
+		float unit = (float) (angle / (2 * Math.PI));
+		if (unit < 0) {
+			unit += 1;
+		}
+
+		if (unit <= 0) {
+			return colors[0];
+		}
+		if (unit >= 1) {
+			return colors[colors.length - 1];
+		}
+
+		float p = unit * (colors.length - 1);
+		int i = (int) p;
+		p -= i;
+
+		int c0 = colors[i];
+		int c1 = colors[i + 1];
+		int a = ave(alpha(c0), alpha(c1), p);
+		int r = ave(red(c0), red(c1), p);
+		int g = ave(green(c0), green(c1), p);
+		int b = ave(blue(c0), blue(c1), p);
+
+		return argb(a, r, g, b);
+	}
+
+	/**
+	 * Calculate the hue of a color, as {@code Color.colorToHSV()} would.
+	 *
+	 * @param color
+	 *            The RGB value of the color.
+	 *
+	 * @return The hue, in degrees from 0 (inclusive) to 360 (exclusive).
+	 */
+	public static float hue(int color) {
+		int r = red(color);
+		int g = green(color);
+		int b = blue(color);
+
+		int max = Math.max(r, Math.max(g, b));
+		int min = Math.min(r, Math.min(g, b));
+		float delta = max - min;
+		if (max == 0 || delta == 0) {
+			return 0;
+		}
+
+		float h;
+		if (r == max) {
+			h = (g - b) / delta;
+		} else if (g == max) {
+			h = 2 + (b - r) / delta;
+		} else {
+			h = 4 + (r - g) / delta;
+		}
+
+		h *= 60;
+		if (h < 0) {
+			h += 360;
+		}
+
+		return h;
+	}
+
+	/**
+	 * Convert a color to an angle.
+	 *
+	 * @param color
+	 *            The RGB value of the color to "find" on the color wheel.
+	 *
+	 * @return The angle (in rad) the "normalized" color is displayed on the
+	 *         color wheel.
+	 */
+	public static float colorToAngle(int color) {
+		return (float) Math.toRadians(-hue(color));
+	}
+
+}
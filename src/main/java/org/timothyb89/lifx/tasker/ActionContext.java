@@ -0,0 +1,99 @@
+package org.timothyb89.lifx.tasker;
+
+import android.os.Bundle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.timothyb89.lifx.tasker.editor.Action;
+import org.timothyb89.lifx.tasker.editor.BulbListEditor;
+import org.timothyb89.lifx.tasker.editor.ColorEditor;
+import org.timothyb89.lifx.tasker.engine.LIFXEngine;
+import org.timothyb89.lifx.tasker.engine.Tracer;
+
+/**
+ * Everything needed to run a single fired action, copied out of the Tasker
+ * bundle when the action arrives so that later actions can't change it while
+ * it is queued or running.
+ * @author tim
+ */
+public final class ActionContext {
+
+	private final String actionId;
+	private final Action action;
+	private final String[] bulbs;
+	private final int color;
+	private final Tracer.Trace trace;
+	
+	public ActionContext(
+			String actionId, String[] bulbs, int color, Tracer.Trace trace) {
+		this.actionId = actionId;
+		this.action = actionId == null ? null : Action.getAction(actionId);
+		this.bulbs = bulbs == null ? new String[0] : bulbs.clone();
+		this.color = color;
+		this.trace = trace;
+	}
+	
+	/**
+	 * Copies an action out of a Tasker bundle.
+	 * @param bundle the bundle, as saved by {@link EditActivity}
+	 * @param trace the action's trace
+	 * @return the action context
+	 */
+	public static ActionContext fromBundle(Bundle bundle, Tracer.Trace trace) {
+		return new ActionContext(
+				bundle.getString(FireReceiver.KEY_ACTION),
+				bundle.getStringArray(BulbListEditor.KEY_BULBS),
+				bundle.getInt(ColorEditor.KEY_COLOR),
+				trace);
+	}
+	
+	public String getActionId() {
+		return actionId;
+	}
+	
+	/**
+	 * @return the action to run, or null if the ID is not a known action
+	 */
+	public Action getAction() {
+		return action;
+	}
+	
+	/**
+	 * @return a copy of the target bulb names
+	 */
+	public String[] getBulbs() {
+		return bulbs.clone();
+	}
+	
+	public int getColor() {
+		return color;
+	}
+	
+	public Tracer.Trace getTrace() {
+		return trace;
+	}
+	
+	/**
+	 * Returns keys for the target bulbs, used to order actions against each
+	 * other. Bulbs the engine knows are keyed by address, so actions naming
+	 * the same bulb by label and by address are still ordered.
+	 * @param lifx the engine to resolve names with
+	 * @return a key for each target bulb
+	 * @see LIFXEngine#getKey(String)
+	 */
+	public List<String> getKeys(LIFXEngine lifx) {
+		List<String> ret = new ArrayList<>();
+		for (String b : bulbs) {
+			ret.add(lifx.getKey(b));
+		}
+		
+		return Collections.unmodifiableList(ret);
+	}
+	
+	@Override
+	public String toString() {
+		return actionId + " " + Arrays.toString(bulbs);
+	}
+	
+}
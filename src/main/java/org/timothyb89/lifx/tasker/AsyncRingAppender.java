@@ -0,0 +1,226 @@
+package org.timothyb89.lifx.tasker;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.apache.log4j.Appender;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * A log4j appender that hands events off to a background writer through a
+ * fixed-size ring buffer, so logging never waits on disk I/O.
+ * <p>
+ * Producers only copy a reference into the buffer; layout formatting and
+ * writing happen on the writer thread when the buffer is drained. If the
+ * buffer is full, events are dropped rather than blocking the caller, and
+ * the number dropped is logged once the writer catches up.
+ * <p>
+ * Events are buffered from the moment the appender is attached, but nothing
+ * is written until {@link #start()} is called. This lets logging begin
+ * before the delegate appenders (and the files behind them) are ready.
+ * @author tim
+ */
+public class AsyncRingAppender extends AppenderSkeleton {
+
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * How long the writer waits for the buffer to fill before draining
+	 * anyway, in milliseconds.
+	 */
+	public static final long DRAIN_INTERVAL = 250;
+
+	private final List<Appender> delegates;
+
+	private final Object lock = new Object();
+	private final LoggingEvent[] ring;
+	private final LoggingEvent[] batch;
+	private int head;
+	private int size;
+	private long dropped;
+	private long totalDropped;
+
+	private volatile boolean running;
+	private final Thread writer;
+
+	public AsyncRingAppender() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public AsyncRingAppender(int capacity) {
+		ring = new LoggingEvent[capacity];
+		batch = new LoggingEvent[capacity];
+
+		delegates = new CopyOnWriteArrayList<>();
+
+		running = true;
+		writer = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				drainLoop();
+			}
+
+		}, "log-writer");
+		writer.setDaemon(true);
+		writer.setPriority(Thread.MIN_PRIORITY);
+	}
+
+	/**
+	 * Starts the writer, draining anything buffered so far to the delegates.
+	 */
+	public synchronized void start() {
+		if (!writer.isAlive() && running) {
+			writer.start();
+		}
+	}
+
+	/**
+	 * Adds an appender that drained events are written to. Delegates are only
+	 * ever called from the writer thread.
+	 * @param appender the appender to write to
+	 */
+	public void addDelegate(Appender appender) {
+		delegates.add(appender);
+	}
+
+	@Override
+	protected void append(LoggingEvent event) {
+		// capture anything tied to the calling thread before handing off
+		event.getThreadName();
+		event.getNDC();
+		event.getMDCCopy();
+
+		synchronized (lock) {
+			if (size == ring.length) {
+				dropped++;
+				totalDropped++;
+				return;
+			}
+
+			ring[(head + size) % ring.length] = event;
+			size++;
+
+			// wake the writer early if we're filling up or something broke
+			if (size == ring.length / 2
+					|| event.getLevel().isGreaterOrEqual(Level.ERROR)) {
+				lock.notify();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of events dropped because the buffer was full
+	 */
+	public long getDropped() {
+		synchronized (lock) {
+			return totalDropped;
+		}
+	}
+
+	/**
+	 * @return the number of events currently waiting to be written
+	 */
+	public int getBuffered() {
+		synchronized (lock) {
+			return size;
+		}
+	}
+
+	/**
+	 * Wakes the writer to drain any buffered events now.
+	 */
+	public void flush() {
+		synchronized (lock) {
+			lock.notify();
+		}
+	}
+
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+
+		closed = true;
+		running = false;
+
+		flush();
+		try {
+			writer.join(1000);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+
+		for (Appender a : delegates) {
+			a.close();
+		}
+	}
+
+	@Override
+	public boolean requiresLayout() {
+		return false;
+	}
+
+	private void drainLoop() {
+		while (true) {
+			int count;
+			long lost;
+
+			synchronized (lock) {
+				if (size == 0 && running) {
+					try {
+						lock.wait(DRAIN_INTERVAL);
+					} catch (InterruptedException ex) {
+						running = false;
+					}
+				}
+
+				if (size == 0 && !running) {
+					return;
+				}
+
+				count = size;
+				for (int i = 0; i < count; i++) {
+					int index = (head + i) % ring.length;
+
+					batch[i] = ring[index];
+					ring[index] = null;
+				}
+
+				head = (head + count) % ring.length;
+				size = 0;
+
+				lost = dropped;
+				dropped = 0;
+			}
+
+			for (int i = 0; i < count; i++) {
+				write(batch[i]);
+				batch[i] = null;
+			}
+
+			if (lost > 0) {
+				write(new LoggingEvent(
+						AsyncRingAppender.class.getName(),
+						org.apache.log4j.Logger.getLogger(
+								AsyncRingAppender.class),
+						Level.WARN,
+						"Log buffer full, dropped " + lost + " events",
+						null));
+			}
+		}
+	}
+
+	private void write(LoggingEvent event) {
+		for (Appender a : delegates) {
+			try {
+				a.doAppend(event);
+			} catch (RuntimeException ex) {
+				errorHandler.error("Error writing log event", ex, 0, event);
+			}
+		}
+	}
+
+}
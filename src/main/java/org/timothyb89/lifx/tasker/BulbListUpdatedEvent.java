@@ -1,13 +1,56 @@
 package org.timothyb89.lifx.tasker;
 
+import java.util.Set;
 import org.timothyb89.eventbus.Event;
+import org.timothyb89.lifx.bulb.Bulb;
+import org.timothyb89.lifx.tasker.engine.RegistryDelta;
 
 /**
- *
+ * Sent when the set of known bulbs changes. Each event carries the bulbs
+ * added, removed and changed since the previous event, so subscribers can
+ * update incrementally rather than rebuilding from
+ * {@link LIFXService#getBulbs()}. Changes that arrive while a subscriber is
+ * busy are merged into the next event.
  * @author tim
  */
 public class BulbListUpdatedEvent extends Event {
 	
-	// empty
+	private final RegistryDelta<Bulb> delta;
+	
+	public BulbListUpdatedEvent(RegistryDelta<Bulb> delta) {
+		this.delta = delta;
+	}
+	
+	public Set<Bulb> getAdded() {
+		return delta.getAdded();
+	}
+	
+	public Set<Bulb> getRemoved() {
+		return delta.getRemoved();
+	}
+	
+	public Set<Bulb> getChanged() {
+		return delta.getChanged();
+	}
+	
+	/**
+	 * @return the registry version this event's changes apply to. If this
+	 *     doesn't match the version of the last event seen, an event was
+	 *     missed and the full list should be re-read.
+	 */
+	public long getFromVersion() {
+		return delta.getFromVersion();
+	}
+	
+	/**
+	 * @return the registry version after these changes
+	 */
+	public long getVersion() {
+		return delta.getVersion();
+	}
+	
+	public RegistryDelta<Bulb> getDelta() {
+		return delta;
+	}
 	
 }
@@ -11,6 +11,7 @@ import android.widget.Toast;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.timothyb89.lifx.bulb.Bulb;
+import org.timothyb89.lifx.tasker.engine.Tracer;
 
 /**
  *
@@ -22,6 +23,7 @@ public class FireReceiver extends BroadcastReceiver {
 	
 	public static final String KEY_ACTION = "action";
 	public static final String KEY_BUNDLE = "bundle";
+	public static final String KEY_TRACE = "trace";
 	
 	@Override
 	public void onReceive(Context context, Intent intent) {
@@ -36,8 +38,13 @@ public class FireReceiver extends BroadcastReceiver {
 		Bundle bundle = intent.getBundleExtra(
 				com.twofortyfouram.locale.Intent.EXTRA_BUNDLE);
 		
+		Tracer.Trace trace = Tracer.getInstance().begin(
+				bundle == null ? null : bundle.getString(KEY_ACTION));
+		trace.mark(Tracer.Phase.RECEIVED);
+		
 		Intent wrapped = new Intent(context, ReceiverService_.class);
 		wrapped.putExtra(KEY_BUNDLE, bundle);
+		wrapped.putExtra(KEY_TRACE, trace.getId());
 		context.startService(wrapped);
 	}
 	
@@ -0,0 +1,166 @@
+package org.timothyb89.lifx.tasker;
+
+import android.app.Application;
+import android.content.Context;
+import android.widget.Toast;
+import java.io.File;
+import java.io.IOException;
+import java.net.BindException;
+import org.androidannotations.annotations.EApplication;
+import org.androidannotations.annotations.UiThread;
+import org.slf4j.Logger;
+import org.timothyb89.eventbus.EventBus;
+import org.timothyb89.eventbus.EventBusClient;
+import org.timothyb89.eventbus.EventBusProvider;
+import org.timothyb89.lifx.bulb.Bulb;
+import org.timothyb89.lifx.gateway.Gateway;
+import org.timothyb89.lifx.net.BroadcastListener;
+import org.timothyb89.lifx.tasker.engine.ActionExecutor;
+import org.timothyb89.lifx.tasker.engine.BulbCache;
+import org.timothyb89.lifx.tasker.engine.Gateways;
+import org.timothyb89.lifx.tasker.engine.LIFXEngine;
+import org.timothyb89.lifx.tasker.engine.RegistryDelta;
+
+/**
+ * Owns the process-wide {@link LIFXEngine} and the {@link ActionExecutor}
+ * fired actions run on. Both are created on first use and live as long as
+ * the process, so {@link LIFXService} and {@link ReceiverService} share the
+ * same registry and bound socket without having to bind to each other.
+ * @author tim
+ */
+@EApplication
+public class LIFXApplication extends Application implements EventBusProvider {
+
+	private static Logger log = Logging.init(LIFXApplication.class);
+	
+	public static final String CACHE_FILE = "bulbs.cache";
+	
+	private final EventBus bus;
+	
+	private BroadcastListener listener;
+	private NetworkWatcher watcher;
+	private LIFXEngine engine;
+	private ActionExecutor executor;
+	
+	public LIFXApplication() {
+		bus = new EventBus() {{
+			add(BulbListUpdatedEvent.class);
+		}};
+	}
+	
+	/**
+	 * @param context any context in this app
+	 * @return the application instance
+	 */
+	public static LIFXApplication get(Context context) {
+		return (LIFXApplication) context.getApplicationContext();
+	}
+	
+	@Override
+	public EventBusClient bus() {
+		return bus.getClient();
+	}
+	
+	/**
+	 * Returns the shared engine, creating it and starting discovery on first
+	 * use.
+	 * @return the engine
+	 */
+	public synchronized LIFXEngine getEngine() {
+		if (engine == null) {
+			engine = createEngine();
+		}
+		
+		return engine;
+	}
+	
+	/**
+	 * Returns the shared action executor, creating it (and the engine) on
+	 * first use. Its queue depth and wait times are recorded in the engine's
+	 * metrics.
+	 * @return the executor
+	 */
+	public synchronized ActionExecutor getExecutor() {
+		if (executor == null) {
+			executor = new ActionExecutor(getEngine().getMetrics());
+		}
+		
+		return executor;
+	}
+	
+	private LIFXEngine createEngine() {
+		log.info("Creating LIFX engine");
+		
+		listener = new BroadcastListener(this);
+		
+		BulbCache cache = new BulbCache(new File(getFilesDir(), CACHE_FILE));
+		
+		final LIFXEngine ret = new LIFXEngine(new LIFXEngine.Transport() {
+			
+			@Override
+			public void startListen() throws IOException {
+				listener.startListen();
+			}
+			
+			@Override
+			public void stopDiscovery() throws IOException {
+				listener.stopDiscovery();
+			}
+			
+			@Override
+			public void stopListen() throws IOException {
+				listener.stopListen();
+			}
+			
+			@Override
+			public boolean isListening() {
+				return listener.isListening();
+			}
+			
+			@Override
+			public Gateway connect(String address) throws IOException {
+				return Gateways.connect(address);
+			}
+			
+		}, cache);
+		
+		ret.setListener(new LIFXEngine.Listener() {
+			
+			@Override
+			public void bulbsChanged(RegistryDelta<Bulb> delta) {
+				bus.push(new BulbListUpdatedEvent(delta));
+			}
+			
+			@Override
+			public void bindFailed(BindException ex) {
+				showToast(getString(R.string.service_bind_failed));
+			}
+			
+		});
+		
+		listener.bus().register(ret);
+		
+		// tag discovered bulbs with the current network, and swap registries
+		// when it changes
+		watcher = new NetworkWatcher(new NetworkWatcher.Listener() {
+			
+			@Override
+			public void networkChanged(String network) {
+				ret.networkChanged(network);
+			}
+			
+		});
+		watcher.register(this);
+		
+		// start bulb discovery
+		ret.start();
+		
+		return ret;
+	}
+	
+	@UiThread
+	protected void showToast(String message) {
+		Toast.makeText(this, message, Toast.LENGTH_LONG).show();
+	}
+	
+}
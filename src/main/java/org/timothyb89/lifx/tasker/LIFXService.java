@@ -2,42 +2,32 @@ package org.timothyb89.lifx.tasker;
 
 import android.app.Service;
 import android.content.Intent;
-import android.graphics.Color;
 import android.os.Binder;
+import android.os.Environment;
 import android.os.IBinder;
-import android.widget.Toast;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.BindException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collection;
 import java.util.List;
-import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
-import org.androidannotations.annotations.Background;
 import org.androidannotations.annotations.EService;
-import org.androidannotations.annotations.UiThread;
-import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.timothyb89.eventbus.EventBus;
 import org.timothyb89.eventbus.EventBusClient;
 import org.timothyb89.eventbus.EventBusProvider;
-import org.timothyb89.eventbus.EventHandler;
 import org.timothyb89.lifx.bulb.Bulb;
-import org.timothyb89.lifx.bulb.LIFXColor;
-import org.timothyb89.lifx.bulb.PowerState;
-import org.timothyb89.lifx.gateway.Gateway;
-import org.timothyb89.lifx.gateway.GatewayBulbDiscoveredEvent;
-import org.timothyb89.lifx.gateway.GatewayManager;
-import org.timothyb89.lifx.net.BroadcastListener;
-import org.timothyb89.lifx.net.GatewayDiscoveredEvent;
+import org.timothyb89.lifx.tasker.engine.DispatchResult;
+import org.timothyb89.lifx.tasker.engine.LIFXEngine;
+import org.timothyb89.lifx.tasker.engine.Metrics;
+import org.timothyb89.lifx.tasker.engine.StateConfirmer;
+import org.timothyb89.lifx.tasker.engine.Tracer;
 
 /**
- *
+ * Keeps the app's process alive while the plugin is in use, and gives
+ * activities a bindable handle on the shared {@link LIFXEngine}, which is
+ * owned by {@link LIFXApplication}. Stopping this service does not stop the
+ * engine or close its socket.
  * @author tim
  */
 @EService
@@ -45,50 +35,20 @@ public class LIFXService extends Service implements EventBusProvider {
 
 	private static Logger log = Logging.init(LIFXService.class);
 	
-	public static final int  DISCOVERY_ATTEMPTS   = 5;
-	public static final long DISCOVERY_WAIT       = 100; // milliseconds
-	public static final long DISCOVERY_WAIT_SMALL = 250;
-	public static final long DISCOVERY_WAIT_LONG  = 2500;
-	
-	public static final long DEFAULT_PULSE_DELAY = 1500;
+	public static final String TRACE_FILE = "lifx-tasker-traces.txt";
+	public static final String METRICS_FILE = "lifx-tasker-metrics.txt";
 	
 	private LIFXBinder binder;
 	
-	private BroadcastListener listener;
-	
-	private EventBus bus;
-	
-	private final List<Gateway> gateways;
-	private final List<Bulb> bulbs;
-	
 	public LIFXService() {
 		binder = new LIFXBinder();
-		
-		bus = new EventBus() {{
-			add(BulbListUpdatedEvent.class);
-		}};
-		
-		listener = new BroadcastListener(this);
-		listener.bus().register(this);
-		
-		gateways = Collections.synchronizedList(new LinkedList<Gateway>());
-		bulbs = Collections.synchronizedList(new LinkedList<Bulb>());
 	}
 	
 	@Override
 	public EventBusClient bus() {
-		return bus.getClient();
+		return LIFXApplication.get(this).bus();
 	}
 	
-	@Override
-	public void onCreate() {
-		// start bulb discovery
-		// todo: listen for network state events and clear the list of gateways
-		// on network change
-		
-		backgroundTimedListen();
-	}
-
 	@Override
 	public int onStartCommand(Intent intent, int flags, int startId) {
 		log.info("LIFX service started");
@@ -106,436 +66,169 @@ public class LIFXService extends Service implements EventBusProvider {
 		return binder;
 	}
 	
-	@UiThread
-	protected void showToast(String message) {
-		Toast.makeText(this, message, Toast.LENGTH_LONG).show();
-	}
-	
-	private void timedListen() {
-		if (listener.isListening()) {
-			return;
-		}
-		
-		try {
-			log.info("Starting gateway discovery...");
-			listener.startListen();
-
-			new Timer().schedule(new TimerTask() {
-
-				@Override
-				public void run() {
-					try {
-						listener.stopDiscovery();
-						log.info(
-								"Gateway discovery ended, {} gateways found.",
-								gateways.size());
-					} catch (IOException ex) {
-						log.error("Unable to stop listener", ex);
-					}
-				}
-				
-			}, DISCOVERY_WAIT_LONG);
-		} catch (BindException ex) {
-			log.error("Unable to bind to LIFX port.", ex);
-			showToast(getString(R.string.service_bind_failed));
-		} catch (IOException ex) {
-			log.error("Unable to listen for gateways", ex);
-		}
+	/**
+	 * Returns the shared engine, creating it on first use. This isn't done
+	 * when the service is created, since that happens on the main thread.
+	 * @return the shared engine
+	 */
+	public LIFXEngine getEngine() {
+		return LIFXApplication.get(this).getEngine();
 	}
 	
-	@Background
-	public void backgroundTimedListen() {
-		timedListen();
+	public void turnOn() {
+		getEngine().turnOn();
 	}
 	
-	@EventHandler
-	public void gatewayDiscovered(GatewayDiscoveredEvent event) {
-		Gateway gateway = event.getGateway();
-		
-		log.info("Found gateway: {}", gateway);
-
-		gateways.add(gateway);
-		bulbs.addAll(gateway.getBulbs());
-		
-		gateway.bus().register(this);
+	public void turnOn(String bulbName) {
+		getEngine().turnOn(bulbName);
 	}
 	
-	@EventHandler
-	public void bulbDiscovered(GatewayBulbDiscoveredEvent event) {
-		log.info("Found bulb: {}", event.getBulb());
-		log.info("Gateway is now: {}", event.getGateway());
-		
-		bulbs.add(event.getBulb());
-		
-		bus.push(new BulbListUpdatedEvent());
-		
-		refreshAll();
+	public DispatchResult<Bulb> turnOn(String[] bulbNames) {
+		return getEngine().turnOn(bulbNames);
 	}
 	
-	/**
-	 * Similar to {@link #getAvailableGateways()}, but will attempt to discover
-	 * new gateways if none are available
-	 * @return a list of gateways
-	 */
-	private List<Gateway> waitForGateways() {
-		if (!gateways.isEmpty()) {
-			refreshAll();
-			return gateways;
-		}
-		
-		timedListen();
-
-		for (int i = 0; i < DISCOVERY_ATTEMPTS; i++) {
-			try {	
-				Thread.sleep(DISCOVERY_WAIT);
-			} catch (InterruptedException ex) {
-				// ignore
-			}
-
-			if (!gateways.isEmpty()) {
-				break;
-			} 
-		}
-
-		return gateways;
+	public void turnOff() {
+		getEngine().turnOff();
 	}
 	
-	private Bulb bulbSearch(String name) {
-		synchronized (bulbs) {
-			log.info(
-					"Searching for bulb {} in bulbs: {}",
-					name,
-					Arrays.toString(bulbs.toArray()));
-
-			for (Bulb b : bulbs) {
-				// TODO: add support for MAC address
-				
-				if (b.getLabel().equalsIgnoreCase(name)) {
-					return b;
-				}
-			}
-		}
-		
-		log.info("Bulb not found: {}", name);
-		
-		return null;
+	public void turnOff(String bulbName) {
+		getEngine().turnOff(bulbName);
 	}
 	
-	private List<Bulb> bulbSearch(List<String> names) {
-		List<Bulb> ret = new ArrayList<>();
-		
-		synchronized (bulbs) {
-			log.info("Searching for bulbs: {} - Known: {}",
-					Arrays.toString(names.toArray()),
-					Arrays.toString(bulbs.toArray()));
-			
-			for (Bulb b : bulbs) {
-				if (names.contains(b.getLabel())) {
-					names.remove(b.getLabel());
-					ret.add(b);
-				}
-			}
-		}
-		
-		if (names.isEmpty()) {
-			log.info("All requested bulbs found");
-		} else {
-			log.info("Bulbs not found: {}", StringUtils.join(names, ", "));
-		}
-		
-		return ret;
+	public DispatchResult<Bulb> turnOff(String[] bulbNames) {
+		return getEngine().turnOff(bulbNames);
 	}
 	
-	private Bulb findBulb(String name) {
-		// try a few times to find the bulb
-		// mainly we'll be waiting for discovery here
-		
-		// also start listening for new gateways, in case we missed one
-		timedListen();
-		
-		Bulb bulb = null;
-		for (int i = 0; i < DISCOVERY_ATTEMPTS; i++) {
-			bulb = bulbSearch(name);
-			
-			if (bulb != null) {
-				break;
-			}
-			
-			try {
-				Thread.sleep(DISCOVERY_WAIT_SMALL);
-			} catch (InterruptedException ex) {
-				// ignore
-			}
-		}
-		
-		// try one more time
-		if (bulb == null) {
-			bulb = bulbSearch(name);
-
-			if (bulb == null) {
-				log.warn("Bulb could not be found: {}", name);
-				return null;
-			}
-		}
-		
-		log.debug("Bulb found: {}", bulb);
-		
-		return bulb;
+	public void toggle(String bulbName) {
+		getEngine().toggle(bulbName);
 	}
 	
-	private List<Bulb> findBulbs(String[] bulbs) {
-		List<String> remaining = new ArrayList<>();
-		remaining.addAll(Arrays.asList(bulbs));
-		
-		List<Bulb> ret = new ArrayList<>();
-		
-		timedListen();
-		
-		for (int i = 0; i < DISCOVERY_ATTEMPTS; i++) {
-			ret.addAll(bulbSearch(remaining));
-			
-			if (remaining.isEmpty()) {
-				// we found all the bulbs we're looking for
-				break;
-			}
-			
-			try {
-				Thread.sleep(DISCOVERY_WAIT);
-			} catch (InterruptedException ex) {
-				// ignore
-			}
-		}
-		
-		// try one more time
-		if (!remaining.isEmpty()) {
-			ret.addAll(bulbSearch(remaining));
-
-			if (!remaining.isEmpty()) {
-				log.warn(
-						"Bulbs could not be found: {}",
-						StringUtils.join(remaining, ", "));
-				return ret;
-			}
-		}
-		
-		log.debug("Bulbs found: {}", Arrays.toString(ret.toArray()));
-		
-		return ret;
+	public DispatchResult<Bulb> toggle(String[] bulbNames) {
+		return getEngine().toggle(bulbNames);
 	}
 	
-	public void turnOn() {
-		for (Gateway g : waitForGateways()) {
-			try {
-				g.turnOn();
-			} catch (IOException ex) {
-				log.error("Unable to issue turnOn() command to gateway", ex);
-			}
-		}
-	}
-	
-	public void turnOn(String bulbName) {
-		Bulb bulb = findBulb(bulbName);
-		
-		if (bulb != null) {
-			try {
-				bulb.turnOn();
-			} catch (IOException ex) {
-				log.error("Error calling turnOn()", ex);
-			}
-		}
+	public void setColor(String bulbName, int color) {
+		getEngine().setColor(bulbName, color);
 	}
 	
-	public void turnOn(String[] bulbNames) {
-		for (Bulb b : findBulbs(bulbNames)) {
-			try {
-				b.turnOn();
-			} catch (IOException ex) {
-				log.error("Error calling turnOn() for bulb: " + b, ex);
-			}
-		}
+	public DispatchResult<Bulb> setColor(String[] bulbNames, int color) {
+		return getEngine().setColor(bulbNames, color);
 	}
 	
-	public void turnOff() {
-		for (Gateway g : waitForGateways()) {
-			try {
-				g.turnOff();
-			} catch (IOException ex) {
-				log.error("Unable to issue turnOff() command to gateway", ex);
-			}
-		}
+	public DispatchResult<Bulb> pulse(String[] bulbNames, int color) {
+		return getEngine().pulse(bulbNames, color);
 	}
 	
-	public void turnOff(String bulbName) {
-		Bulb bulb = findBulb(bulbName);
-		
-		if (bulb != null) {
-			try {
-				bulb.turnOff();
-			} catch (IOException ex) {
-				log.error("Error calling turnOff()", ex);
-			}
-		}
+	/**
+	 * @see LIFXEngine#refreshAll()
+	 */
+	public void refreshAll() {
+		getEngine().refreshAll();
 	}
 	
-	public void turnOff(String[] bulbNames) {
-		for (Bulb b : findBulbs(bulbNames)) {
-			try {
-				b.turnOff();
-			} catch (IOException ex) {
-				log.error("Error calling turnOff() for bulb: " + b, ex);
-			}
-		}
+	/**
+	 * @return the confirmation outcome, including its latency
+	 * @see LIFXEngine#confirm(Collection)
+	 */
+	public StateConfirmer.Confirmation<Bulb> confirm(Collection<Bulb> targets) {
+		return getEngine().confirm(targets);
 	}
 	
-	public void toggle(String bulbName) {
-		Bulb bulb = findBulb(bulbName);
-		
-		if (bulb != null) {
-			try {
-				log.info("Toggling: {}", bulb);
-				if (bulb.getPowerState() == PowerState.ON) {
-					bulb.turnOff();
-				} else {
-					bulb.turnOn();
-				}
-			} catch (IOException ex) {
-				log.error("Error calling toggle() on " + bulb, ex);
-			}
-		}
+	/**
+	 * @see LIFXEngine#purgeBulbs()
+	 */
+	public void purgeBulbs() {
+		getEngine().purgeBulbs();
 	}
 	
-	public void toggle(String[] bulbNames) {
-		log.info("Attempting toggle on: {}", Arrays.toString(bulbNames));
-		
-		for (Bulb bulb : findBulbs(bulbNames)) {
-			log.info("Toggling one of many: {}", bulb);
-			
-			try {
-				if (bulb.getPowerState() == PowerState.ON) {
-					bulb.turnOff();
-				} else {
-					bulb.turnOn();
-				}
-			} catch (IOException ex) {
-				log.error("Error calling toggle() on " + bulb, ex);
-			}
-		}
+	/**
+	 * @return an immutable snapshot of the currently known bulbs
+	 */
+	public List<Bulb> getBulbs() {
+		return getEngine().getBulbs();
 	}
 	
-	public void setColor(String bulbName, int color) {
-		Bulb bulb = findBulb(bulbName);
-		
-		if (bulb != null) {
-			try {
-				int red = Color.red(color);
-				int green = Color.green(color);
-				int blue = Color.blue(color);
-				
-				bulb.setColor(LIFXColor.fromRGB(red, green, blue));
-			} catch (IOException ex) {
-				log.error("Error calling setColor()", ex);
-			}
-		}
+	/**
+	 * @return the current bulb list version, as carried by
+	 *     {@link BulbListUpdatedEvent}
+	 */
+	public long getBulbListVersion() {
+		return getEngine().getBulbListVersion();
 	}
 	
-	public void setColor(String[] bulbNames, int color) {
-		for (Bulb bulb : findBulbs(bulbNames)) {
-			try {
-				int red = Color.red(color);
-				int green = Color.green(color);
-				int blue = Color.blue(color);
-				
-				bulb.setColor(LIFXColor.fromRGB(red, green, blue));
-			} catch (IOException ex) {
-				log.error("Error calling setColor() on " + bulb, ex);
-			}
-		}
+	/**
+	 * @see LIFXEngine#acquireSocket()
+	 */
+	public void acquireSocket() {
+		getEngine().acquireSocket();
 	}
 	
-	public void pulse(String[] bulbNames, int color) {
-		List<Bulb> bulbs = findBulbs(bulbNames);
-		
-		int red   = Color.red(color);
-		int green = Color.green(color);
-		int blue  = Color.blue(color);
-		LIFXColor c = LIFXColor.fromRGB(red, green, blue);
-		
-		Map<Bulb, LIFXColor> initialColors = new HashMap<>();
-		for (Bulb b : bulbs) {
-			initialColors.put(b, b.getColor());
-			
-			try {
-				b.setColor(c);
-			} catch (IOException ex) {
-				log.error("Error in pulse()", ex);
-			}
-		}
-		
-		try {
-			Thread.sleep(DEFAULT_PULSE_DELAY);
-		} catch (InterruptedException ex) {}
-		
-		for (Bulb b : bulbs) {
-			try {
-				b.setColor(initialColors.get(b));
-			} catch (IOException ex) {
-				log.error("Error in pulse()", ex);
-			}
-		}
+	/**
+	 * @see LIFXEngine#releaseSocket()
+	 */
+	public void releaseSocket() {
+		getEngine().releaseSocket();
 	}
 	
-	public void refreshAll() {
-		for (Gateway g : gateways) {
-			try {
-				g.refreshBulbs();
-			} catch (IOException ex) {
-				log.error("Error in refreshAll()", ex);
-			}
-		}
+	/**
+	 * @param timeout the idle timeout, in milliseconds
+	 * @see LIFXEngine#setSocketIdleTimeout(long)
+	 */
+	public void setSocketIdleTimeout(long timeout) {
+		getEngine().setSocketIdleTimeout(timeout);
 	}
 	
 	/**
-	 * Executes {@link #refreshAll()} several times over a span of 1s
+	 * @see LIFXEngine#closeSocket()
 	 */
-	public void refreshCycle() {
-		for (int i = 0; i < 5; i++) {
-			try {
-				Thread.sleep(200);
-			} catch (InterruptedException ex) {
-				break;
-			}
-			
-			if (!listener.isListening()) {
-				break;
-			}
-			
-			refreshAll();
-		}
+	public void closeSocket() {
+		getEngine().closeSocket();
 	}
 	
 	/**
-	 * Purges all bulb data so the next action will force a complete refresh.
+	 * @return the engine's runtime metrics
 	 */
-	public void purgeBulbs() {
-		GatewayManager.getInstance().purge();
-		bulbs.clear();
-		gateways.clear();
+	public Metrics getMetrics() {
+		return getEngine().getMetrics();
 	}
 	
-	public List<Bulb> getBulbs() {
-		return bulbs;
+	/**
+	 * Writes the current metrics to external storage.
+	 * @return the file written
+	 * @throws IOException if the file could not be written
+	 */
+	public File dumpMetrics() throws IOException {
+		File file = new File(
+				Environment.getExternalStorageDirectory(), METRICS_FILE);
+		
+		try (Writer out = new OutputStreamWriter(
+				new FileOutputStream(file), "UTF-8")) {
+			getEngine().getMetrics().dump(out);
+		}
+		
+		log.info("Dumped metrics to {}", file);
+		
+		return file;
 	}
 	
 	/**
-	 * Closes the bound UDP socket. This must be called when finished to allow
-	 * other apps to make use of the port.
+	 * Writes the buffered action traces and per-phase latency histograms to
+	 * external storage.
+	 * @return the file written
+	 * @throws IOException if the file could not be written
 	 */
-	public void closeSocket() {
-		try {
-			listener.stopListen();
-			
-			log.info("Socket closed.");
-		} catch (IOException ex) {}
+	public File exportTraces() throws IOException {
+		File file = new File(
+				Environment.getExternalStorageDirectory(), TRACE_FILE);
+		
+		try (Writer out = new OutputStreamWriter(
+				new FileOutputStream(file), "UTF-8")) {
+			Tracer.getInstance().export(out);
+		}
+		
+		log.info("Exported action traces to {}", file);
+		
+		return file;
 	}
 	
 	public void stop() {
@@ -546,6 +239,10 @@ public class LIFXService extends Service implements EventBusProvider {
 		public LIFXService getService() {
 			return LIFXService.this;
 		}
+		
+		public Metrics getMetrics() {
+			return getEngine().getMetrics();
+		}
 	}
 	
 }
@@ -3,19 +3,32 @@ package org.timothyb89.lifx.tasker;
 import android.os.Environment;
 import de.mindpipe.android.logging.log4j.LogConfigurator;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import org.apache.log4j.Appender;
 import org.apache.log4j.Level;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- *
+ * Sets up logging on first use. The first call to {@link #init(Class)} only
+ * attaches an in-memory {@link AsyncRingAppender}; the log file is opened and
+ * configured on a background thread, and anything logged in the meantime is
+ * written out once it is ready. This keeps file I/O off the main thread during
+ * cold starts (e.g. when Tasker fires the receiver).
  * @author tim
  */
 public class Logging {
 
 	private static volatile boolean initialized = false;
+	
+	private static volatile long startTime = -1;
+	private static volatile long configureTime = -1;
 
-	private static void configure() {
+	private static void configure(AsyncRingAppender async) {
+		long start = System.nanoTime();
+		
 		LogConfigurator conf = new LogConfigurator();
 
 		conf.setFileName(Environment.getExternalStorageDirectory()
@@ -24,19 +37,105 @@ public class Logging {
 
 		conf.setUseFileAppender(true);
 		conf.setUseLogCatAppender(false);
+		
+		// resetting would close the buffering appender
+		conf.setResetConfiguration(false);
 
 		conf.configure();
-
+		
+		int buffered = async.getBuffered();
+		makeAsync(async);
+		
+		configureTime = (System.nanoTime() - start) / 1000000;
+		
+		LoggerFactory.getLogger(Logging.class).info(
+				"Logging configured in {} ms off the main thread ({} ms on "
+						+ "the calling thread), {} early events buffered",
+				configureTime, startTime, buffered);
+	}
+	
+	/**
+	 * Moves the root logger's appenders behind the given
+	 * {@link AsyncRingAppender} so file writes happen on a background thread,
+	 * then starts it.
+	 */
+	private static void makeAsync(AsyncRingAppender async) {
+		org.apache.log4j.Logger root = org.apache.log4j.Logger.getRootLogger();
+		
+		List<Appender> appenders = new ArrayList<>();
+		Enumeration<?> e = root.getAllAppenders();
+		while (e.hasMoreElements()) {
+			Appender a = (Appender) e.nextElement();
+			if (a != async) {
+				appenders.add(a);
+			}
+		}
+		
+		for (Appender a : appenders) {
+			// removeAllAppenders() would close them
+			root.removeAppender(a);
+			async.addDelegate(a);
+		}
+		
+		async.start();
+	}
+	
+	private static synchronized void start() {
+		if (initialized) {
+			return;
+		}
+		
+		long start = System.nanoTime();
+		
+		// buffer in memory until the log file is ready
+		final AsyncRingAppender async = new AsyncRingAppender();
+		org.apache.log4j.Logger.getRootLogger().addAppender(async);
+		
+		Thread t = new Thread(new Runnable() {
+			
+			@Override
+			public void run() {
+				try {
+					configure(async);
+				} catch (RuntimeException ex) {
+					// don't leave events piling up in the buffer
+					async.start();
+					
+					LoggerFactory.getLogger(Logging.class).error(
+							"Unable to configure logging", ex);
+				}
+			}
+			
+		}, "log-init");
+		t.setDaemon(true);
+		t.start();
+		
+		initialized = true;
+		startTime = (System.nanoTime() - start) / 1000000;
 	}
 
 	public static Logger init(Class c) {
 		if (!initialized) {
-			configure();
-
-			initialized = true;
+			start();
 		}
 
 		return LoggerFactory.getLogger(c);
 	}
+	
+	/**
+	 * @return the time spent setting up logging on the thread that first used
+	 *     it, in milliseconds, or -1 if not yet initialized
+	 */
+	public static long getStartTime() {
+		return startTime;
+	}
+	
+	/**
+	 * @return the time spent configuring the log file in the background, in
+	 *     milliseconds, or -1 if not yet configured
+	 */
+	public static long getConfigureTime() {
+		return configureTime;
+	}
 
 }
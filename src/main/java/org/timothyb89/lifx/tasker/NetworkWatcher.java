@@ -0,0 +1,109 @@
+package org.timothyb89.lifx.tasker;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.DhcpInfo;
+import android.net.NetworkInfo;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import org.slf4j.Logger;
+
+/**
+ * Watches for connectivity changes and reports a key identifying the current
+ * Wi-Fi network, made up of its SSID and subnet. The key is null whenever
+ * Wi-Fi is not connected.
+ * @author tim
+ */
+public class NetworkWatcher extends BroadcastReceiver {
+
+	private static Logger log = Logging.init(NetworkWatcher.class);
+
+	public interface Listener {
+
+		void networkChanged(String network);
+
+	}
+
+	private final Listener listener;
+
+	private String network;
+	private boolean reported;
+
+	public NetworkWatcher(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Registers this watcher and immediately reports the current network.
+	 * @param context the context to register with
+	 */
+	public void register(Context context) {
+		context.registerReceiver(this, new IntentFilter(
+				ConnectivityManager.CONNECTIVITY_ACTION));
+
+		check(context);
+	}
+
+	public void unregister(Context context) {
+		context.unregisterReceiver(this);
+	}
+
+	@Override
+	public void onReceive(Context context, Intent intent) {
+		check(context);
+	}
+
+	private synchronized void check(Context context) {
+		String current = getNetworkKey(context);
+		if (reported && (current == null
+				? network == null
+				: current.equals(network))) {
+			return;
+		}
+
+		log.info("Network changed: {} -> {}", network, current);
+
+		network = current;
+		reported = true;
+
+		listener.networkChanged(current);
+	}
+
+	/**
+	 * Determines a key for the current Wi-Fi network.
+	 * @param context the context to query
+	 * @return the network's SSID and subnet, or null if Wi-Fi is not connected
+	 */
+	public static String getNetworkKey(Context context) {
+		ConnectivityManager cm = (ConnectivityManager)
+				context.getSystemService(Context.CONNECTIVITY_SERVICE);
+
+		NetworkInfo info = cm.getNetworkInfo(ConnectivityManager.TYPE_WIFI);
+		if (info == null || !info.isConnected()) {
+			return null;
+		}
+
+		WifiManager wifi = (WifiManager)
+				context.getSystemService(Context.WIFI_SERVICE);
+
+		WifiInfo wifiInfo = wifi.getConnectionInfo();
+		DhcpInfo dhcp = wifi.getDhcpInfo();
+		if (wifiInfo == null || dhcp == null) {
+			return null;
+		}
+
+		// DhcpInfo addresses are little-endian ints
+		int subnet = dhcp.ipAddress & dhcp.netmask;
+
+		return wifiInfo.getSSID() + "/"
+				+ (subnet & 0xff) + "."
+				+ ((subnet >> 8) & 0xff) + "."
+				+ ((subnet >> 16) & 0xff) + "."
+				+ ((subnet >> 24) & 0xff) + "/"
+				+ Integer.bitCount(dhcp.netmask);
+	}
+
+}
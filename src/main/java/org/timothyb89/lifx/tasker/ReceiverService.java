@@ -1,168 +1,188 @@
 package org.timothyb89.lifx.tasker;
 
-import android.app.IntentService;
-import android.content.ComponentName;
-import android.content.Context;
+import android.app.Service;
 import android.content.Intent;
-import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.widget.Toast;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.androidannotations.annotations.Background;
 import org.androidannotations.annotations.EService;
 import org.androidannotations.annotations.UiThread;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.timothyb89.lifx.tasker.editor.Action;
-import org.timothyb89.lifx.tasker.editor.BulbListEditor;
-import org.timothyb89.lifx.tasker.editor.ColorEditor;
+import org.timothyb89.lifx.bulb.Bulb;
+import org.timothyb89.lifx.tasker.engine.DispatchResult;
+import org.timothyb89.lifx.tasker.engine.LIFXEngine;
+import org.timothyb89.lifx.tasker.engine.Tracer;
 
 /**
- * A wrapper service to process events from FireReceiver.
- * ... a service to start a service? :(
+ * A wrapper service to process events from FireReceiver. Each action is
+ * copied into an {@link ActionContext} and handed to the shared
+ * {@link org.timothyb89.lifx.tasker.engine.ActionExecutor}, so actions on
+ * different bulbs run concurrently while actions on the same bulb keep their
+ * order. Actions are handed over on a background thread, since the first one
+ * creates the engine. The service stops itself once nothing is left in
+ * flight.
  * @author tim
  */
 @EService
-public class ReceiverService extends IntentService {
+public class ReceiverService extends Service {
 
 	private static Logger log = Logging.init(ReceiverService.class);
 	
 	public static final int PULSE_DEFAULT_LENGTH = 500;
-	public static final int CONNECTION_MAX_ATTEMPTS = 1;
 	
-	private Bundle bundle;
-	
-	private volatile int connectionAttempts;
-	private volatile boolean connectionMade;
-	
-	public ReceiverService() {
-		super("ReceiverService");
-	}
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private volatile int lastStartId;
 	
 	@Override
-	protected void onHandleIntent(Intent intent) {
-		bundle = intent.getBundleExtra(FireReceiver.KEY_BUNDLE);
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		// count this start before publishing its ID, so a finishing action
+		// can't stop the service with it while nothing is counted in flight
+		inFlight.incrementAndGet();
+		lastStartId = startId;
+		
+		Bundle bundle = intent == null
+				? null
+				: intent.getBundleExtra(FireReceiver.KEY_BUNDLE);
+		if (bundle == null) {
+			if (intent != null) {
+				log.warn("Ignoring intent without an action bundle");
+			}
+			
+			if (inFlight.decrementAndGet() == 0) {
+				stopIfIdle();
+			}
+			
+			return START_NOT_STICKY;
+		}
 		
-		log.info("Attempting to start LIFX service...");
+		Tracer.Trace trace = Tracer.getInstance().get(
+				intent.getLongExtra(FireReceiver.KEY_TRACE, -1));
+		if (trace == null) {
+			trace = Tracer.getInstance().begin(
+					bundle.getString(FireReceiver.KEY_ACTION));
+		}
+		
+		trace.mark(Tracer.Phase.HANDLE_INTENT);
 		
+		// keep the process (and with it the engine and its socket) alive
+		// between actions
 		startService(new Intent(this, LIFXService_.class));
-
-		connectionMade = false;
-		connectionAttempts = 0;
 		
-		Intent service = new Intent(this, LIFXService_.class);
+		submit(ActionContext.fromBundle(bundle, trace));
 		
-		// an awful hack
-		// for some reason bindService() occassionally fails to ever connect
-		// the service starts in the background, but we're never notified
-		while (!connectionMade) {
-			if (connectionAttempts > 0) {
-				// old instances will still be floating around
-				// we need to kill them to make sure we can actually bind the
-				// port
-				stopService(service);
-			}
-			
-			boolean ret = bindService(
-					new Intent(this, LIFXService_.class),
-					connection,
-					Context.BIND_AUTO_CREATE);
-
-			log.info("Service bound, returned {}", ret);
-			
-			try {
-				Thread.sleep(100);
-			} catch (InterruptedException ex) {
-				break;
-			}
+		return START_NOT_STICKY;
+	}
+	
+	/**
+	 * Queues an action on the shared executor. Creating the engine loads its
+	 * state and resolving bulb keys may wait on the bulb cache, so this runs
+	 * off the main thread, serially so actions queue in the order they
+	 * arrived.
+	 * @param context the action to queue
+	 */
+	@Background(serial = "submit")
+	protected void submit(final ActionContext context) {
+		LIFXApplication app = LIFXApplication.get(this);
+		
+		try {
+			final LIFXEngine engine = app.getEngine();
+			app.getExecutor().submit(context.getKeys(engine), new Runnable() {
+				
+				@Override
+				public void run() {
+					try {
+						process(context, engine);
+					} finally {
+						if (inFlight.decrementAndGet() == 0) {
+							stopIfIdle();
+						}
+					}
+				}
+				
+			});
+		} catch (RuntimeException ex) {
+			log.error("Unable to queue action " + context, ex);
+			Tracer.getInstance().finish(context.getTrace());
 			
-			connectionAttempts++;
-			if (connectionAttempts > CONNECTION_MAX_ATTEMPTS) {
-				break;
+			if (inFlight.decrementAndGet() == 0) {
+				stopIfIdle();
 			}
 			
-			log.warn("Service connection failed, retrying...");
+			return;
 		}
-	}
-
-	@Override
-	public void onDestroy() {
-		super.onDestroy();
 		
-		if (connection != null) {
-			unbindService(connection);
-		}
+		log.debug("Queued action {}, {} waiting",
+				context, app.getExecutor().getQueueDepth());
 	}
 	
-	@UiThread
-	protected void showToast(String message) {
-		Toast.makeText(this, message, Toast.LENGTH_LONG).show();
+	@Override
+	public IBinder onBind(Intent intent) {
+		return null;
 	}
 	
-	private String[] getBulbs() {
-		return bundle.getStringArray(BulbListEditor.KEY_BULBS);
+	/**
+	 * Stops the service, unless another action was started since the last
+	 * one finished.
+	 */
+	private void stopIfIdle() {
+		stopSelf(lastStartId);
 	}
 	
-	private int getColor() {
-		return bundle.getInt(ColorEditor.KEY_COLOR);
+	@UiThread
+	protected void showToast(String message) {
+		Toast.makeText(this, message, Toast.LENGTH_LONG).show();
 	}
 	
-	@Background
-	protected void process(LIFXService lifx) {
-		// crappy action handling for now - will be improved later
-		String actionId = bundle.getString(FireReceiver.KEY_ACTION);
-		Action action = Action.getAction(actionId);
-		
-		log.debug("Processing action: {}", action);
+	private void process(ActionContext context, LIFXEngine lifx) {
+		Tracer.Trace trace = context.getTrace();
+		trace.mark(Tracer.Phase.CONNECTED);
 		
-		// force a refresh
-		//lifx.purgeBulbs();
+		log.debug("Processing action: {}", context);
 		
-		switch (action) {
-			case POWER_ON:     lifx.turnOn(  getBulbs());             break;
-			case POWER_OFF:    lifx.turnOff( getBulbs());             break;
-			case POWER_TOGGLE: lifx.toggle(  getBulbs());             break;
-			case COLOR_SET:    lifx.setColor(getBulbs(), getColor()); break;
-			case COLOR_PULSE:  lifx.pulse(   getBulbs(), getColor()); break;
-			default:
-				log.error("Unknown action: {}", actionId);
-				showToast("LIFX Tasker: Unknown action " + actionId);
-				
-				break;
+		if (context.getAction() == null) {
+			log.error("Unknown action: {}", context.getActionId());
+			showToast("LIFX Tasker: Unknown action " + context.getActionId());
+			
+			Tracer.getInstance().finish(trace);
+			return;
 		}
 		
-		// wait a bit and do a status update
-		//try {
-		//	Thread.sleep(750);
-		//} catch (InterruptedException ex) { } // ignore
-		
-		lifx.refreshCycle();
+		// let the engine mark bulb resolution and sends
+		Tracer.setCurrent(trace);
 		
-		lifx.closeSocket();
-		//lifx.stop();
+		lifx.acquireSocket();
 		
-		stopSelf();
-	}
-	
-	private ServiceConnection connection = new ServiceConnection() {
+		String[] bulbs = context.getBulbs();
+		int color = context.getColor();
 		
-		@Override
-		public void onServiceConnected(ComponentName name, IBinder service) {
-			connectionMade = true;
-			
-			log.info("LIFX service connected.");
+		try {
+			DispatchResult<Bulb> result = null;
+			switch (context.getAction()) {
+				case POWER_ON:     result = lifx.turnOn(  bulbs);        break;
+				case POWER_OFF:    result = lifx.turnOff( bulbs);        break;
+				case POWER_TOGGLE: result = lifx.toggle(  bulbs);        break;
+				case COLOR_SET:    result = lifx.setColor(bulbs, color); break;
+				case COLOR_PULSE:  result = lifx.pulse(   bulbs, color); break;
+			}
 			
-			LIFXService lifx = ((LIFXService.LIFXBinder) service).getService();
+			// wait for the bulbs we touched to report their new state,
+			// leaving other actions' bulbs to their own confirmation
+			if (result != null) {
+				lifx.confirm(result.getTargets());
+			}
+			trace.mark(Tracer.Phase.CONFIRMED);
+		} finally {
+			Tracer.setCurrent(null);
+			Tracer.getInstance().finish(trace);
+			log.info("Action trace: {}", trace);
 			
-			process(lifx);
-		}
-
-		@Override
-		public void onServiceDisconnected(ComponentName name) {
-			// ignore
-			log.debug("LIFX service disconnected.");
+			// keep the socket bound for a while in case another action
+			// follows
+			lifx.releaseSocket();
 		}
-		
-	};
+	}
 	
 }
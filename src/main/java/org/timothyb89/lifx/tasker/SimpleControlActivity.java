@@ -8,10 +8,13 @@ import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.widget.Button;
 import android.widget.Toast;
+import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import org.androidannotations.annotations.Background;
@@ -42,9 +45,12 @@ public class SimpleControlActivity extends Activity {
 	protected FlowLayout bulbContainer;
 	
 	private Map<Bulb, Button> bulbMap;
+	private long bulbVersion = -1;
 	
 	private LIFXService lifx;
 	
+	private boolean socketHeld;
+	
 	/**
 	 * Called when the activity is first created.
 	 *
@@ -69,17 +75,40 @@ public class SimpleControlActivity extends Activity {
 		unbindService(connection);
 	}
 
+	@Override
+	protected void onStart() {
+		super.onStart();
+		
+		if (lifx != null) {
+			holdSocket();
+		}
+	}
+	
 	@Override
 	protected void onStop() {
 		super.onStop();
 		
 		if (lifx != null) {
-			lifx.closeSocket();
+			releaseSocket();
 			
 			lifx.bus().deregister(this);
 		}
 	}
 	
+	private void holdSocket() {
+		if (!socketHeld) {
+			lifx.acquireSocket();
+			socketHeld = true;
+		}
+	}
+	
+	private void releaseSocket() {
+		if (socketHeld) {
+			lifx.releaseSocket();
+			socketHeld = false;
+		}
+	}
+	
 	@Background
 	protected void initService() {
 		log.info("Starting service");
@@ -93,6 +122,8 @@ public class SimpleControlActivity extends Activity {
 	}
 	
 	protected void serviceConnected() {
+		holdSocket();
+		
 		bulbsUpdated();
 		
 		lifx.refreshAll();
@@ -105,7 +136,44 @@ public class SimpleControlActivity extends Activity {
 	
 	@EventHandler
 	public void bulbsUpdatedHandler(BulbListUpdatedEvent event) {
-		bulbsUpdated();
+		bulbsChanged(event);
+	}
+	
+	/**
+	 * Applies a bulb list update to the existing buttons, falling back to a
+	 * full rebuild if we missed an update.
+	 * @param event the update
+	 */
+	@UiThread
+	protected void bulbsChanged(BulbListUpdatedEvent event) {
+		if (lifx == null) {
+			return;
+		}
+		
+		if (event.getFromVersion() != bulbVersion) {
+			bulbsUpdated();
+			return;
+		}
+		
+		for (Bulb bulb : event.getRemoved()) {
+			Button b = bulbMap.remove(bulb);
+			if (b != null) {
+				bulbContainer.removeView(b);
+			}
+		}
+		
+		for (Bulb bulb : event.getAdded()) {
+			addButton(bulb);
+		}
+		
+		for (Bulb bulb : event.getChanged()) {
+			Button b = bulbMap.get(bulb);
+			if (b != null) {
+				b.setText(bulb.getLabel());
+			}
+		}
+		
+		bulbVersion = event.getVersion();
 	}
 	
 	@UiThread
@@ -119,20 +187,30 @@ public class SimpleControlActivity extends Activity {
 		bulbMap.clear();
 		bulbContainer.removeAllViews();
 		
+		// read the version first; any change after this will be applied again
+		bulbVersion = lifx.getBulbListVersion();
 		for (Bulb bulb : lifx.getBulbs()) {
-			Button b = new Button(this);
-			b.setOnClickListener(new BulbButtonController(bulb, b));
-			b.setText(bulb.getLabel());
-			bulbMap.put(bulb, b);
-			
-			bulbContainer.addView(b);
+			addButton(bulb);
+		}
+	}
+	
+	private void addButton(Bulb bulb) {
+		if (bulbMap.containsKey(bulb)) {
+			return;
 		}
+		
+		Button b = new Button(this);
+		b.setOnClickListener(new BulbButtonController(bulb, b));
+		b.setText(bulb.getLabel());
+		bulbMap.put(bulb, b);
+		
+		bulbContainer.addView(b);
 	}
 	
 	@Background
 	protected void toggle(Bulb bulb) {
 		lifx.toggle(bulb.getLabel());
-		lifx.refreshCycle();
+		lifx.confirm(Collections.singletonList(bulb));
 	}
 	
 	@UiThread
@@ -172,6 +250,52 @@ public class SimpleControlActivity extends Activity {
 		return true;
 	}
 	
+	@Override
+	public boolean onOptionsItemSelected(MenuItem item) {
+		switch (item.getItemId()) {
+			case R.id.main_export_traces:
+				exportTraces();
+				return true;
+			case R.id.main_dump_metrics:
+				dumpMetrics();
+				return true;
+			default:
+				return super.onOptionsItemSelected(item);
+		}
+	}
+	
+	@Background
+	protected void dumpMetrics() {
+		if (lifx == null) {
+			showToast("Error: service not connected");
+			return;
+		}
+		
+		try {
+			File file = lifx.dumpMetrics();
+			showToast(getString(R.string.main_export_done, file));
+		} catch (IOException ex) {
+			log.error("Unable to dump metrics", ex);
+			showToast(getString(R.string.main_export_failed, ex.getMessage()));
+		}
+	}
+	
+	@Background
+	protected void exportTraces() {
+		if (lifx == null) {
+			showToast("Error: service not connected");
+			return;
+		}
+		
+		try {
+			File file = lifx.exportTraces();
+			showToast(getString(R.string.main_export_done, file));
+		} catch (IOException ex) {
+			log.error("Unable to export traces", ex);
+			showToast(getString(R.string.main_export_failed, ex.getMessage()));
+		}
+	}
+	
 	@UiThread
 	protected void updateButtonIcon(Button b, int resId) {
 		b.setCompoundDrawablesWithIntrinsicBounds(0, resId, 0, 0);
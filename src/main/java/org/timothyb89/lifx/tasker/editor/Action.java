@@ -1,6 +1,8 @@
 package org.timothyb89.lifx.tasker.editor;
 
 import android.content.Context;
+import java.util.HashMap;
+import java.util.Map;
 import org.timothyb89.lifx.tasker.R;
 
 /**
@@ -34,6 +36,13 @@ public enum Action {
 			R.string.action_color_pulse,
 			Parameter.BULB_NAMES, Parameter.COLOR);
 	
+	private static final Map<String, Action> ids = new HashMap<>();
+	static {
+		for (Action a : values()) {
+			ids.put(a.getId(), a);
+		}
+	}
+	
 	private String id;
 	private int resourceId;
 	private Parameter[] parameters;
@@ -57,13 +66,7 @@ public enum Action {
 	}
 	
 	public static Action getAction(String id) {
-		for (Action a : values()) {
-			if (id.equals(a.getId())) {
-				return a;
-			}
-		}
-		
-		return null;
+		return ids.get(id);
 	}
 	
 	public static Action getAction(Context ctx, String realName) {
@@ -54,6 +54,8 @@ public class BulbListEditor extends Activity {
 	
 	private LIFXService lifx;
 	
+	private boolean socketHeld;
+	
 	private List<String> selectedBulbs;
 	private Map<CheckBox, Bulb> bulbMap;
 	
@@ -98,16 +100,41 @@ public class BulbListEditor extends Activity {
 				Context.BIND_AUTO_CREATE);
 	}
 
+	@Override
+	protected void onStart() {
+		super.onStart();
+		
+		if (lifx != null) {
+			holdSocket();
+		}
+	}
+	
 	@Override
 	protected void onStop() {
 		super.onStop();
 		
 		if (lifx != null) {
-			lifx.closeSocket();
+			releaseSocket();
+		}
+	}
+	
+	private void holdSocket() {
+		if (!socketHeld) {
+			lifx.acquireSocket();
+			socketHeld = true;
+		}
+	}
+	
+	private void releaseSocket() {
+		if (socketHeld) {
+			lifx.releaseSocket();
+			socketHeld = false;
 		}
 	}
 
 	protected void serviceConnected() {
+		holdSocket();
+		
 		bulbsUpdated();
 		
 		log.info("LIFX: {}", lifx);